@@ -0,0 +1,175 @@
+/*
+ * AnimationClip.java
+ *
+ * @author Ricardo Amores Hernndez
+ */
+
+package MIDP1GameAPI;
+
+/**
+ * Animacin de un sprite basada en tiempo: una secuencia de frames, la
+ * duracin de cada uno en milisegundos y un modo de repeticin.
+ *
+ * Un clip no cambia una vez creado, as que puede compartirse entre todos los
+ * sprites que usan la misma animacin: cada sprite guarda slo su posicin
+ * dentro del clip (ver Sprite.setAnimationClip() y Sprite.update()).
+ */
+public class AnimationClip
+{
+    /** Al terminar la secuencia vuelve a empezar */
+    public static final int LOOP = 0;
+
+    /** Al llegar a un extremo de la secuencia la recorre en sentido contrario */
+    public static final int PING_PONG = 1;
+
+    /** Se reproduce una vez y se queda en el ltimo frame */
+    public static final int ONCE = 2;
+
+    /**
+     * Crea un clip con una duracin para cada frame de la secuencia
+     *
+     * @param frames ndices de los frames del sprite
+     * @param durations duracin de cada frame en milisegundos, mayor que 0
+     * @param mode LOOP, PING_PONG u ONCE
+     */
+    public AnimationClip(int[] frames, int[] durations, int mode)
+    {
+//#if DEBUG
+//#         if ( (frames == null) || (durations == null) )
+//#             throw new NullPointerException("AnimationClip::AnimationClip - frames or durations is null");
+//#         if (frames.length < 1)
+//#             throw new IllegalArgumentException("AnimationClip::AnimationClip - Empty sequence");
+//#         if (durations.length != frames.length)
+//#             throw new IllegalArgumentException("AnimationClip::AnimationClip - durations.length = " + durations.length);
+//#         if ( (mode < LOOP) || (mode > ONCE) )
+//#             throw new IllegalArgumentException("AnimationClip::AnimationClip - arg mode = " + mode);
+//#else
+        if ( (frames == null) || (durations == null) )
+            throw new NullPointerException();
+        if ( (frames.length < 1) || (durations.length != frames.length) || (mode < LOOP) || (mode > ONCE) )
+            throw new IllegalArgumentException();
+//#endif
+
+        _length = frames.length;
+        _mode = mode;
+
+        //Copiamos los arrays: el clip no debe cambiar aunque el llamador
+        //modifique los suyos
+        _frames = new int[_length];
+        _durations = new int[_length];
+
+        for (int i = 0; i < _length; ++i)
+        {
+//#if DEBUG
+//#             if (frames[i] < 0)
+//#                 throw new IllegalArgumentException("AnimationClip::AnimationClip - frames[" + i + "] = " + frames[i]);
+//#             if (durations[i] < 1)
+//#                 throw new IllegalArgumentException("AnimationClip::AnimationClip - durations[" + i + "] = " + durations[i]);
+//#else
+            if ( (frames[i] < 0) || (durations[i] < 1) )
+                throw new IllegalArgumentException();
+//#endif
+
+            _frames[i] = frames[i];
+            _durations[i] = durations[i];
+            _totalDuration += durations[i];
+        }
+
+        //Duracin de un ciclo completo, tras el cual la animacin vuelve al
+        //mismo frame y sentido. En ping-pong los extremos slo se muestran
+        //una vez por ciclo
+        if ( (mode == PING_PONG) && (_length > 1) )
+            _cycleDuration = 2 * _totalDuration - _durations[0] - _durations[_length - 1];
+        else
+            _cycleDuration = _totalDuration;
+    }
+
+    /**
+     * Crea un clip en el que todos los frames duran lo mismo
+     */
+    public AnimationClip(int[] frames, int frameDuration, int mode)
+    {
+        this(frames, createDurations(frames, frameDuration), mode);
+    }
+
+    /**
+     * Nmero de frames de la secuencia
+     */
+    public final int getLength()
+    {
+        return _length;
+    }
+
+    /**
+     * ndice del frame del sprite en una posicin de la secuencia
+     */
+    public final int getFrame(int index)
+    {
+        return _frames[index];
+    }
+
+    /**
+     * Duracin en milisegundos de una posicin de la secuencia
+     */
+    public final int getDuration(int index)
+    {
+        return _durations[index];
+    }
+
+    /**
+     * Suma de las duraciones de todos los frames
+     */
+    public final int getTotalDuration()
+    {
+        return _totalDuration;
+    }
+
+    /**
+     * Modo de repeticin: LOOP, PING_PONG u ONCE
+     */
+    public final int getMode()
+    {
+        return _mode;
+    }
+
+    ///////////////////////////////////////////////////////////////////
+    //Mtodos privados
+
+    /**
+     * Array de duraciones iguales para el constructor de duracin nica
+     */
+    private static int[] createDurations(int[] frames, int frameDuration)
+    {
+//#if DEBUG
+//#         if (frames == null)
+//#             throw new NullPointerException("AnimationClip::AnimationClip - frames is null");
+//#else
+        if (frames == null)
+            throw new NullPointerException();
+//#endif
+
+        int[] durations = new int[frames.length];
+
+        for (int i = 0; i < durations.length; ++i)
+            durations[i] = frameDuration;
+
+        return durations;
+    }
+
+    ///////////////////////////////////////////////////////////////////
+    //Elementos privados
+
+    //Secuencia de frames, compartida con los sprites que usan el clip
+    int[] _frames;
+
+    //Duracin de cada frame en milisegundos
+    int[] _durations;
+
+    //Nmero de frames, modo de repeticin
+    int _length;
+    int _mode;
+
+    //Duracin de la secuencia completa y de un ciclo de la animacin
+    int _totalDuration;
+    int _cycleDuration;
+}
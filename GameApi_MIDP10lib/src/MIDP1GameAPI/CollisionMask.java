@@ -0,0 +1,331 @@
+/*
+ * CollisionMask.java
+ *
+ * @author Ricardo Amores Hernndez
+ */
+
+package MIDP1GameAPI;
+
+import javax.microedition.lcdui.Image;
+
+//#if NOKIA_UI
+//# import com.nokia.mid.ui.*;
+//#endif
+
+/**
+ * Mscaras de colisin a nivel de pxel para los frames de un sprite.
+ *
+ * Cada fila de un frame se guarda en enteros de 32 bits, un bit por pxel
+ * opaco (el bit ms alto es el pxel de la izquierda), de forma que al
+ * comprobar colisiones se comparan 32 pxeles con cada AND. Las mscaras de
+ * los frames reflejados o girados se calculan la primera vez que se piden y se
+ * guardan para las siguientes.
+ * <p>
+ * Una misma mscara puede compartirse entre todos los sprites que usan los
+ * mismos frames. Con Nokia UI se crea a partir de los pxeles de las imgenes
+ * (ver ImageSet.getCollisionMask()); en MIDP 1.0 no es posible leer los
+ * pxeles de una imagen, as que los frames se definen con setFrame() a partir
+ * de datos ARGB del juego.
+ */
+public class CollisionMask
+{
+    /** Reflejo horizontal */
+    public static final int MIRROR_X = 1;
+
+    /** Reflejo vertical */
+    public static final int MIRROR_Y = 2;
+
+    /** Giro de 90 grados en sentido horario, aplicado despus de los reflejos */
+    public static final int ROTATE_90 = 4;
+
+    /** Giro de 180 grados, aplicado despus de los reflejos */
+    public static final int ROTATE_180 = 8;
+
+    /** Giro de 270 grados en sentido horario, aplicado despus de los reflejos */
+    public static final int ROTATE_270 = 12;
+
+    //Nmero de combinaciones de reflejos y giros
+    private static final int NUM_TRANSFORMS = 16;
+
+    /**
+     * Crea una mscara vaca (todos los pxeles transparentes) para numFrames
+     * frames de frameWidth x frameHeight.
+     */
+    public CollisionMask(int frameWidth, int frameHeight, int numFrames)
+    {
+//#if DEBUG
+//#         if (frameWidth < 1)
+//#             throw new IllegalArgumentException("CollisionMask::CollisionMask - arg frameWidth = " + frameWidth);
+//#         if (frameHeight < 1)
+//#             throw new IllegalArgumentException("CollisionMask::CollisionMask - arg frameHeight = " + frameHeight);
+//#         if (numFrames < 1)
+//#             throw new IllegalArgumentException("CollisionMask::CollisionMask - arg numFrames = " + numFrames);
+//#else
+        if ( (frameWidth < 1) || (frameHeight < 1) || (numFrames < 1) )
+            throw new IllegalArgumentException();
+//#endif
+
+        _frameWidth = frameWidth;
+        _frameHeight = frameHeight;
+        _numFrames = numFrames;
+
+        _masks = new int[NUM_TRANSFORMS][][];
+        _masks[0] = new int[numFrames][];
+
+        int size = getWordsPerRow(0) * frameHeight;
+        for (int i = 0; i < numFrames; ++i)
+            _masks[0][i] = new int[size];
+    }
+
+//#if NOKIA_UI
+//#     /**
+//#      * Crea la mscara de una imagen completa, como un nico frame. Como las
+//#      * imgenes inmutables no permiten leer sus pxeles, la imagen se copia
+//#      * antes en una imagen con transparencia.
+//#      */
+//#     public static CollisionMask createMask(Image image)
+//#     {
+//#         int width = image.getWidth();
+//#         int height = image.getHeight();
+//# 
+//#         Image tmp = DirectUtils.createImage(width, height, 0x00000000);
+//#         DirectUtils.getDirectGraphics(tmp.getGraphics()).drawImage(image, 0, 0,
+//#                 javax.microedition.lcdui.Graphics.TOP | javax.microedition.lcdui.Graphics.LEFT, 0);
+//# 
+//#         CollisionMask mask = new CollisionMask(width, height, 1);
+//#         mask.setFrame(0, tmp);
+//#         return mask;
+//#     }
+//# 
+//#     /**
+//#      * Define la mscara de un frame a partir de los pxeles de una imagen
+//#      * mutable de frameWidth x frameHeight (como los frames de un ImageSet)
+//#      */
+//#     public void setFrame(int frame, Image image)
+//#     {
+//#         int[] argb = new int[_frameWidth * _frameHeight];
+//# 
+//#         DirectUtils.getDirectGraphics(image.getGraphics()).getPixels(argb, 0, _frameWidth,
+//#                 0, 0, _frameWidth, _frameHeight, DirectGraphics.TYPE_INT_8888_ARGB);
+//# 
+//#         setFrame(frame, argb, 0, _frameWidth);
+//#     }
+//#endif
+
+    /**
+     * Define la mscara de un frame a partir de sus pxeles en formato ARGB:
+     * son opacos los pxeles con alfa distinto de 0. El pxel (x, y) del frame
+     * es argb[offset + y * scanlength + x].
+     */
+    public void setFrame(int frame, int[] argb, int offset, int scanlength)
+    {
+//#if DEBUG
+//#         if (argb == null)
+//#             throw new NullPointerException("CollisionMask::setFrame - argb arg is null");
+//#         if ( (frame < 0) || (frame >= _numFrames) )
+//#             throw new IndexOutOfBoundsException("CollisionMask::setFrame - arg frame = " + frame);
+//#         if ( (offset < 0) || (scanlength < _frameWidth) ||
+//#              (offset + (_frameHeight - 1) * scanlength + _frameWidth > argb.length) )
+//#             throw new ArrayIndexOutOfBoundsException("CollisionMask::setFrame - argb too small for offset and scanlength");
+//#else
+        if (argb == null)
+            throw new NullPointerException();
+        if ( (frame < 0) || (frame >= _numFrames) )
+            throw new IndexOutOfBoundsException();
+        if ( (offset < 0) || (scanlength < _frameWidth) ||
+             (offset + (_frameHeight - 1) * scanlength + _frameWidth > argb.length) )
+            throw new ArrayIndexOutOfBoundsException();
+//#endif
+
+        int[] mask = _masks[0][frame];
+        int words = getWordsPerRow(0);
+        int pos = 0;
+
+        for (int y = 0; y < _frameHeight; ++y, pos += words)
+        {
+            for (int i = 0; i < words; ++i)
+                mask[pos + i] = 0;
+
+            for (int x = 0; x < _frameWidth; ++x)
+                if ( (argb[offset + y * scanlength + x] & 0xFF000000) != 0 )
+                    mask[pos + (x >> 5)] |= 0x80000000 >>> (x & 31);
+        }
+
+        //Las mscaras transformadas del frame ya no son vlidas
+        for (int t = 1; t < NUM_TRANSFORMS; ++t)
+            if (_masks[t] != null)
+                _masks[t][frame] = null;
+    }
+
+    /**
+     * Indica si un pxel de un frame, sin transformar, es opaco
+     */
+    public boolean isOpaque(int frame, int x, int y)
+    {
+        return (_masks[0][frame][y * getWordsPerRow(0) + (x >> 5)] & (0x80000000 >>> (x & 31))) != 0;
+    }
+
+    /**
+     * Ancho de los frames sin transformar
+     */
+    public final int getFrameWidth()
+    {
+        return _frameWidth;
+    }
+
+    /**
+     * Alto de los frames sin transformar
+     */
+    public final int getFrameHeight()
+    {
+        return _frameHeight;
+    }
+
+    /**
+     * Nmero de frames
+     */
+    public final int getNumFrames()
+    {
+        return _numFrames;
+    }
+
+    /**
+     * Mscara de un frame con una transformacin (combinacin de reflejos y
+     * giros), calculada la primera vez que se pide
+     */
+    final int[] getMask(int frame, int transform)
+    {
+        if (_masks[transform] == null)
+            _masks[transform] = new int[_numFrames][];
+
+        if (_masks[transform][frame] == null)
+            _masks[transform][frame] = createTransformedMask(frame, transform);
+
+        return _masks[transform][frame];
+    }
+
+    /**
+     * Enteros por fila de las mscaras con una transformacin
+     */
+    final int getWordsPerRow(int transform)
+    {
+        return ( ( (transform & ROTATE_90) != 0 ? _frameHeight : _frameWidth ) + 31 ) >> 5;
+    }
+
+    /**
+     * Comprueba si dos mscaras tienen algn pxel opaco en comn dentro del
+     * rectngulo (x, y, width, height). Las posiciones de las mscaras y el
+     * rectngulo estn en el mismo sistema de coordenadas, y el rectngulo
+     * debe quedar dentro de las dos mscaras. Una mscara null es opaca.
+     */
+    static boolean intersects(int[] maskA, int wordsA, int xA, int yA,
+                              int[] maskB, int wordsB, int xB, int yB,
+                              int x, int y, int width, int height)
+    {
+        int bits, remaining;
+
+        for (int row = y; row < y + height; ++row)
+        {
+            for (int col = x; col < x + width; col += 32)
+            {
+                //Bits dentro del rectngulo
+                remaining = x + width - col;
+                bits = (remaining >= 32) ? -1 : ~(-1 >>> remaining);
+
+                if (maskA != null)
+                    bits &= getBits(maskA, (row - yA) * wordsA, wordsA, col - xA);
+
+                if (maskB != null)
+                    bits &= getBits(maskB, (row - yB) * wordsB, wordsB, col - xB);
+
+                if (bits != 0)
+                    return true;
+            }
+        }
+
+        return false;
+    }
+
+    ///////////////////////////////////////////////////////////////////
+    //Mtodos privados
+
+    /**
+     * 32 bits de una fila de la mscara a partir del pxel bit
+     */
+    private static int getBits(int[] mask, int rowStart, int words, int bit)
+    {
+        int word = bit >> 5;
+        int shift = bit & 31;
+        int bits = mask[rowStart + word] << shift;
+
+        if ( (shift != 0) && (word + 1 < words) )
+            bits |= mask[rowStart + word + 1] >>> (32 - shift);
+
+        return bits;
+    }
+
+    /**
+     * Calcula la mscara de un frame reflejado y girado
+     */
+    private int[] createTransformedMask(int frame, int transform)
+    {
+        int[] src = _masks[0][frame];
+        int srcWords = getWordsPerRow(0);
+        int dstWords = getWordsPerRow(transform);
+        int[] dst = new int[dstWords * ( (transform & ROTATE_90) != 0 ? _frameWidth : _frameHeight )];
+        int w = _frameWidth;
+        int h = _frameHeight;
+        int mx, my, dx, dy;
+
+        for (int y = 0; y < h; ++y)
+            for (int x = 0; x < w; ++x)
+            {
+                if ( (src[y * srcWords + (x >> 5)] & (0x80000000 >>> (x & 31))) == 0 )
+                    continue;
+
+                //Primero los reflejos...
+                mx = ( (transform & MIRROR_X) != 0 ) ? w - 1 - x : x;
+                my = ( (transform & MIRROR_Y) != 0 ) ? h - 1 - y : y;
+
+                //...y despus el giro
+                switch (transform & ROTATE_270)
+                {
+                    case ROTATE_90:
+                        dx = h - 1 - my;
+                        dy = mx;
+                        break;
+
+                    case ROTATE_180:
+                        dx = w - 1 - mx;
+                        dy = h - 1 - my;
+                        break;
+
+                    case ROTATE_270:
+                        dx = my;
+                        dy = w - 1 - mx;
+                        break;
+
+                    default:
+                        dx = mx;
+                        dy = my;
+                }
+
+                dst[dy * dstWords + (dx >> 5)] |= 0x80000000 >>> (dx & 31);
+            }
+
+        return dst;
+    }
+
+    ///////////////////////////////////////////////////////////////////
+    //Elementos privados
+
+    //Tamao de los frames sin transformar
+    private int _frameWidth, _frameHeight;
+
+    //Nmero de frames
+    private int _numFrames;
+
+    //Mscaras por transformacin y frame. La transformacin 0 (sin reflejos
+    //ni giros) siempre est creada, el resto se crean al pedirlas
+    private int[][][] _masks;
+}
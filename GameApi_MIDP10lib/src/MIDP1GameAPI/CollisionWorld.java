@@ -0,0 +1,394 @@
+/*
+ * CollisionWorld.java
+ *
+ * @author Ricardo Amores Hernndez
+ */
+
+package MIDP1GameAPI;
+
+/**
+ * Busca todas las parejas de sprites que colisionan entre s sin comparar
+ * cada sprite con todos los dems.
+ *
+ * Los sprites se registran con add() y en cada frame findCollisions() ordena
+ * sus rectngulos de colisin por su borde izquierdo y los recorre en orden:
+ * slo se comparan los sprites cuyos rectngulos se solapan en el eje X (sweep
+ * and prune). Entre un frame y el siguiente los sprites apenas cambian de
+ * orden, as que se reordenan por insercin partiendo del orden anterior, lo
+ * que cuesta un tiempo casi lineal.
+ * <p>
+ * Cada sprite registrado tiene un identificador, que no cambia mientras est
+ * registrado, y puede tener un grupo y una mscara de colisin: dos sprites
+ * slo se comparan si el grupo de cada uno tiene algn bit en comn con la
+ * mscara del otro. Las parejas encontradas se guardan como identificadores
+ * en un array que se reutiliza en cada llamada (ver getPairs()).
+ * <p>
+ * Cada sprite guarda el mundo en el que est registrado y su identificador,
+ * as que slo puede estar en un CollisionWorld a la vez, y add(), remove()
+ * y getId() tardan un tiempo constante. Los sprites quitados se eliminan del
+ * orden en la siguiente bsqueda.
+ */
+public class CollisionWorld
+{
+    /**
+     * Crea un mundo con sitio para capacity sprites. Si se registran ms los
+     * arrays crecen.
+     */
+    public CollisionWorld(int capacity)
+    {
+//#if DEBUG
+//#         if (capacity < 1)
+//#             throw new IllegalArgumentException("CollisionWorld::CollisionWorld - arg capacity = " + capacity);
+//#else
+        if (capacity < 1)
+            throw new IllegalArgumentException();
+//#endif
+
+        _sprites = new Sprite[capacity];
+        _groups = new int[capacity];
+        _masks = new int[capacity];
+        _minX = new int[capacity];
+        _order = new int[capacity];
+        _inOrder = new boolean[capacity];
+        _freeIds = new int[capacity];
+        _pairs = new int[capacity * 2];
+
+        //Los identificadores libres se sacan del final
+        for (int i = 0; i < capacity; ++i)
+            _freeIds[i] = capacity - 1 - i;
+        _numFreeIds = capacity;
+    }
+
+    /**
+     * Registra un sprite que colisiona con todos los dems
+     *
+     * @return identificador del sprite
+     */
+    public int add(Sprite s)
+    {
+        return add(s, -1, -1);
+    }
+
+    /**
+     * Registra un sprite con un grupo y una mscara de colisin. Dos sprites A
+     * y B slo colisionan si (grupo A & mscara B) != 0 y
+     * (grupo B & mscara A) != 0.
+     *
+     * @return identificador del sprite
+     */
+    public int add(Sprite s, int group, int mask)
+    {
+//#if DEBUG
+//#         if (s == null)
+//#             throw new NullPointerException("CollisionWorld::add - sprite arg is null");
+//#         if (s._world != null)
+//#             throw new IllegalArgumentException("CollisionWorld::add - sprite already added to a CollisionWorld");
+//#else
+        if (s == null)
+            throw new NullPointerException();
+        if (s._world != null)
+            throw new IllegalArgumentException();
+//#endif
+
+        if (_numFreeIds == 0)
+            grow();
+
+        int id = _freeIds[--_numFreeIds];
+
+        _sprites[id] = s;
+        _groups[id] = group;
+        _masks[id] = mask;
+        _count++;
+
+        s._world = this;
+        s._worldId = id;
+
+        //Al final del orden: se coloca en su sitio en la siguiente bsqueda.
+        //Si el identificador era de un sprite quitado despus de la ltima
+        //bsqueda ya est en el orden
+        if (!_inOrder[id])
+        {
+            _order[_size++] = id;
+            _inOrder[id] = true;
+        }
+
+        return id;
+    }
+
+    /**
+     * Quita un sprite registrado. Su identificador puede reutilizarse en el
+     * siguiente add(), y se quita del orden en la siguiente bsqueda.
+     */
+    public void remove(Sprite s)
+    {
+        int id = getId(s);
+
+//#if DEBUG
+//#         if (s == null)
+//#             throw new NullPointerException("CollisionWorld::remove - sprite arg is null");
+//#         if (id == -1)
+//#             throw new IllegalArgumentException("CollisionWorld::remove - sprite not added");
+//#else
+        if (s == null)
+            throw new NullPointerException();
+        if (id == -1)
+            throw new IllegalArgumentException();
+//#endif
+
+        _sprites[id] = null;
+        _freeIds[_numFreeIds++] = id;
+        _count--;
+
+        s._world = null;
+    }
+
+    /**
+     * Quita todos los sprites
+     */
+    public void clear()
+    {
+        int capacity = _sprites.length;
+
+        for (int i = 0; i < _size; ++i)
+        {
+            if (_sprites[_order[i]] != null)
+                _sprites[_order[i]]._world = null;
+
+            _sprites[_order[i]] = null;
+            _inOrder[_order[i]] = false;
+        }
+
+        //Todos los identificadores quedan libres
+        for (int i = 0; i < capacity; ++i)
+            _freeIds[i] = capacity - 1 - i;
+        _numFreeIds = capacity;
+
+        _size = 0;
+        _count = 0;
+        _numPairs = 0;
+    }
+
+    /**
+     * Cambia el grupo y la mscara de colisin de un sprite registrado
+     */
+    public void setCollisionGroup(Sprite s, int group, int mask)
+    {
+        int id = getId(s);
+
+//#if DEBUG
+//#         if (s == null)
+//#             throw new NullPointerException("CollisionWorld::setCollisionGroup - sprite arg is null");
+//#         if (id == -1)
+//#             throw new IllegalArgumentException("CollisionWorld::setCollisionGroup - sprite not added");
+//#else
+        if (s == null)
+            throw new NullPointerException();
+        if (id == -1)
+            throw new IllegalArgumentException();
+//#endif
+
+        _groups[id] = group;
+        _masks[id] = mask;
+    }
+
+    /**
+     * Identificador de un sprite, o -1 si no est registrado
+     */
+    public int getId(Sprite s)
+    {
+        if ( (s == null) || (s._world != this) )
+            return -1;
+
+        return s._worldId;
+    }
+
+    /**
+     * Sprite con un identificador
+     */
+    public final Sprite getSprite(int id)
+    {
+        return _sprites[id];
+    }
+
+    /**
+     * Nmero de sprites registrados
+     */
+    public final int getSize()
+    {
+        return _count;
+    }
+
+    /**
+     * Busca todas las parejas de sprites registrados que colisionan, con el
+     * mismo criterio que Sprite.collidesWith(Sprite, pixelLevel). Los sprites
+     * invisibles no colisionan.
+     *
+     * @return nmero de parejas encontradas
+     */
+    public int findCollisions(boolean pixelLevel)
+    {
+        int i, j, id, other, key, maxX, minY, maxY;
+        Sprite s, o;
+
+        //Quitamos del orden los sprites quitados desde la ltima bsqueda
+        j = 0;
+        for (i = 0; i < _size; ++i)
+        {
+            id = _order[i];
+
+            if (_sprites[id] != null)
+                _order[j++] = id;
+            else
+                _inOrder[id] = false;
+        }
+        _size = j;
+
+        //Reordenamos por insercin segn el borde izquierdo actual
+        for (i = 0; i < _size; ++i)
+            _minX[_order[i]] = _sprites[_order[i]]._collisionRectX;
+
+        for (i = 1; i < _size; ++i)
+        {
+            id = _order[i];
+            key = _minX[id];
+
+            for (j = i - 1; (j >= 0) && (_minX[_order[j]] > key); --j)
+                _order[j + 1] = _order[j];
+
+            _order[j + 1] = id;
+        }
+
+        //Barrido: cada sprite se compara con los siguientes mientras empiecen
+        //antes de que l termine. Se consideran tambin los rectngulos que
+        //slo se tocan, igual que Sprite.collidesWith()
+        _numPairs = 0;
+
+        for (i = 0; i < _size; ++i)
+        {
+            id = _order[i];
+            s = _sprites[id];
+
+            if (!s._visible)
+                continue;
+
+            maxX = s._collisionRectX + s._collisionRectW;
+            minY = s._collisionRectY;
+            maxY = minY + s._collisionRectH;
+
+            for (j = i + 1; j < _size; ++j)
+            {
+                other = _order[j];
+
+                if (_minX[other] > maxX)
+                    break;
+
+                o = _sprites[other];
+
+                if ( !o._visible || (o._collisionRectY > maxY) || (o._collisionRectY + o._collisionRectH < minY) )
+                    continue;
+
+                if ( ( (_groups[id] & _masks[other]) == 0 ) || ( (_groups[other] & _masks[id]) == 0 ) )
+                    continue;
+
+                if (!s.collidesWith(o, pixelLevel))
+                    continue;
+
+                if (2 * _numPairs == _pairs.length)
+                {
+                    int[] pairs = new int[_pairs.length * 2];
+                    System.arraycopy(_pairs, 0, pairs, 0, _pairs.length);
+                    _pairs = pairs;
+                }
+
+                _pairs[2 * _numPairs] = id;
+                _pairs[2 * _numPairs + 1] = other;
+                _numPairs++;
+            }
+        }
+
+        return _numPairs;
+    }
+
+    /**
+     * Nmero de parejas encontradas en la ltima bsqueda
+     */
+    public final int getPairCount()
+    {
+        return _numPairs;
+    }
+
+    /**
+     * Parejas encontradas en la ltima bsqueda: la pareja i est formada por
+     * los sprites con identificadores pairs[2 * i] y pairs[2 * i + 1]. El array
+     * se reutiliza en cada bsqueda y puede ser mayor que 2 * getPairCount().
+     */
+    public final int[] getPairs()
+    {
+        return _pairs;
+    }
+
+    ///////////////////////////////////////////////////////////////////
+    //Mtodos privados
+
+    /**
+     * Duplica el tamao de los arrays por sprite
+     */
+    private void grow()
+    {
+        int oldCapacity = _sprites.length;
+        int capacity = oldCapacity * 2;
+
+        Sprite[] sprites = new Sprite[capacity];
+        int[] groups = new int[capacity];
+        int[] masks = new int[capacity];
+        int[] order = new int[capacity];
+        boolean[] inOrder = new boolean[capacity];
+
+        System.arraycopy(_sprites, 0, sprites, 0, oldCapacity);
+        System.arraycopy(_groups, 0, groups, 0, oldCapacity);
+        System.arraycopy(_masks, 0, masks, 0, oldCapacity);
+        System.arraycopy(_order, 0, order, 0, _size);
+        System.arraycopy(_inOrder, 0, inOrder, 0, oldCapacity);
+
+        _sprites = sprites;
+        _groups = groups;
+        _masks = masks;
+        _order = order;
+        _inOrder = inOrder;
+        _minX = new int[capacity];
+
+        //Slo se crece sin identificadores libres
+        _freeIds = new int[capacity];
+        for (int i = 0; i < oldCapacity; ++i)
+            _freeIds[i] = capacity - 1 - i;
+        _numFreeIds = oldCapacity;
+    }
+
+    ///////////////////////////////////////////////////////////////////
+    //Elementos privados
+
+    //Por identificador: sprite (null si est libre), grupo, mscara y borde
+    //izquierdo del rectngulo de colisin en la ltima bsqueda
+    private Sprite[] _sprites;
+    private int[] _groups;
+    private int[] _masks;
+    private int[] _minX;
+
+    //Identificadores de los sprites registrados ordenados por su borde
+    //izquierdo, incluidos los quitados desde la ltima bsqueda, y si cada
+    //identificador est en el orden
+    private int[] _order;
+    private int _size;
+    private boolean[] _inOrder;
+
+    //Nmero de sprites registrados
+    private int _count;
+
+    //Identificadores libres
+    private int[] _freeIds;
+    private int _numFreeIds;
+
+    //Parejas de la ltima bsqueda
+    private int[] _pairs;
+    private int _numPairs;
+}
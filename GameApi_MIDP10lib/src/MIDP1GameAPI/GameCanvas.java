@@ -177,8 +177,6 @@ public abstract class GameCanvas
     
     /**
      * Actualiza la pantalla con los graficos del backbuffer.
-     * <p>
-     * No se implementa la posibilidad de actualizar slo parte de la pantalla
      */
     public final void flushGraphics(){
         
@@ -186,6 +184,18 @@ public abstract class GameCanvas
         repaint();
         serviceRepaints();            
     }
+    
+    /**
+     * Actualiza slo una regin de la pantalla. paint() se llama con el
+     * rectngulo de clipping ajustado a la regin, as que slo hace falta
+     * dibujar lo que cae dentro de l (LayerManager.paint() descarta el resto
+     * de capas).
+     */
+    public final void flushGraphics(int x, int y, int width, int height){
+        
+        repaint(x, y, width, height);
+        serviceRepaints();
+    }
    
     /**
      * Mtodo para dibujado en pantalla.
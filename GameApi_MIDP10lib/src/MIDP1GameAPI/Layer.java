@@ -32,10 +32,28 @@ public abstract class Layer {
     //el Layer es visible?
     protected boolean _visible;
     
+    //el Layer no cambia mientras dura el nivel?
+    protected boolean _static;
+    
     //Dimensiones del Layer
     protected int _height;
     protected int _width;
     
+    //Primer LayerManager al que se ha aadido la capa y su posicin en l
+    LayerManager _manager;
+    int _managerIndex;
+    
+    //Celdas que ocupa la capa en el ndice espacial de _manager, si est en
+    //l, y ltima bsqueda en la que se ha encontrado
+    int _gridMinX, _gridMinY, _gridMaxX, _gridMaxY;
+    boolean _inGrid;
+    int _gridStamp;
+    
+    //Rectngulo y visibilidad de la capa la ltima vez que _manager anot
+    //sus regiones a redibujar
+    int _dirtyX, _dirtyY, _dirtyWidth, _dirtyHeight;
+    boolean _dirtyVisible;
+    
     ///////////////////////////////////////////////////////////////////////////
     // Mtodos
     ///////////////////////////////////////////////////////////////////////////
@@ -53,6 +71,8 @@ public abstract class Layer {
     {
         _posx = x;
         _posy = y;
+        
+        layerChanged();
     }
     
     /**
@@ -63,6 +83,8 @@ public abstract class Layer {
         //TODO:  Necesario comprobar overflow (Integer.MAX_VALUE) y underflow (Integer.MIN_VALUE) ?
         _posx += dx;
         _posy += dy;
+        
+        layerChanged();
     }
     
     /**
@@ -70,7 +92,35 @@ public abstract class Layer {
      */
     public void setVisible (boolean visible)
     {
+        if (_visible == visible)
+            return;
+        
         _visible = visible;
+        layerChanged();
+    }
+    
+    /**
+     * Marca la capa como esttica: su contenido y su posicin no cambian
+     * mientras dura el nivel. LayerManager puede guardar las capas estticas
+     * del fondo en una imagen (ver LayerManager.setStaticCache()).
+     */
+    public void setStatic(boolean isStatic)
+    {
+        if (_static == isStatic)
+            return;
+        
+        _static = isStatic;
+        
+        if (_manager != null)
+            _manager.invalidateStaticCache();
+    }
+    
+    /**
+     * Indica si la capa est marcada como esttica
+     */
+    public final boolean isStatic()
+    {
+        return _static;
     }
     
     /**
@@ -112,4 +162,74 @@ public abstract class Layer {
     {
         return _visible;
     }
+
+    /**
+     * Indica si la capa puede dibujar algo dentro del rectngulo indicado, en
+     * el mismo sistema de coordenadas que su posicin. LayerManager no dibuja
+     * las capas que quedan fuera de la ventana de visualizacin, as que las
+     * clases derivadas que dibujan fuera de su posicin y tamao deben
+     * redefinirlo.
+     */
+    protected boolean intersects(int x, int y, int width, int height)
+    {
+        int boundsX = getBoundsX();
+        int boundsY = getBoundsY();
+        
+        return (boundsX + _width > x) && (boundsX - x < width) &&
+               (boundsY + _height > y) && (boundsY - y < height);
+    }
+    
+    /**
+     * Esquina superior izquierda del rectngulo de getWidth() x getHeight()
+     * en el que se dibuja la capa
+     */
+    int getBoundsX()
+    {
+        return _posx;
+    }
+    
+    int getBoundsY()
+    {
+        return _posy;
+    }
+    
+    /**
+     * Indica si la capa se dibuja slo dentro de su rectngulo, de forma que
+     * LayerManager pueda guardarla en su ndice espacial
+     */
+    boolean hasBounds()
+    {
+        return true;
+    }
+    
+    /**
+     * Avisa al LayerManager de la capa de que su posicin, su tamao, su
+     * visibilidad o lo que dibuja han cambiado
+     */
+    final void layerChanged()
+    {
+        if (_manager != null)
+            _manager.layerChanged(this);
+    }
+    
+    /**
+     * Avisa al LayerManager de la capa de que ha cambiado lo que dibuja en
+     * un rectngulo, en el sistema de coordenadas de su posicin
+     */
+    final void regionChanged(int x, int y, int width, int height)
+    {
+        if (_manager != null)
+            _manager.regionChanged(this, x, y, width, height);
+    }
+    
+    /**
+     * Indica si el LayerManager de la capa necesita saber qu regiones de
+     * la capa cambian: si anota las regiones a redibujar o guarda la capa en
+     * su cach de capas estticas
+     */
+    final boolean hasDirtyRegions()
+    {
+        return (_manager != null) && 
+               ( (_manager._dirtyRegions != null) || (_static && _manager._staticCache) );
+    }
 }
@@ -17,6 +17,9 @@ import javax.microedition.lcdui.*;
  *
  * Las capas se dibujan segn el orden de insercin, dibujando primero las  
  * capas insertadas en ltima posicin (LIFO)
+ *
+ * Las capas del fondo marcadas como estticas pueden dibujarse desde una
+ * imagen que las contiene ya compuestas (ver setStaticCache()).
 
  * Implementa una funcionalidad semejante a la clase LayerManager definida en 
  * MIDP 2.0
@@ -24,43 +27,20 @@ import javax.microedition.lcdui.*;
  */
 public class LayerManager 
 {
-/**
- * Nodo para guardar las diferentes layers en un LayerManager
- */
-private class ListNode 
-{
-    //Layer de juego
-    public Layer layer;
-    
-    //Lista doblemente enlazada
-    public ListNode next;
-    public ListNode last;
-    
-    ListNode() {
-        layer = null;
-        next = last = null;
-    }
-    
-    ListNode(Layer l) {
-        layer = l;
-        next = last = null;
-    }
-}
-
     /**
      * Crea un nuevo LayerManager
      **/
     public LayerManager() 
     {
-        //Inicializamos a null las referencias a los elementos de la lista
-        _firstElement = _lastElement = null;
+        _layers = new Layer[INITIAL_CAPACITY];
+        _dirtyRects = new int[4];
         
         _VWwidth = _VWheight = Integer.MAX_VALUE;
     }
     
     /**
      * Aade una capa al layerManager al final de la lista, lo que a efectos prcticos
-     * equivale a dibujarla por encima de todas las dems.
+     * equivale a dibujarla por debajo de todas las dems.
      */
     public void append(Layer l) 
     {
@@ -75,27 +55,7 @@ private class ListNode
         //Eliminamos el layer si existia antes en la lista
         remove(l);
         
-        //Creamos un nuevo nodo con el layer
-        itr = new ListNode(l);
-        
-        //Lo introducimos al final de la lista
-        //Si la lista esta vacia es un caso especial
-        if (_numLayers == 0)
-            _firstElement = _lastElement = itr;
-        
-        //Lista no vacia
-        else
-        {
-            itr.last = _lastElement;
-            _lastElement.next = itr;
-            _lastElement = itr;
-        }
-        
-        //Actualizamos contador de layers
-        _numLayers++;
-        
-        //Eliminamos referencias
-        itr = null;
+        insertAt(l, _numLayers);
     }
     
     /**
@@ -115,92 +75,33 @@ private class ListNode
         if (index < 0 || index >= _numLayers )
             throw new IndexOutOfBoundsException();
 //#endif         
-        //Borramos el layer por si estaba insertado
-        remove(l);
+        int oldIndex = indexOf(l);
         
-        //Recorremos la lista completamente. Al llegar al ndice indicado 
-        //insertamos el layer, y
-        
-        //Recorremos la lista
-        int i = 0;
-        itr = _firstElement;
-        ListNode tmpNode;
+        //Si el layer ya est en esa posicin no hacemos nada
+        if (oldIndex == index)
+            return;
         
-        while (itr != null)
+        //Si ya estaba insertado slo desplazamos las capas entre las dos
+        //posiciones
+        if (oldIndex != -1)
         {
+            if (oldIndex < index)
+                System.arraycopy(_layers, oldIndex + 1, _layers, oldIndex, index - oldIndex);
+            else
+                System.arraycopy(_layers, index, _layers, index + 1, oldIndex - index);
             
-            //Si llegamos al ndice insertamos el nodo
-            if (index == i)
-            {
-                //Si intentamos insertar el mismo layer en la misma posicin 
-                //retornamos sin hacer nada
-                if (itr.layer == l)
-                {
-                    //Borramos referencias
-                    itr = null;
-                    return;
-                }
-                
-                //Creamos el nuevo nodo que contrendra al layer
-                tmpNode= new ListNode(l);
-                
-                //Caso: primer elemento
-                if (itr == _firstElement)
-                {
-                    tmpNode.next = _firstElement;
-                    itr.last = tmpNode;
-                    
-                    //El nodo insertado es ahora el primer elemento
-                    _firstElement = tmpNode;
-                }
-                //Caso: ltimo elemento
-                else if (itr == _lastElement)
-                {
-                    //Enlazamos el nuevo nodo
-                    tmpNode.last = itr.last;
-                    tmpNode.next = itr;
-                    
-                    itr.last.next = tmpNode;
-                    itr.last = tmpNode;
-                }
-                //Inserccin en otra posicin
-                else
-                {
-                    tmpNode.last = itr.last;
-                    tmpNode.next = itr;
-                    
-                    //Insertamos el layer
-                    itr.last.next = tmpNode;
-                    itr.last = tmpNode;
-                    
-
-                }
-                
-                //Actualizamos contador de layers
-                _numLayers++;
-            }
+            _layers[index] = l;
+            updateIndices(Math.min(oldIndex, index), Math.max(oldIndex, index));
             
-            //siguiente elemento
-            itr = itr.next;
-            i++;
-        }
-        
-        //Caso especial: si insertamos en la ltima posicin y el layer estaba
-        //repetido, hay que insertar el elemento al final de la cola
-        if (i == _numLayers && _lastElement.layer != l)
-        {
-            tmpNode = new ListNode(l);
+            //La capa cambia de profundidad
+            if (_dirtyRegions != null)
+                invalidateLayer(l);
             
-            _lastElement.next = tmpNode;
-            tmpNode.last = _lastElement;
-            _lastElement = tmpNode;
-            
-            //Actualizamos contador de layers
-            _numLayers++;
+            _staticValid = false;
+            return;
         }
         
-        //Eliminamos referencias
-        itr = null;
+        insertAt(l, index);
     }
     
     /**
@@ -216,26 +117,24 @@ private class ListNode
         if (index < 0 || index >= _numLayers )
             throw new IndexOutOfBoundsException();
         //#endif         
-        //Recorremos el bucle, al salir del mismo itr apunta al nodo con el 
-        //layer requerido
-        int i = 0;
-        itr = _firstElement;
-        
-        //Siempre encontraremos una coincidencia con el indice ya que hemos
-        //comprobado la validez de index al inicio del mtodo.
-        while (i != index)
-        {
-            itr = itr.next;
-            i++;
-        }
-        
-        //temporal para el layer
-        Layer tmp = itr.layer;
+        return _layers[index];
+    }
+    
+    /**
+     * Devuelve la posicin de una capa, o -1 si no est en el LayerManager
+     */
+    public int indexOf(Layer l)
+    {
+        //Cada capa guarda su posicin en el primer LayerManager al que se
+        //aadi; si est en varios, en los dems hay que buscarla
+        if (l._manager == this)
+            return l._managerIndex;
         
-        //Eliminamos referencias
-        itr = null;
+        for (int i = 0; i < _numLayers; ++i)
+            if (_layers[i] == l)
+                return i;
         
-        return tmp;
+        return -1;
     }
     
     /**
@@ -260,105 +159,404 @@ private class ListNode
         ch = g.getClipHeight();
         cw = g.getClipWidth();
         
-        //Fijamos el nuevo rectngulo de clipping con las coordenadas
-        //del viewWindow actual
-        g.setClip(x, y, _VWwidth, _VWheight);
+        //El nuevo rectngulo de clipping es la interseccin del anterior con
+        //el viewWindow actual. Los lmites se calculan con long porque el
+        //viewWindow por defecto mide Integer.MAX_VALUE
+        int left = Math.max(cx, x);
+        int top = Math.max(cy, y);
+        int right = (int) Math.min( (long) cx + cw, (long) x + _VWwidth );
+        int bottom = (int) Math.min( (long) cy + ch, (long) y + _VWheight );
         
-        //Recorremos la lista al reves
-        itr = _lastElement;
+        if ( (left >= right) || (top >= bottom) )
+            return;
         
-        while (itr != null)
+        g.setClip(left, top, right - left, bottom - top);
+        
+        //Las capas estticas del fondo se dibujan de una vez desde la cach
+        int staticStart = _numLayers;
+        
+        if ( _staticCache && (_VWwidth <= MAX_STATIC_SIZE) && (_VWheight <= MAX_STATIC_SIZE) )
         {
-            //Slo dibujamos si el layer es visible
-            if (itr.layer._visible)
-            {
-                //movemos el layer en la posicin           
-                itr.layer.setPosition(itr.layer._posx -_VWx + x, itr.layer._posy - _VWy + y);
-                
-                //Dibujamos el layer
-                itr.layer.paint(g);
-                
-                //Dejamos la posicin del layer como estaba
-                itr.layer.setPosition(itr.layer._posx +_VWx - x, itr.layer._posy + _VWy - y);                
+            while ( (staticStart > 0) && _layers[staticStart - 1]._static )
+                --staticStart;
             
+            if (staticStart < _numLayers)
+            {
+                updateStaticCache(staticStart);
+                g.drawImage(_staticImage, x, y, Graphics.TOP | Graphics.LEFT);
             }
-            
-            //Siguiente elemento
-            itr = itr.last;
         }
         
+        //Dibujamos con el origen desplazado para que la esquina de la ventana
+        //quede en (x, y), sin cambiar la posicin de cada capa
+        g.translate(x - _VWx, y - _VWy);
+        
+        //Recorremos al revs las capas visibles que se ven en el clipping
+        search(left - x + _VWx, top - y + _VWy, right - left, bottom - top);
+        
+        for (int i = _numFound - 1; i >= 0; --i)
+            if (_found[i] < staticStart)
+                _layers[_found[i]].paint(g);
+        
+        g.translate(_VWx - x, _VWy - y);
+        
         //Reestablecemos el rectngulo de clipping
         g.setClip(cx, cy, cw, ch);
     }
    
     /**
-     * Elimina una capa determinada
+     * Activa un ndice espacial para escenas con muchas capas: una rejilla
+     * uniforme de celdas de cellSize x cellSize pxeles, guardadas en una
+     * tabla hash de numBuckets cubetas (se redondea a potencia de 2), que
+     * registra en qu celdas est cada capa y se actualiza al moverlas. As
+     * paint(), getLayersIn() y getLayersAt() slo comprueban las capas de las
+     * celdas que tocan el rectngulo buscado.
+     * <p>
+     * Se quedan fuera de la rejilla, y se comprueban siempre, las capas que
+     * ocupan ms de 16 celdas (como los TiledLayer), los SpriteBatch y las
+     * capas que se aadieron antes a otro LayerManager. Con cellSize 0 se
+     * elimina el ndice.
      */
-    public void remove(Layer l) 
+    public void setSpatialIndex(int cellSize, int numBuckets)
     {
-        //Comprobamos errores en los argumentos
         //#if DEBUG
-//#         if (l == null)
-//#             throw new NullPointerException("LayerManager::remove - Layer arg is null");
+//#         if (cellSize < 0)
+//#             throw new IllegalArgumentException("LayerManager::setSpatialIndex - cellSize = " + cellSize);
+//#         if ( (cellSize > 0) && (numBuckets < 1) )
+//#             throw new IllegalArgumentException("LayerManager::setSpatialIndex - numBuckets = " + numBuckets);
         //#else
-        if (l == null)
+        if ( (cellSize < 0) || ( (cellSize > 0) && (numBuckets < 1) ) )
+            throw new IllegalArgumentException();
+        //#endif
+        
+        //Las capas dejan de estar en la rejilla anterior
+        for (int i = 0; i < _numLayers; ++i)
+            if (_layers[i]._manager == this)
+                _layers[i]._inGrid = false;
+        
+        _cellSize = cellSize;
+        _numUnindexed = 0;
+        
+        if (cellSize == 0)
+        {
+            _buckets = null;
+            _entryLayers = null;
+            _entryNext = null;
+            _unindexed = null;
+            return;
+        }
+        
+        int size = 1;
+        while (size < numBuckets)
+            size <<= 1;
+        
+        _buckets = new int[size];
+        for (int i = 0; i < size; ++i)
+            _buckets[i] = -1;
+        
+        _entryLayers = new Layer[INITIAL_CAPACITY];
+        _entryNext = new int[INITIAL_CAPACITY];
+        for (int i = 0; i < INITIAL_CAPACITY; ++i)
+            _entryNext[i] = i + 1;
+        _entryNext[INITIAL_CAPACITY - 1] = -1;
+        _freeEntry = 0;
+        
+        _unindexed = new Layer[INITIAL_CAPACITY];
+        
+        for (int i = 0; i < _numLayers; ++i)
+            indexLayer(_layers[i]);
+    }
+    
+    /**
+     * Tamao de las celdas del ndice espacial, o 0 si no hay ndice
+     */
+    public final int getSpatialIndexCellSize()
+    {
+        return _cellSize;
+    }
+    
+    /**
+     * Busca las capas visibles que se dibujan dentro del rectngulo indicado,
+     * en el sistema de coordenadas de las capas, y las guarda en result (como
+     * mximo result.length) en orden: primero la de encima.
+     *
+     * @return nmero de capas encontradas
+     */
+    public int getLayersIn(int x, int y, int width, int height, Layer[] result)
+    {
+        //#if DEBUG
+//#         if (result == null)
+//#             throw new NullPointerException("LayerManager::getLayersIn - result arg is null");
+        //#else
+        if (result == null)
            throw new NullPointerException();
-        //#endif         
-        //Caso especial: si slo hay un elemento en la lista y hay coincidencia 
-        //lo borramos directamente
-        if (_numLayers == 1 )
+        //#endif
+        
+        search(x, y, width, height);
+        
+        for (int i = 0; (i < _numFound) && (i < result.length); ++i)
+            result[i] = _layers[_found[i]];
+        
+        return _numFound;
+    }
+    
+    /**
+     * Busca las capas visibles que se dibujan sobre un punto, como
+     * getLayersIn()
+     */
+    public int getLayersAt(int x, int y, Layer[] result)
+    {
+        return getLayersIn(x, y, 1, 1, result);
+    }
+    
+    /**
+     * Activa la anotacin de las regiones de la ventana que hay que
+     * redibujar, en como mximo maxRegions rectngulos (al superarlos se
+     * unen los que menos rea aaden). Con 0 se desactiva.
+     * <p>
+     * Se anotan automticamente el rectngulo anterior y el nuevo de las
+     * capas que se mueven, cambian de tamao, de visibilidad o de frame, las
+     * celdas modificadas de los TiledLayer y toda la ventana al cambiarla con
+     * setViewWindow(). Los cambios de los SpriteBatch y de las capas que se
+     * aadieron antes a otro LayerManager no se detectan: hay que anotarlos
+     * con invalidate().
+     * <p>
+     * Cada frame, tras actualizar las capas, flushDirtyRegions() redibuja
+     * slo esas regiones de la pantalla. paint() dibuja nicamente las capas
+     * que tocan el rectngulo de clipping, que en un repintado parcial es la
+     * regin a redibujar.
+     */
+    public void setDirtyRegionTracking(int maxRegions)
+    {
+        //#if DEBUG
+//#         if (maxRegions < 0)
+//#             throw new IllegalArgumentException("LayerManager::setDirtyRegionTracking - maxRegions = " + maxRegions);
+        //#else
+        if (maxRegions < 0)
+            throw new IllegalArgumentException();
+        //#endif
+        
+        _numDirtyRegions = 0;
+        
+        if (maxRegions == 0)
+        {
+            _dirtyRegions = null;
+            return;
+        }
+        
+        _dirtyRegions = new int[4 * maxRegions];
+        
+        for (int i = 0; i < _numLayers; ++i)
+            if (_layers[i]._manager == this)
+                recordDirtyBounds(_layers[i]);
+        
+        //Lo primero es dibujar la ventana completa
+        _allDirty = true;
+    }
+    
+    /**
+     * Anota un rectngulo a redibujar, en el sistema de coordenadas de las
+     * capas
+     */
+    public void invalidate(int x, int y, int width, int height)
+    {
+        if (_dirtyRegions != null)
+            addDirtyRegion(x, y, width, height);
+    }
+    
+    /**
+     * Anota toda la ventana para redibujarla
+     */
+    public void invalidateAll()
+    {
+        _allDirty = true;
+    }
+    
+    /**
+     * Nmero de regiones anotadas, sin recortar a la ventana (1 si hay que
+     * redibujar la ventana completa)
+     */
+    public int getDirtyRegionCount()
+    {
+        return _allDirty ? 1 : _numDirtyRegions;
+    }
+    
+    /**
+     * Devuelve las regiones a redibujar en coordenadas de pantalla, para un
+     * paint(g, x, y), recortadas a la ventana: la regin i ocupa rects[4 * i]
+     * a rects[4 * i + 3] (x, y, ancho, alto). Se guardan como mximo
+     * rects.length / 4.
+     *
+     * @return nmero de regiones
+     */
+    public int getDirtyRegions(int[] rects, int x, int y)
+    {
+        //#if DEBUG
+//#         if (rects == null)
+//#             throw new NullPointerException("LayerManager::getDirtyRegions - rects arg is null");
+        //#else
+        if (rects == null)
+           throw new NullPointerException();
+        //#endif
+        
+        if (_allDirty)
         {
-            //Si hay coincidencia borramos el layer
-            if (_firstElement.layer == l)
+            if (rects.length >= 4)
             {
-                //Borramos la referencia al layer.
-                _firstElement.layer = null;
-                _firstElement = _lastElement = null;
-                _numLayers = 0;
+                rects[0] = x;
+                rects[1] = y;
+                rects[2] = _VWwidth;
+                rects[3] = _VWheight;
             }
-            //si no la hay retornamos directamente
-            else return;
+            return 1;
         }
-
-        //Recorremos la lista y eliminamos el layer si hay una coincidencia
-        itr = _firstElement;
         
-        while (itr != null)
+        if (_dirtyRegions == null)
+            return 0;
+        
+        int count = 0;
+        int left, top, right, bottom;
+        
+        for (int i = 0; i < 4 * _numDirtyRegions; i += 4)
         {
-            //Hay coincidencia, eliminamos el layer
-            if (itr.layer == l)
+            left = Math.max(_dirtyRegions[i], _VWx);
+            top = Math.max(_dirtyRegions[i + 1], _VWy);
+            right = (int) Math.min( (long) _dirtyRegions[i] + _dirtyRegions[i + 2], (long) _VWx + _VWwidth );
+            bottom = (int) Math.min( (long) _dirtyRegions[i + 1] + _dirtyRegions[i + 3], (long) _VWy + _VWheight );
+            
+            if ( (left >= right) || (top >= bottom) )
+                continue;
+            
+            if (4 * count + 3 < rects.length)
             {
-                //Actualizamos lista
-                
-                //casos especiales: borrar el primer y el ultimo elemento de la lista
-                //Primer elemento
-                if (itr == _firstElement)
-                {
-                    itr.next.last = null;
-                    _firstElement = itr.next;
-                }
-                //segundo elemento
-                else if (itr == _lastElement)
-                {
-                    itr.last.next = null;
-                    _lastElement = itr.last;
-                }
-                
-                else
-                {
-                    itr.last.next = itr.next;
-                    itr.next.last = itr.last;
-                }
-                //Actualizamos contador de layers
-                _numLayers--;
+                rects[4 * count] = left - _VWx + x;
+                rects[4 * count + 1] = top - _VWy + y;
+                rects[4 * count + 2] = right - left;
+                rects[4 * count + 3] = bottom - top;
             }
-            
-            //Siguiente elemento
-            itr = itr.next;
+            count++;
+        }
+        
+        return count;
+    }
+    
+    /**
+     * Olvida las regiones a redibujar
+     */
+    public void clearDirtyRegions()
+    {
+        _numDirtyRegions = 0;
+        _allDirty = false;
+    }
+    
+    /**
+     * Repinta en el GameCanvas slo las regiones a redibujar, para unas capas
+     * que el canvas dibuja con paint(g, x, y), y las olvida. Se pide el
+     * repintado de todas las regiones y despus se atiende de una vez.
+     */
+    public void flushDirtyRegions(GameCanvas canvas, int x, int y)
+    {
+        int count = getDirtyRegions(_dirtyRects, x, y);
+        
+        //Si no caben todas las regiones agrandamos el array y las pedimos de
+        //nuevo
+        if (4 * count > _dirtyRects.length)
+        {
+            _dirtyRects = new int[4 * count];
+            getDirtyRegions(_dirtyRects, x, y);
+        }
+        
+        //Las regiones se olvidan antes de repintar por si el canvas anota
+        //otras al dibujar
+        clearDirtyRegions();
+        
+        for (int i = 0; i < 4 * count; i += 4)
+            canvas.repaint(_dirtyRects[i], _dirtyRects[i + 1], _dirtyRects[i + 2], _dirtyRects[i + 3]);
+        
+        if (count > 0)
+            canvas.serviceRepaints();
+    }
+    
+    /**
+     * Activa o desactiva la cach de capas estticas. Con ella, paint()
+     * compone las ltimas capas, las del fondo, mientras estn marcadas como
+     * estticas (ver Layer.setStatic()) en una imagen del tamao del
+     * viewWindow, rellena antes con backgroundColor, y dibuja slo esa
+     * imagen en lugar de todas ellas.
+     * <p>
+     * La imagen se reconstruye cuando una de esas capas cambia o se inserta,
+     * se quita o se marca otra. Si slo cambian algunas celdas de un
+     * TiledLayer se redibujan sus regiones, y al desplazar el viewWindow se
+     * copia la parte que sigue vindose y se dibujan slo las franjas nuevas,
+     * usando una segunda imagen.
+     * <p>
+     * Las imgenes mutables de MIDP 1.0 son opacas, as que slo se pueden
+     * componer las capas del fondo, y lo que no cubren queda de
+     * backgroundColor. Los cambios de los SpriteBatch y de las capas que se
+     * aadieron antes a otro LayerManager no se detectan: hay que avisar con
+     * invalidateStaticCache(). La cach no se usa mientras el viewWindow mida
+     * ms de 1024 pxeles de ancho o de alto.
+     */
+    public void setStaticCache(boolean enabled, int backgroundColor)
+    {
+        _staticCache = enabled;
+        _staticColor = backgroundColor;
+        _staticValid = false;
+        
+        //Liberamos las imgenes
+        if (!enabled)
+        {
+            _staticImage = null;
+            _staticBack = null;
+            _staticGraphics = null;
+            _staticBackGraphics = null;
         }
+    }
+    
+    /**
+     * Obliga a reconstruir la cach de capas estticas en el siguiente
+     * paint()
+     */
+    public void invalidateStaticCache()
+    {
+        _staticValid = false;
+    }
+    
+    /**
+     * Elimina una capa determinada
+     */
+    public void remove(Layer l) 
+    {
+        //Comprobamos errores en los argumentos
+        //#if DEBUG
+//#         if (l == null)
+//#             throw new NullPointerException("LayerManager::remove - Layer arg is null");
+        //#else
+        if (l == null)
+           throw new NullPointerException();
+        //#endif         
+        int index = indexOf(l);
+        
+        if (index == -1)
+            return;
         
-        //Eliminamos referencias
-        itr = null;        
+        if (_cellSize != 0)
+            unindexLayer(l);
+        
+        if (_dirtyRegions != null)
+            invalidateLayer(l);
+        
+        _staticValid = false;
+        
+        //Desplazamos las capas siguientes una posicin
+        _numLayers--;
+        System.arraycopy(_layers, index + 1, _layers, index, _numLayers - index);
+        _layers[_numLayers] = null;
+        
+        if (l._manager == this)
+            l._manager = null;
+        
+        updateIndices(index, _numLayers - 1);
     }
     
     /**
@@ -376,24 +574,653 @@ private class ListNode
                 throw new IllegalArgumentException();            
         //#endif
             
+        //Al cambiar la ventana hay que redibujarla entera
+        if ( (x != _VWx) || (y != _VWy) || (width != _VWwidth) || (height != _VWheight) )
+            _allDirty = true;
+        
         _VWx = x;
         _VWy = y;
         _VWwidth = width;
         _VWheight = height;
     }
     
+    ///////////////////////////////////////////////////////////////////
+    //Mtodos privados
+    
+    /**
+     * Inserta una capa que no est en el LayerManager en una posicin,
+     * desplazando las siguientes
+     */
+    private void insertAt(Layer l, int index)
+    {
+        //Slo se reserva memoria al llenarse el array
+        if (_numLayers == _layers.length)
+        {
+            Layer[] layers = new Layer[_layers.length * 2];
+            System.arraycopy(_layers, 0, layers, 0, _numLayers);
+            _layers = layers;
+        }
+        
+        System.arraycopy(_layers, index, _layers, index + 1, _numLayers - index);
+        _layers[index] = l;
+        _numLayers++;
+        
+        if (l._manager == null)
+            l._manager = this;
+        updateIndices(index, _numLayers - 1);
+        
+        _staticValid = false;
+        
+        if (_cellSize != 0)
+            indexLayer(l);
+        
+        if (_dirtyRegions != null)
+        {
+            if (l._manager == this)
+                recordDirtyBounds(l);
+            invalidateLayer(l);
+        }
+    }
+    
+    /**
+     * Actualiza la posicin guardada en las capas entre first y last
+     * (incluidas)
+     */
+    private void updateIndices(int first, int last)
+    {
+        for (int i = first; i <= last; ++i)
+            if (_layers[i]._manager == this)
+                _layers[i]._managerIndex = i;
+    }
+    
+    /**
+     * Guarda en _found las posiciones, de menor a mayor, de las capas visibles
+     * que se dibujan dentro del rectngulo
+     */
+    private void search(int x, int y, int width, int height)
+    {
+        if ( (_found == null) || (_found.length < _layers.length) )
+            _found = new int[_layers.length];
+        
+        _numFound = 0;
+        
+        if ( (width <= 0) || (height <= 0) )
+            return;
+        
+        Layer l;
+        
+        //Sin ndice, o si el rectngulo cubre ms celdas que cubetas tiene la
+        //tabla, es ms rpido recorrer todas las capas
+        if ( (_cellSize == 0) || !computeCells(x, y, width, height) ||
+             ( (long) (_cellMaxX - _cellMinX + 1) * (_cellMaxY - _cellMinY + 1) > _buckets.length ) )
+        {
+            for (int i = 0; i < _numLayers; ++i)
+            {
+                l = _layers[i];
+                if (l._visible && l.intersects(x, y, width, height))
+                    _found[_numFound++] = i;
+            }
+            
+            return;
+        }
+        
+        //Cada bsqueda marca las capas que encuentra para no repetirlas
+        int stamp = ++_searchStamp;
+        int e;
+        
+        for (int cy = _cellMinY; cy <= _cellMaxY; ++cy)
+            for (int cx = _cellMinX; cx <= _cellMaxX; ++cx)
+                for (e = _buckets[hashCell(cx, cy)]; e != -1; e = _entryNext[e])
+                {
+                    l = _entryLayers[e];
+                    
+                    if (l._gridStamp == stamp)
+                        continue;
+                    
+                    l._gridStamp = stamp;
+                    if (l._visible && l.intersects(x, y, width, height))
+                        _found[_numFound++] = l._managerIndex;
+                }
+        
+        for (int i = 0; i < _numUnindexed; ++i)
+        {
+            l = _unindexed[i];
+            if (l._visible && l.intersects(x, y, width, height))
+                _found[_numFound++] = indexOf(l);
+        }
+        
+        //Ordenamos por posicin (Shell sort, sin memoria adicional)
+        int gap, j, value;
+        
+        for (gap = 1; gap < _numFound / 3; gap = 3 * gap + 1)
+            ;
+        
+        for ( ; gap > 0; gap /= 3)
+            for (int i = gap; i < _numFound; ++i)
+            {
+                value = _found[i];
+                for (j = i; (j >= gap) && (_found[j - gap] > value); j -= gap)
+                    _found[j] = _found[j - gap];
+                _found[j] = value;
+            }
+    }
+    
+    /**
+     * Calcula en _cellMinX, _cellMinY, _cellMaxX y _cellMaxY las celdas que
+     * cubre un rectngulo. Devuelve false si el rectngulo se sale del rango
+     * de los enteros.
+     */
+    private boolean computeCells(int x, int y, int width, int height)
+    {
+        if ( ( (long) x + width - 1 > Integer.MAX_VALUE ) || ( (long) y + height - 1 > Integer.MAX_VALUE ) )
+            return false;
+        
+        _cellMinX = TiledLayer.floorDiv(x, _cellSize);
+        _cellMinY = TiledLayer.floorDiv(y, _cellSize);
+        _cellMaxX = TiledLayer.floorDiv(x + Math.max(width, 1) - 1, _cellSize);
+        _cellMaxY = TiledLayer.floorDiv(y + Math.max(height, 1) - 1, _cellSize);
+        
+        return true;
+    }
+    
+    /**
+     * Cubeta de una celda de la rejilla
+     */
+    private int hashCell(int cx, int cy)
+    {
+        return ( (cx * 73856093) ^ (cy * 19349663) ) & (_buckets.length - 1);
+    }
+    
+    /**
+     * Aade al ndice espacial una capa recin insertada
+     */
+    private void indexLayer(Layer l)
+    {
+        if ( (l._manager == this) && l.hasBounds() &&
+             computeCells(l.getBoundsX(), l.getBoundsY(), l._width, l._height) &&
+             ( (long) (_cellMaxX - _cellMinX + 1) * (_cellMaxY - _cellMinY + 1) <= MAX_LAYER_CELLS ) )
+        {
+            linkCells(l);
+            return;
+        }
+        
+        if (_numUnindexed == _unindexed.length)
+        {
+            Layer[] unindexed = new Layer[_unindexed.length * 2];
+            System.arraycopy(_unindexed, 0, unindexed, 0, _numUnindexed);
+            _unindexed = unindexed;
+        }
+        
+        _unindexed[_numUnindexed++] = l;
+    }
+    
+    /**
+     * Quita una capa del ndice espacial
+     */
+    private void unindexLayer(Layer l)
+    {
+        if ( (l._manager == this) && l._inGrid )
+        {
+            unlinkCells(l);
+            return;
+        }
+        
+        for (int i = 0; i < _numUnindexed; ++i)
+            if (_unindexed[i] == l)
+            {
+                _unindexed[i] = _unindexed[--_numUnindexed];
+                _unindexed[_numUnindexed] = null;
+                return;
+            }
+    }
+    
+    /**
+     * Actualiza el ndice espacial cuando una capa de la que este 
+     * LayerManager guarda la posicin se mueve o cambia de tamao
+     */
+    private void updateSpatialIndex(Layer l)
+    {
+        if (_cellSize == 0)
+            return;
+        
+        boolean fits = l.hasBounds() &&
+             computeCells(l.getBoundsX(), l.getBoundsY(), l._width, l._height) &&
+             ( (long) (_cellMaxX - _cellMinX + 1) * (_cellMaxY - _cellMinY + 1) <= MAX_LAYER_CELLS );
+        
+        //Caso ms frecuente: la capa sigue en las mismas celdas
+        if (fits && l._inGrid && (l._gridMinX == _cellMinX) && (l._gridMinY == _cellMinY) &&
+            (l._gridMaxX == _cellMaxX) && (l._gridMaxY == _cellMaxY) )
+            return;
+        
+        if (!fits && !l._inGrid)
+            return;
+        
+        //unindexLayer() no cambia las celdas calculadas
+        unindexLayer(l);
+        
+        if (fits)
+            linkCells(l);
+        else
+            indexLayer(l);
+    }
+    
+    /**
+     * Aade una entrada de la capa en cada celda de _cellMinX, _cellMinY, 
+     * _cellMaxX, _cellMaxY
+     */
+    private void linkCells(Layer l)
+    {
+        int e, bucket;
+        
+        for (int cy = _cellMinY; cy <= _cellMaxY; ++cy)
+            for (int cx = _cellMinX; cx <= _cellMaxX; ++cx)
+            {
+                if (_freeEntry == -1)
+                    growEntries();
+                
+                e = _freeEntry;
+                _freeEntry = _entryNext[e];
+                
+                bucket = hashCell(cx, cy);
+                _entryLayers[e] = l;
+                _entryNext[e] = _buckets[bucket];
+                _buckets[bucket] = e;
+            }
+        
+        l._gridMinX = _cellMinX;
+        l._gridMinY = _cellMinY;
+        l._gridMaxX = _cellMaxX;
+        l._gridMaxY = _cellMaxY;
+        l._inGrid = true;
+    }
+    
+    /**
+     * Quita las entradas de la capa de las celdas que ocupa
+     */
+    private void unlinkCells(Layer l)
+    {
+        int e, prev, bucket;
+        
+        for (int cy = l._gridMinY; cy <= l._gridMaxY; ++cy)
+            for (int cx = l._gridMinX; cx <= l._gridMaxX; ++cx)
+            {
+                bucket = hashCell(cx, cy);
+                prev = -1;
+                
+                //Varias celdas pueden compartir cubeta: en cada una quitamos
+                //una de las entradas de la capa
+                for (e = _buckets[bucket]; _entryLayers[e] != l; e = _entryNext[e])
+                    prev = e;
+                
+                if (prev == -1)
+                    _buckets[bucket] = _entryNext[e];
+                else
+                    _entryNext[prev] = _entryNext[e];
+                
+                _entryLayers[e] = null;
+                _entryNext[e] = _freeEntry;
+                _freeEntry = e;
+            }
+        
+        l._inGrid = false;
+    }
+    
+    /**
+     * Duplica el nmero de entradas de la rejilla
+     */
+    private void growEntries()
+    {
+        int oldCapacity = _entryLayers.length;
+        int capacity = oldCapacity * 2;
+        
+        Layer[] layers = new Layer[capacity];
+        int[] next = new int[capacity];
+        
+        System.arraycopy(_entryLayers, 0, layers, 0, oldCapacity);
+        System.arraycopy(_entryNext, 0, next, 0, oldCapacity);
+        
+        //Las nuevas entradas forman la lista de libres
+        for (int i = oldCapacity; i < capacity - 1; ++i)
+            next[i] = i + 1;
+        next[capacity - 1] = _freeEntry;
+        
+        _entryLayers = layers;
+        _entryNext = next;
+        _freeEntry = oldCapacity;
+    }
+    
+    /**
+     * Una capa de la que este LayerManager guarda la posicin ha cambiado
+     */
+    void layerChanged(Layer l)
+    {
+        if (_cellSize != 0)
+            updateSpatialIndex(l);
+        
+        //Una capa de la cach que se mueve o cambia obliga a reconstruirla
+        if ( l._static && (l._managerIndex >= _staticStart) )
+            _staticValid = false;
+        
+        if (_dirtyRegions == null)
+            return;
+        
+        if (!l.hasBounds())
+        {
+            _allDirty = true;
+            return;
+        }
+        
+        //Se redibujan el rectngulo anterior y el nuevo
+        if (l._dirtyVisible)
+            addDirtyRegion(l._dirtyX, l._dirtyY, l._dirtyWidth, l._dirtyHeight);
+        
+        recordDirtyBounds(l);
+        
+        if (l._dirtyVisible)
+            addDirtyRegion(l._dirtyX, l._dirtyY, l._dirtyWidth, l._dirtyHeight);
+    }
+    
+    /**
+     * Una capa de la que este LayerManager guarda la posicin ha cambiado lo
+     * que dibuja en un rectngulo
+     */
+    void regionChanged(Layer l, int x, int y, int width, int height)
+    {
+        if ( (_dirtyRegions != null) && l._visible )
+            addDirtyRegion(x, y, width, height);
+        
+        //Si la capa est en la cach se redibuja slo la regin
+        if ( _staticValid && l._static && (l._managerIndex >= _staticStart) && (width > 0) && (height > 0) )
+        {
+            if (_staticDirtyWidth == 0)
+            {
+                _staticDirtyX = x;
+                _staticDirtyY = y;
+                _staticDirtyWidth = width;
+                _staticDirtyHeight = height;
+            }
+            else
+            {
+                int right = Math.max(_staticDirtyX + _staticDirtyWidth, x + width);
+                int bottom = Math.max(_staticDirtyY + _staticDirtyHeight, y + height);
+                
+                _staticDirtyX = Math.min(_staticDirtyX, x);
+                _staticDirtyY = Math.min(_staticDirtyY, y);
+                _staticDirtyWidth = right - _staticDirtyX;
+                _staticDirtyHeight = bottom - _staticDirtyY;
+            }
+        }
+    }
+    
+    /**
+     * Pone al da la cach con las capas estticas desde la posicin start
+     * hasta la ltima, para la posicin actual del viewWindow
+     */
+    private void updateStaticCache(int start)
+    {
+        if ( (_staticImage == null) || (_staticImage.getWidth() != _VWwidth) || 
+             (_staticImage.getHeight() != _VWheight) )
+        {
+            _staticImage = Image.createImage(_VWwidth, _VWheight);
+            _staticGraphics = _staticImage.getGraphics();
+            _staticBack = null;
+            _staticBackGraphics = null;
+            _staticValid = false;
+        }
+        
+        if (start != _staticStart)
+        {
+            _staticStart = start;
+            _staticValid = false;
+        }
+        
+        int dx = _VWx - _staticX;
+        int dy = _VWy - _staticY;
+        
+        //Se reconstruye entera si no es vlida o si la ventana se ha
+        //desplazado ms que su tamao
+        if ( !_staticValid || (Math.abs(dx) >= _VWwidth) || (Math.abs(dy) >= _VWheight) )
+        {
+            _staticX = _VWx;
+            _staticY = _VWy;
+            _staticValid = true;
+            _staticDirtyWidth = 0;
+            
+            paintStatic(_staticGraphics, _VWx, _VWy, _VWwidth, _VWheight);
+            return;
+        }
+        
+        if ( (dx != 0) || (dy != 0) )
+        {
+            //Copiamos la parte que sigue vindose en la otra imagen, ya que
+            //una imagen no puede dibujarse sobre s misma
+            if (_staticBack == null)
+            {
+                _staticBack = Image.createImage(_VWwidth, _VWheight);
+                _staticBackGraphics = _staticBack.getGraphics();
+            }
+            
+            _staticBackGraphics.setClip(0, 0, _VWwidth, _VWheight);
+            _staticBackGraphics.drawImage(_staticImage, -dx, -dy, Graphics.TOP | Graphics.LEFT);
+            
+            //Intercambiamos las imgenes junto con sus Graphics
+            Image tmp = _staticImage;
+            _staticImage = _staticBack;
+            _staticBack = tmp;
+            
+            Graphics tmpGraphics = _staticGraphics;
+            _staticGraphics = _staticBackGraphics;
+            _staticBackGraphics = tmpGraphics;
+            
+            _staticX = _VWx;
+            _staticY = _VWy;
+            
+            //Dibujamos las franjas que aparecen
+            if (dx > 0)
+                paintStatic(_staticGraphics, _VWx + _VWwidth - dx, _VWy, dx, _VWheight);
+            else if (dx < 0)
+                paintStatic(_staticGraphics, _VWx, _VWy, -dx, _VWheight);
+            
+            if (dy > 0)
+                paintStatic(_staticGraphics, _VWx, _VWy + _VWheight - dy, _VWwidth, dy);
+            else if (dy < 0)
+                paintStatic(_staticGraphics, _VWx, _VWy, _VWwidth, -dy);
+        }
+        
+        if (_staticDirtyWidth != 0)
+        {
+            paintStatic(_staticGraphics, _staticDirtyX, _staticDirtyY, _staticDirtyWidth, _staticDirtyHeight);
+            _staticDirtyWidth = 0;
+        }
+    }
+    
+    /**
+     * Dibuja en la cach un rectngulo, en el sistema de coordenadas de las
+     * capas
+     */
+    private void paintStatic(Graphics g, int x, int y, int width, int height)
+    {
+        g.setClip(x - _staticX, y - _staticY, width, height);
+        g.setColor(_staticColor);
+        g.fillRect(x - _staticX, y - _staticY, width, height);
+        
+        g.translate(-_staticX, -_staticY);
+        
+        for (int i = _numLayers - 1; i >= _staticStart; --i)
+            if (_layers[i].intersects(x, y, width, height))
+                _layers[i].paint(g);
+        
+        g.translate(_staticX, _staticY);
+    }
+    
+    /**
+     * Guarda en la capa su rectngulo y visibilidad actuales
+     */
+    private void recordDirtyBounds(Layer l)
+    {
+        l._dirtyX = l.getBoundsX();
+        l._dirtyY = l.getBoundsY();
+        l._dirtyWidth = l._width;
+        l._dirtyHeight = l._height;
+        l._dirtyVisible = l._visible;
+    }
+    
+    /**
+     * Anota el rectngulo de una capa que se inserta, se quita o cambia de
+     * profundidad
+     */
+    private void invalidateLayer(Layer l)
+    {
+        if (!l.hasBounds())
+            _allDirty = true;
+        else if (l._manager == this)
+        {
+            if (l._dirtyVisible)
+                addDirtyRegion(l._dirtyX, l._dirtyY, l._dirtyWidth, l._dirtyHeight);
+        }
+        else if (l._visible)
+            addDirtyRegion(l.getBoundsX(), l.getBoundsY(), l._width, l._height);
+    }
+    
+    /**
+     * Aade un rectngulo a las regiones a redibujar, unindolo con las que
+     * se solapan o tocan con l
+     */
+    private void addDirtyRegion(int x, int y, int width, int height)
+    {
+        if (_allDirty || (width <= 0) || (height <= 0) )
+            return;
+        
+        int[] r = _dirtyRegions;
+        int right, bottom, best, i;
+        long cost, bestCost;
+        
+        while (true)
+        {
+            //Buscamos una regin que se solape o toque con el rectngulo
+            for (i = 0; i < 4 * _numDirtyRegions; i += 4)
+                if ( (r[i] <= x + width) && (x <= r[i] + r[i + 2]) &&
+                     (r[i + 1] <= y + height) && (y <= r[i + 1] + r[i + 3]) )
+                    break;
+            
+            //Si no hay ninguna y queda sitio se aade tal cual
+            if ( (i == 4 * _numDirtyRegions) && (_numDirtyRegions < r.length / 4) )
+            {
+                r[i] = x;
+                r[i + 1] = y;
+                r[i + 2] = width;
+                r[i + 3] = height;
+                _numDirtyRegions++;
+                return;
+            }
+            
+            //Si no, la unimos con la regin que menos rea aade
+            if (i == 4 * _numDirtyRegions)
+            {
+                best = 0;
+                bestCost = Long.MAX_VALUE;
+                
+                for (i = 0; i < 4 * _numDirtyRegions; i += 4)
+                {
+                    cost = (long) (Math.max(x + width, r[i] + r[i + 2]) - Math.min(x, r[i])) *
+                           (Math.max(y + height, r[i + 1] + r[i + 3]) - Math.min(y, r[i + 1])) -
+                           (long) r[i + 2] * r[i + 3];
+                    
+                    if (cost < bestCost)
+                    {
+                        bestCost = cost;
+                        best = i;
+                    }
+                }
+                
+                i = best;
+            }
+            
+            //La regin se quita y el rectngulo unido se vuelve a aadir, ya
+            //que puede solaparse con otras
+            right = Math.max(x + width, r[i] + r[i + 2]);
+            bottom = Math.max(y + height, r[i + 1] + r[i + 3]);
+            x = Math.min(x, r[i]);
+            y = Math.min(y, r[i + 1]);
+            width = right - x;
+            height = bottom - y;
+            
+            _numDirtyRegions--;
+            System.arraycopy(r, 4 * _numDirtyRegions, r, i, 4);
+        }
+    }
+    
     ///////////////////////////////////////////////////////////////////
     //Elementos privados
     
-    //Referencias a los elementos inicial y final de la lista
-    private ListNode _firstElement, _lastElement;
+    //Nmero inicial de capas del array
+    private static final int INITIAL_CAPACITY = 8;
     
-    //Variable temporal para recorrer la lista
-    private ListNode itr;
+    //Capas en orden: la primera se dibuja la ltima, encima de las dems
+    private Layer[] _layers;
     
     //Total de layers
     private int _numLayers;
     
+    //Capas de la ltima bsqueda, por su posicin
+    private int[] _found;
+    private int _numFound;
+    
+    //ndice espacial: tamao de las celdas (0 sin ndice) y primera entrada
+    //de cada cubeta de la tabla hash
+    private int _cellSize;
+    private int[] _buckets;
+    
+    //Entradas de la rejilla: capa y siguiente entrada de la cubeta, o de la
+    //lista de entradas libres
+    private Layer[] _entryLayers;
+    private int[] _entryNext;
+    private int _freeEntry;
+    
+    //Capas que no estn en la rejilla y se comprueban siempre
+    private Layer[] _unindexed;
+    private int _numUnindexed;
+    
+    //Celdas calculadas por computeCells()
+    private int _cellMinX, _cellMinY, _cellMaxX, _cellMaxY;
+    
+    //Marca de la ltima bsqueda, comn a todos los LayerManager porque
+    //una capa puede estar en varios
+    private static int _searchStamp;
+    
+    //Regiones a redibujar (x, y, ancho, alto), null si no se anotan, o si
+    //hay que redibujar toda la ventana
+    int[] _dirtyRegions;
+    private int _numDirtyRegions;
+    private boolean _allDirty;
+    
+    //Regiones en coordenadas de pantalla para flushDirtyRegions()
+    private int[] _dirtyRects;
+    
+    //Cach de capas estticas: si est activa, imagen con las capas desde
+    //_staticStart hasta la ltima, otra para desplazarla, color de fondo,
+    //posicin del viewWindow que contiene y si es vlida
+    boolean _staticCache;
+    private Image _staticImage;
+    private Image _staticBack;
+    
+    //Graphics de las dos imgenes, que se crean una sola vez
+    private Graphics _staticGraphics;
+    private Graphics _staticBackGraphics;
+    private int _staticColor;
+    private int _staticStart;
+    private int _staticX, _staticY;
+    private boolean _staticValid;
+    
+    //Rectngulo de la cach a redibujar, con ancho 0 si no hay
+    private int _staticDirtyX, _staticDirtyY, _staticDirtyWidth, _staticDirtyHeight;
+    
+    //Tamao mximo del viewWindow para usar la cach
+    private static final int MAX_STATIC_SIZE = 1024;
+    
+    //Celdas que puede ocupar una capa para guardarla en la rejilla
+    private static final int MAX_LAYER_CELLS = 16;
+    
     //Posicin y tamao del viewWindow
     int _VWx, _VWy, _VWwidth, _VWheight;
     
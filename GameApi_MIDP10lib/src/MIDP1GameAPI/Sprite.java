@@ -36,7 +36,8 @@ import javax.microedition.lcdui.*;
  */
 public class Sprite extends Layer {
     
-    //Las transformaciones slo estn disponibles para un movil que soporte NokiaUI
+    //Con NokiaUI las transformaciones se hacen al dibujar; sin l, los 
+    //frames transformados se crean en TransformCache
 //#if NOKIA_UI
 //#     public static final int TRANS_NONE = 0;
 //#     public static final int TRANS_ROT90 = DirectGraphics.ROTATE_90;
@@ -46,8 +47,35 @@ public class Sprite extends Layer {
 //#     public static final int TRANS_MIRROR_ROT90 = TRANS_ROT90 | DirectGraphics.FLIP_VERTICAL;
 //#     public static final int TRANS_MIRROR_ROT180 = DirectGraphics.FLIP_VERTICAL;
 //#     public static final int TRANS_MIRROR_ROT270 = TRANS_ROT270 | DirectGraphics.FLIP_VERTICAL;
+//#else
+    public static final int TRANS_NONE = 0;
+    public static final int TRANS_MIRROR_ROT180 = 1;
+    public static final int TRANS_MIRROR = 2;
+    public static final int TRANS_ROT180 = 3;
+    public static final int TRANS_MIRROR_ROT270 = 4;
+    public static final int TRANS_ROT90 = 5;
+    public static final int TRANS_ROT270 = 6;
+    public static final int TRANS_MIRROR_ROT90 = 7;
+    
+    //Transformacin de CollisionMask equivalente a cada TRANS_*
+    private static final int[] MASK_TRANSFORMS = {
+        0,
+        CollisionMask.MIRROR_X | CollisionMask.ROTATE_180,
+        CollisionMask.MIRROR_X,
+        CollisionMask.ROTATE_180,
+        CollisionMask.MIRROR_X | CollisionMask.ROTATE_270,
+        CollisionMask.ROTATE_90,
+        CollisionMask.ROTATE_270,
+        CollisionMask.MIRROR_X | CollisionMask.ROTATE_90
+    };
 //#endif
 
+    //Lados que chocan en moveAndCollide()
+    public static final int CONTACT_LEFT = 1;
+    public static final int CONTACT_RIGHT = 2;
+    public static final int CONTACT_TOP = 4;
+    public static final int CONTACT_BOTTOM = 8;
+
     /**
      * Crea un Sprite no animado con la imagen pasada como parmetro
      */
@@ -59,19 +87,8 @@ public class Sprite extends Layer {
         if (image == null) throw new NullPointerException();
 //#endif
 
-//#if NOKIA_UI
-//#        _frames =  new ImageSet(image,  image.getWidth(), image.getHeight() );
-//#        _transform = TRANS_NONE;
-//#else
-   _frames = image;
-//#endif
-       _frameSequence = new int[1];
-       _frameSequenceLength = 1;
-       _actualFrameIndex = _frameSequence[0];
-              
-       _collisionRectX = _collisionRectY = 0;
-       _collisionRectW = image.getWidth();
-       _collisionRectH = image.getHeight();       
+       //Un nico frame del tamao de la imagen
+       setImage(image, image.getWidth(), image.getHeight());
        
        //de Layer
        _posx = _posy = 0;
@@ -110,21 +127,55 @@ public class Sprite extends Layer {
             if (s == null) throw new NullPointerException();            
         //#endif
         
-        //#if NOKIA_UI
-//#         _transform = s._transform;
-//#         _refPixelNoTransformX = s._refPixelNoTransformX;
-//#         _refPixelNoTransformY = s._refPixelNoTransformY;
-        //#else
+        copyState(s);
+        
+        //Si el sprite usa un clip de animacin compartimos su secuencia, si
+        //no hacemos una copia
+        if (s._animationClip == null)
+        {
+            _frameSequence = new int[s._frameSequenceLength];
+            System.arraycopy( s._frameSequence, 0, _frameSequence,0, s._frameSequenceLength);
+        }
+    } 
+
+    /**
+     * Constructor usado por SpritePool: el estado se copia despus con 
+     * copyState()
+     */
+    Sprite()
+    {
+    }
+    
+    /**
+     * Copia el estado de otro sprite: frames, secuencia (compartida, sin 
+     * copiarla), animacin, pxel de referencia, transformacin, rectngulo
+     * y mscara de colisin, posicin y visibilidad. No reserva memoria, as
+     * que SpritePool lo usa para reiniciar sus sprites.
+     */
+    void copyState(Sprite s)
+    {
         //frames del sprite
         _frames = s._frames;
+        _transform = s._transform;
+        _refPixelNoTransformX = s._refPixelNoTransformX;
+        _refPixelNoTransformY = s._refPixelNoTransformY;
+//#ifndef NOKIA_UI
         _numColFrames = s._numColFrames;
         _numRowFrames = s._numRowFrames;
-        //#endif
-        _frameSequence = new int[s._frameSequenceLength];
-        System.arraycopy( s._frameSequence, 0, _frameSequence,0, s._frameSequenceLength);
+        _numTotalFrames = s._numTotalFrames;
+//#endif
+        _width = s._width;
+        _height = s._height;
+        
+        _frameSequence = s._frameSequence;
         _frameSequenceLength = s._frameSequenceLength;
         _actualFrameIndex = s._actualFrameIndex;
         
+        _animationClip = s._animationClip;
+        _animationTime = s._animationTime;
+        _animationDirection = s._animationDirection;
+        _animationFinished = s._animationFinished;
+        
         _refPixelX = s._refPixelX;
         _refPixelY = s._refPixelY;
         
@@ -132,8 +183,21 @@ public class Sprite extends Layer {
         _collisionRectY = s._collisionRectY;
         _collisionRectW = s._collisionRectW;
         _collisionRectH = s._collisionRectH;
-    } 
-
+        _collisionNoTransformX = s._collisionNoTransformX;
+        _collisionNoTransformY = s._collisionNoTransformY;
+        _collisionNoTransformW = s._collisionNoTransformW;
+        _collisionNoTransformH = s._collisionNoTransformH;
+        
+        _collisionMask = s._collisionMask;
+        
+        //de Layer
+        _posx = s._posx;
+        _posy = s._posy;
+        _visible = s._visible;
+        
+        layerChanged();
+    }
+    
 //#if NOKIA_UI
 //#     /** 
 //#     *Cambia el FrameSet que contiene los frames del sprite
@@ -149,16 +213,25 @@ public class Sprite extends Layer {
 //#      //Secuencia bsica al cambiar la imagen
 //#      for (int i=0; i < _frameSequenceLength; ++i)
 //#          _frameSequence[i] = i; 
+//#      _actualFrameIndex = 0;
+//#      _animationClip = null;
 //# 
 //#      //tamao del sprite
 //#      _width = imageSet.getFrameWidth();
 //#      _height = imageSet.getFrameHeight();
 //#      
 //#      //Rectngulo de colision
-//#      _collisionRectX = _collisionRectY = 0;
-//#      _collisionRectW = _width;
-//#      _collisionRectH = _height;
+//#      _collisionNoTransformX = _collisionNoTransformY = 0;
+//#      _collisionNoTransformW = _width;
+//#      _collisionNoTransformH = _height;
 //#      
+//#      //Ajustamos el tamao a la transformacin actual
+//#      applyTransform();
+//#      
+//#      //Mscara de colisin, compartida con el resto de sprites del ImageSet
+//#      _collisionMask = imageSet.getCollisionMask();
+//#      
+//#      layerChanged();
 //#     }
 //#endif
     
@@ -215,13 +288,23 @@ public class Sprite extends Layer {
      
      for (int i=0; i < _frameSequenceLength; ++i)
          _frameSequence[i] = i;
+     _actualFrameIndex = 0;
+     _animationClip = null;
      
 
      //Establecemos el rectngulo de colisin
-     _collisionRectX = _collisionRectY = 0;
-     _collisionRectW = _width;
-     _collisionRectH = _height;
-   
+     _collisionNoTransformX = _collisionNoTransformY = 0;
+     _collisionNoTransformW = _width;
+     _collisionNoTransformH = _height;
+     
+     //Ajustamos el tamao a la transformacin actual
+     applyTransform();
+     
+     //Sin Nokia UI no podemos leer los pxeles de la imagen: la mscara de
+     //colisin hay que definirla con setCollisionMask()
+     _collisionMask = null;
+     
+     layerChanged();
 //#endif
     }
     
@@ -268,6 +351,7 @@ public class Sprite extends Layer {
 //#endif
                 
         this._actualFrameIndex = frameIndex;
+        layerChanged();
     }
 
     /**
@@ -285,9 +369,9 @@ public class Sprite extends Layer {
         
            
 //#if NOKIA_UI
-//#             if ( (sequence[i] > _frames.getNumFrames()) || (sequence[1] < 0) )
+//#             if ( (sequence[i] >= _frames.getNumFrames()) || (sequence[i] < 0) )
 //#else
-        if ( (sequence[i] > _numTotalFrames) || (sequence[1] < 0) )
+        if ( (sequence[i] >= _numTotalFrames) || (sequence[i] < 0) )
 //#endif
                 
 //#if DEBUG
@@ -298,6 +382,118 @@ public class Sprite extends Layer {
     
     _frameSequence = sequence;
     _frameSequenceLength = sequence.length;
+    _actualFrameIndex = 0;
+    
+    //La nueva secuencia sustituye al clip de animacin
+    _animationClip = null;
+    
+    layerChanged();
+    }
+    
+    /**
+     * Anima el sprite con un clip: su secuencia de frames pasa a ser la del 
+     * clip (compartida, no se copia) y la animacin empieza desde el primer
+     * frame. Con null se deja de animar el sprite, manteniendo la secuencia.
+     * 
+     * @see #update(int)
+     */
+    public void setAnimationClip(AnimationClip clip)
+    {
+        if (clip != null)
+        {
+            //Comprobamos que los frames del clip existen en el sprite
+            for (int i = 0; i < clip._length; ++i)
+                if (clip._frames[i] >= getRawFrameCount())
+//#if DEBUG
+//#                     throw new ArrayIndexOutOfBoundsException("Sprite::setAnimationClip - frame " + clip._frames[i] + " out of range");
+//#else
+                    throw new ArrayIndexOutOfBoundsException();
+//#endif
+            
+            _frameSequence = clip._frames;
+            _frameSequenceLength = clip._length;
+            _actualFrameIndex = 0;
+        }
+        
+        _animationClip = clip;
+        _animationTime = 0;
+        _animationDirection = 1;
+        _animationFinished = false;
+        
+        layerChanged();
+    }
+    
+    /**
+     * Devuelve el clip de animacin del sprite, o null si no tiene
+     */
+    public final AnimationClip getAnimationClip()
+    {
+        return _animationClip;
+    }
+    
+    /**
+     * Avanza la animacin del clip los milisegundos indicados. Si ha pasado 
+     * ms tiempo que la duracin del frame actual avanza los frames que 
+     * correspondan, y los ciclos completos se saltan sin recorrerlos.
+     */
+    public void update(int elapsedMillis)
+    {
+        if ( (_animationClip == null) || _animationFinished || (elapsedMillis <= 0) )
+            return;
+        
+        AnimationClip clip = _animationClip;
+        int time = _animationTime + elapsedMillis;
+        int oldFrameIndex = _actualFrameIndex;
+        
+        //Tras un ciclo completo la animacin vuelve al mismo frame y sentido
+        if ( (clip._mode != AnimationClip.ONCE) && (time >= clip._cycleDuration) )
+            time %= clip._cycleDuration;
+        
+        while (time >= clip._durations[_actualFrameIndex])
+        {
+            time -= clip._durations[_actualFrameIndex];
+            
+            switch (clip._mode)
+            {
+                case AnimationClip.LOOP:
+                    if (++_actualFrameIndex == clip._length)
+                        _actualFrameIndex = 0;
+                    break;
+                    
+                case AnimationClip.PING_PONG:
+                    if ( (_actualFrameIndex + _animationDirection < 0) ||
+                         (_actualFrameIndex + _animationDirection >= clip._length) )
+                        _animationDirection = -_animationDirection;
+                    _actualFrameIndex += _animationDirection;
+                    break;
+                    
+                default:
+                    //ONCE: nos quedamos en el ltimo frame
+                    if (_actualFrameIndex == clip._length - 1)
+                    {
+                        _animationFinished = true;
+                        time = 0;
+                    }
+                    else
+                        _actualFrameIndex++;
+            }
+            
+            if (_animationFinished)
+                break;
+        }
+        
+        _animationTime = time;
+        
+        if (_actualFrameIndex != oldFrameIndex)
+            layerChanged();
+    }
+    
+    /**
+     * Indica si ha terminado un clip que se reproduce una sola vez
+     */
+    public final boolean isAnimationFinished()
+    {
+        return _animationFinished;
     }
             
     /**
@@ -325,6 +521,8 @@ public class Sprite extends Layer {
             
         if (_actualFrameIndex >= _frameSequenceLength)
             _actualFrameIndex = 0;
+        
+        layerChanged();
     }
     
     /**
@@ -335,6 +533,8 @@ public class Sprite extends Layer {
         _actualFrameIndex--;
         if (_actualFrameIndex < 0)
             _actualFrameIndex = _frameSequenceLength -1;    
+        
+        layerChanged();
     }
     
     /** 
@@ -342,25 +542,14 @@ public class Sprite extends Layer {
      */
     public void setPixelRefPosition(int x, int y)
     {
-        //recalculamos la posicin del rectngulo de colision
-        _collisionRectX += _refPixelX - x;
-        _collisionRectY += _refPixelY - y;
+        //Guardamos el pxel de referencia sin transformar
+        _refPixelNoTransformX = x;
+        _refPixelNoTransformY = y;
         
-        //Asignamos el pxel de referencia
-        _refPixelX = x;
-        _refPixelY = y;
-
-//#if NOKIA_UI
-//#         //Hacemos una copia
-//#         _refPixelNoTransformX = x;
-//#         _refPixelNoTransformY = y;
-//#         
-//#         //Si hay una transformacion aplicada es necesario aplicarla de nuevo
-//#         //para reajustar el pixel de referencia
-//#         if (_transform != this.TRANS_NONE)
-//#             this.setTransform(_transform);
-//#endif
-
+        //Aplicamos la transformacin para reajustar el pxel de referencia
+        //y el rectngulo de colisin
+        applyTransform();
+        layerChanged();
     }
 
     /**
@@ -377,164 +566,85 @@ public class Sprite extends Layer {
         if ( (width < 0) || (height < 0) ) throw new IllegalArgumentException();
 //#endif
     
-    _collisionRectX = x + _posx - _refPixelX;
-    _collisionRectY = y + _posy - _refPixelY;
-    _collisionRectW = width;
-    _collisionRectH = height;
+    _collisionNoTransformX = x;
+    _collisionNoTransformY = y;
+    _collisionNoTransformW = width;
+    _collisionNoTransformH = height;
+    
+    applyTransform();
+    }
+    
+    /**
+     * Fija la mscara de colisin usada en las comprobaciones de colisin a 
+     * nivel de pxel. Debe tener al menos tantos frames como el sprite y del 
+     * mismo tamao. Con null el sprite se considera opaco en todo su 
+     * rectngulo de colisin.
+     */
+    public void setCollisionMask(CollisionMask mask)
+    {
+        if (mask != null)
+        {
+            int frameWidth = getRawFrameWidth();
+            int frameHeight = getRawFrameHeight();
+            
+//#if DEBUG
+//#             if ( (mask.getFrameWidth() != frameWidth) || (mask.getFrameHeight() != frameHeight) )
+//#                 throw new IllegalArgumentException("Sprite::setCollisionMask - mask and frame size mismatch");
+//#             if (mask.getNumFrames() < getRawFrameCount())
+//#                 throw new IllegalArgumentException("Sprite::setCollisionMask - mask.getNumFrames() = " + mask.getNumFrames());
+//#else
+            if ( (mask.getFrameWidth() != frameWidth) || (mask.getFrameHeight() != frameHeight) ||
+                 (mask.getNumFrames() < getRawFrameCount()) )
+                throw new IllegalArgumentException();
+//#endif
+        }
+        
+        _collisionMask = mask;
         
+        //Sin Nokia UI la mscara decide qu pxeles se dibujan en los frames
+        //transformados
+        layerChanged();
     }
     
+    /**
+     * Devuelve la mscara de colisin del sprite, o null si no tiene
+     */
+    public final CollisionMask getCollisionMask()
+    {
+        return _collisionMask;
+    }
+    
+    /**
+     * Aplica una transformacin (TRANS_*) al sprite, ajustando su tamao, su
+     * pxel de referencia y su rectngulo de colisin a partir de los del
+     * frame sin transformar. Sin NokiaUI los frames transformados se crean
+     * la primera vez que se dibujan (ver TransformCache).
+     */
     public final void setTransform(int transform)
     {
-//#if NOKIA_UI
-//#         //Var temporal para intercambios
-//#         int temp;
-//#         
-//#          
-//#         //alguna transformacion anterior
-//#         int initialWidth = _frames.getFrameWidth();
-//#         int initialHeight = _frames.getFrameHeight();
-//# 
-//#        
-//#         //Si queremos eliminar la transformacion dejamos todo como estaba
-//#         if (transform == TRANS_NONE)
-//#         {
-//#             
-//#             //Dependiendo de la transformacion existente anterioromente
-//#             //Habr que intercambiar el alto y ancho del rectngulo de colision
-//#             if ( ( _transform == TRANS_ROT90 ) ||
-//#                  ( _transform == TRANS_MIRROR_ROT90 ) ||
-//#                  ( _transform == TRANS_MIRROR_ROT270 ) ||
-//#                  ( _transform == TRANS_ROT270 )
-//#                )
-//#             {
-//#                 temp = _collisionRectH;
-//#                 _collisionRectH = _collisionRectW;
-//#                 _collisionRectW = temp;
-//#             }
-//#             
-//#             //Recuperamos los valores iniciales de alto y ancho del sprite, as
-//#             //como el valor del pixel de referencia original
-//#             _width = initialWidth;
-//#             _height = initialHeight;
-//#             _refPixelX = _refPixelNoTransformX;
-//#             _refPixelY = _refPixelNoTransformY;
-//#             
-//#             //Aplicamos la transformacion
-//#             _transform = transform;
-//#             return;
-//#         }
-//#         
-//#         /**
-//#          * Pequea optimizacin
-//#          * Si el pxel de referencia esta situado en el centro del sprite, ste no
-//#          * cambia cualquiera que sea la transformacion, asi que solo tendremos que
-//#          * intercambiar el alto y el ancho en las transformaciones necesarias
-//#          * */
-//#         if ( (_refPixelY == (initialWidth / 2) )  && ( _refPixelX == (initialHeight /2)) )
-//#         {
-//#             //En estas transformaciones lo nico que hay que hacer es intercambiar
-//#             //el alto y ancho del sprite y de su rectngulo de colisiones            
-//#             switch(transform)
-//#             {                    
-//#                 case TRANS_ROT90:
-//#                 case TRANS_MIRROR_ROT90:                
-//#                 case TRANS_MIRROR_ROT270:
-//#                 case TRANS_ROT270:
-//# 
-//#                     temp = _width;
-//#                     _width = _height;
-//#                     _height = temp;
-//#                     
-//#                     temp = _collisionRectH;
-//#                     _collisionRectH = _collisionRectW;
-//#                     _collisionRectW = temp;
-//#                     break;           
-//#             }
-//#             
-//#             _transform = transform;
-//#             return;
-//#         }
-//#         
-//#         
-//#         /*
-//#          * Segn la transformacin puede ser necesario modificar tanto la posicin del 
-//#          * pxel de referencia como el alto y ancho del sprite y del rectangulo de colisin
-//#          */
-//#         switch(transform)
-//#         {
-//#             
-//#             case TRANS_MIRROR:
-//#                 _refPixelX = _width - _refPixelX ;
-//#                 break;
-//#                 
-//#             case TRANS_ROT90:
-//#                 temp = _refPixelY;
-//#                 _refPixelY = _refPixelX;
-//#                 _refPixelX = _height - temp;
-//#                                 
-//#                 temp = _width;
-//#                 _width = _height;
-//#                 _height = temp;
-//#                 break;
-//#                 
-//#             case TRANS_ROT180:
-//#                 _refPixelY = _height - _refPixelY;
-//#                 _refPixelX =  _width - _refPixelX;
-//#                 break;
-//#                 
-//#             case TRANS_ROT270:
-//#                 temp = _refPixelX;
-//#                 _refPixelX = _refPixelY;
-//#                 _refPixelY = _width - temp;
-//#                 
-//#                 temp = _width;
-//#                 _width = _height;
-//#                 _height = temp;
-//#                 
-//#                 temp = _collisionRectH;
-//#                 _collisionRectH = _collisionRectW;
-//#                 _collisionRectW = temp;                
-//#                 break;
-//#                 
-//#             case TRANS_MIRROR_ROT90:
-//#                 temp = _refPixelX;
-//#                 _refPixelY = _width - _refPixelX;
-//#                 _refPixelX = _height - _refPixelY;
-//#                 
-//#                 temp = _width;
-//#                 _width = _height;
-//#                 _height = temp;
-//#                 
-//#                 temp = _collisionRectH;
-//#                 _collisionRectH = _collisionRectW;
-//#                 _collisionRectW = temp;
-//#                 break;
-//#                 
-//#             case TRANS_MIRROR_ROT180:
-//#                 _refPixelY =  _height - _refPixelY;
-//#                 break;
-//#                 
-//#             case TRANS_MIRROR_ROT270:
-//#                 temp = _refPixelY;
-//#                 _refPixelY = _refPixelX;
-//#                 _refPixelX = temp;
-//#                 
-//#                 temp = _width;
-//#                 _width = _height;
-//#                 _height = temp;
-//#                 
-//#                 temp = _collisionRectH;
-//#                 _collisionRectH = _collisionRectW;
-//#                 _collisionRectW = temp;                
-//#                 break;
-//#             
-//#         }
-//#         _transform = transform;
+//#ifndef NOKIA_UI
+//#if DEBUG
+//#         if ( (transform < TRANS_NONE) || (transform > TRANS_MIRROR_ROT90) )
+//#             throw new IllegalArgumentException("Sprite::setTransform - arg transform = " + transform);
+//#else
+        if ( (transform < TRANS_NONE) || (transform > TRANS_MIRROR_ROT90) )
+            throw new IllegalArgumentException();
+//#endif
 //#endif
+        //Se parte siempre del frame sin transformar, as que aplicar la
+        //misma transformacin varias veces no cambia nada
+        _transform = transform;
+        applyTransform();
+        layerChanged();
     }
     
-    public boolean collidesWith(Image img, int x, int y, boolean b)
+    /**
+     * Comprueba si el sprite colisiona con una imagen situada en (x, y). Con
+     * pixelLevel se comparan adems los pxeles opacos del frame actual con 
+     * los de la imagen; sin Nokia UI no se pueden leer los pxeles de la 
+     * imagen y se considera opaca entera.
+     */
+    public boolean collidesWith(Image img, int x, int y, boolean pixelLevel)
     {
 //#if DEBUG
 //#         if (img == null) throw new NullPointerException("Sprite::collidesWith - image is null");
@@ -544,7 +654,27 @@ public class Sprite extends Layer {
         if (!this._visible)
             return false;
         
-                
+        if (pixelLevel)
+        {
+            int[] mask = null;
+            int words = 0;
+            
+//#if NOKIA_UI
+//#             //La mscara de la ltima imagen comprobada se guarda, ya que 
+//#             //normalmente se comprueba la misma imagen frame tras frame
+//#             if (img != _lastMaskImage)
+//#             {
+//#                 _lastImageMask = CollisionMask.createMask(img);
+//#                 _lastMaskImage = img;
+//#             }
+//#             mask = _lastImageMask.getMask(0, 0);
+//#             words = _lastImageMask.getWordsPerRow(0);
+//#endif
+            
+            return collidesWithPixels(mask, words, x, y, img.getWidth(), img.getHeight(),
+                    x, y, img.getWidth(), img.getHeight());
+        }
+        
         //Equivale a return hayColisionEjeHorizontal && hayColisionEjeVertical
         return checkAxisCollision(
                     _collisionRectX + (_collisionRectW / 2),   //Posicin sprite
@@ -562,7 +692,12 @@ public class Sprite extends Layer {
                 
     }
     
-    public boolean collidesWith(Sprite s, boolean b)
+    /**
+     * Comprueba si el sprite colisiona con otro. Con pixelLevel se comparan 
+     * adems los pxeles opacos de los frames actuales de ambos, dentro de la 
+     * interseccin de sus rectngulos de colisin.
+     */
+    public boolean collidesWith(Sprite s, boolean pixelLevel)
     {
 //#if DEBUG
 //#         if (s == null) throw new NullPointerException("Sprite::collidesWith - sprite is null");
@@ -574,6 +709,22 @@ public class Sprite extends Layer {
         if (!this._visible || !s._visible )
             return false;
         
+        if (pixelLevel)
+        {
+            int[] mask = null;
+            int words = 0;
+            
+            if (s._collisionMask != null)
+            {
+                int transform = s.getMaskTransform();
+                mask = s._collisionMask.getMask(s._frameSequence[s._actualFrameIndex], transform);
+                words = s._collisionMask.getWordsPerRow(transform);
+            }
+            
+            return collidesWithPixels(mask, words, s.getFrameX(), s.getFrameY(), s._width, s._height,
+                    s._collisionRectX, s._collisionRectY, s._collisionRectW, s._collisionRectH);
+        }
+        
         return checkAxisCollision(
                     _collisionRectX + (_collisionRectW / 2), 
                    s._collisionRectX  + (s._collisionRectW / 2),
@@ -588,7 +739,13 @@ public class Sprite extends Layer {
         
     }
     
-    public boolean collidesWith(TiledLayer t, boolean b)
+    /**
+     * Comprueba si el sprite colisiona con alguna celda del TiledLayer con 
+     * atributos de colisin (ver TiledLayer.setTileFlags()). Con pixelLevel
+     * slo hay colisin si algn pxel opaco del frame actual cae sobre una 
+     * de esas celdas.
+     */
+    public boolean collidesWith(TiledLayer t, boolean pixelLevel)
     {
 
 //#if DEBUG
@@ -601,38 +758,366 @@ public class Sprite extends Layer {
         if (!this._visible || !t._visible )
             return false;
       
-        //Comprobamos si el sprite est dentro de los lmites del TileLayer
-        if ( ( _collisionRectX > (t._posx + t._width ) ) 
-        || ( ( _collisionRectX + _collisionRectW ) < t._posx ) ) 
-            return false;
-       
-        if (  (_collisionRectY > (t._posy + t._height) ) 
-        || ( ( _collisionRectY + _collisionRectH ) < t._posy ) )
+        //Buscamos si los tiles que ocupa el rectngulo de colisin del sprite
+        //tienen algn atributo de colisin
+        if (t.getCollisionFlags(_collisionRectX, _collisionRectY, 
+                _collisionRectW, _collisionRectH) == 0)
             return false;
         
-       //Buscar los tiles que ocupa el sprite y buscar colisiones en ellos
-       tileInicialX = (_collisionRectX - t._posx) / t._tileWidth;
-       tileInicialY = (_collisionRectY - t._posy) / t._tileHeight;
-       tileFinalX = (_collisionRectX - t._posx + _collisionRectH) / t._tileWidth;
-       tileFinalY = (_collisionRectY - t._posy + _collisionRectW) / t._tileHeight;
-       
-       //Comprobamos que no nos vamos fuera de rango con los tiles
-       if (tileInicialX < 0) 
-           tileInicialX = 0;
-       if (tileInicialY < 0) 
-           tileInicialY = 0;
-       if (tileFinalX + (_collisionRectW / t._tileWidth) >= t._numColumns )
-           tileFinalX = t._numColumns-1;
-       if (tileFinalY + (_height / t._tileHeight) >= t._numRows )
-           tileFinalY = t._numRows-1;
-        
-       //Buscamos si los tiles que ocupa el sprite estn ocupados por un tile
-       for (int i = tileInicialX; i <= tileFinalX; ++i)
-           for (int j = tileInicialY; j <= tileFinalY; ++j)
-               if (t._tileMap[ (j * t._numColumns) + i] != 0)
-                   return true;
+        if (!pixelLevel || (_collisionMask == null) )
+            return true;
+        
+        //Comprobamos los pxeles del sprite sobre cada celda con atributos
+        int tileWidth = t.getCellWidth();
+        int tileHeight = t.getCellHeight();
+        int firstCol = Math.max(0, TiledLayer.floorDiv(_collisionRectX - t._posx, tileWidth));
+        int firstRow = Math.max(0, TiledLayer.floorDiv(_collisionRectY - t._posy, tileHeight));
+        int lastCol = Math.min(t.getColumns() - 1, TiledLayer.floorDiv(_collisionRectX + _collisionRectW - 1 - t._posx, tileWidth));
+        int lastRow = Math.min(t.getRows() - 1, TiledLayer.floorDiv(_collisionRectY + _collisionRectH - 1 - t._posy, tileHeight));
+        
+        for (int row = firstRow; row <= lastRow; ++row)
+            for (int col = firstCol; col <= lastCol; ++col)
+                if ( (t.getFlags(t.getCellValue(col, row)) != 0) &&
+                     collidesWithPixels(null, 0, 0, 0, 0, 0, 
+                        t._posx + col * tileWidth, t._posy + row * tileHeight, tileWidth, tileHeight) )
+                    return true;
+        
         return false;
     }
+
+    /**
+     * Mueve el sprite sin atravesar las celdas slidas de un TiledLayer.
+     * <p>
+     * Primero se mueve en horizontal y despus en vertical. En cada eje se
+     * recorren en orden las columnas (o filas) de celdas en las que entrara
+     * el rectngulo de colisin, y el movimiento se detiene justo antes de la
+     * primera que tenga alguna celda TILE_SOLID, as que un sprite rpido no
+     * puede saltarse una pared estrecha. Las celdas TILE_ONE_WAY slo
+     * detienen el movimiento hacia abajo cuando se entra en ellas desde
+     * arriba. Las celdas en las que ya est el sprite no lo detienen, de
+     * forma que puede salir de ellas.
+     * <p>
+     * Un TiledLayer invisible no detiene el movimiento, igual que en
+     * collidesWith(TiledLayer, boolean).
+     *
+     * @return lados del rectngulo de colisin que han chocado: combinacin de
+     * CONTACT_LEFT, CONTACT_RIGHT, CONTACT_TOP y CONTACT_BOTTOM. El
+     * desplazamiento realizado se consulta con getLastMoveX() y
+     * getLastMoveY().
+     */
+    public int moveAndCollide(int dx, int dy, TiledLayer t)
+    {
+//#if DEBUG
+//#         if (t == null) throw new NullPointerException("Sprite::moveAndCollide - TiledLayer is null");
+//#else
+       if (t == null) throw new NullPointerException();
+//#endif
+
+        int contacts = 0;
+
+        if (t._visible && (_collisionRectW > 0) && (_collisionRectH > 0) )
+        {
+            int tileWidth = t.getCellWidth();
+            int tileHeight = t.getCellHeight();
+            int x = _collisionRectX - t._posx;
+            int y = _collisionRectY - t._posy;
+            int w = _collisionRectW;
+            int h = _collisionRectH;
+            int first, last;
+
+            //Eje horizontal: columnas en las que entra el rectngulo
+            if (dx > 0)
+            {
+                first = Math.max(0, TiledLayer.floorDiv(x + w - 1, tileWidth) + 1);
+                last = Math.min(t.getColumns() - 1, TiledLayer.floorDiv(x + w - 1 + dx, tileWidth));
+
+                for (int col = first; col <= last; ++col)
+                    if ( (t.getCollisionFlags(t._posx + col * tileWidth, _collisionRectY, 1, h) & TiledLayer.TILE_SOLID) != 0 )
+                    {
+                        dx = col * tileWidth - (x + w);
+                        contacts |= CONTACT_RIGHT;
+                        break;
+                    }
+            }
+            else if (dx < 0)
+            {
+                first = Math.min(t.getColumns() - 1, TiledLayer.floorDiv(x, tileWidth) - 1);
+                last = Math.max(0, TiledLayer.floorDiv(x + dx, tileWidth));
+
+                for (int col = first; col >= last; --col)
+                    if ( (t.getCollisionFlags(t._posx + col * tileWidth, _collisionRectY, 1, h) & TiledLayer.TILE_SOLID) != 0 )
+                    {
+                        dx = (col + 1) * tileWidth - x;
+                        contacts |= CONTACT_LEFT;
+                        break;
+                    }
+            }
+
+            x += dx;
+
+            //Eje vertical, con la posicin horizontal ya corregida
+            if (dy > 0)
+            {
+                first = Math.max(0, TiledLayer.floorDiv(y + h - 1, tileHeight) + 1);
+                last = Math.min(t.getRows() - 1, TiledLayer.floorDiv(y + h - 1 + dy, tileHeight));
+
+                for (int row = first; row <= last; ++row)
+                    if ( (t.getCollisionFlags(t._posx + x, t._posy + row * tileHeight, w, 1) &
+                            (TiledLayer.TILE_SOLID | TiledLayer.TILE_ONE_WAY) ) != 0 )
+                    {
+                        dy = row * tileHeight - (y + h);
+                        contacts |= CONTACT_BOTTOM;
+                        break;
+                    }
+            }
+            else if (dy < 0)
+            {
+                first = Math.min(t.getRows() - 1, TiledLayer.floorDiv(y, tileHeight) - 1);
+                last = Math.max(0, TiledLayer.floorDiv(y + dy, tileHeight));
+
+                for (int row = first; row >= last; --row)
+                    if ( (t.getCollisionFlags(t._posx + x, t._posy + row * tileHeight, w, 1) & TiledLayer.TILE_SOLID) != 0 )
+                    {
+                        dy = (row + 1) * tileHeight - y;
+                        contacts |= CONTACT_TOP;
+                        break;
+                    }
+            }
+        }
+
+        _lastMoveX = dx;
+        _lastMoveY = dy;
+        move(dx, dy);
+
+        return contacts;
+    }
+
+    /**
+     * Desplazamiento horizontal realizado en la ltima llamada a
+     * moveAndCollide()
+     */
+    public final int getLastMoveX()
+    {
+        return _lastMoveX;
+    }
+
+    /**
+     * Desplazamiento vertical realizado en la ltima llamada a
+     * moveAndCollide()
+     */
+    public final int getLastMoveY()
+    {
+        return _lastMoveY;
+    }
+
+    /**
+     * Comprueba colisin a nivel de pxel con otro elemento, dentro de la
+     * interseccin del rectngulo de colisin del sprite con el rectngulo 
+     * (x, y, width, height). mask es la mscara del otro elemento situada en
+     * (maskX, maskY) con tamao maskWidth x maskHeight, o null si es opaco.
+     */
+    private boolean collidesWithPixels(int[] mask, int words, int maskX, int maskY, int maskWidth, int maskHeight,
+                                       int x, int y, int width, int height)
+    {
+        int x0 = Math.max(x, _collisionRectX);
+        int y0 = Math.max(y, _collisionRectY);
+        int x1 = Math.min(x + width, _collisionRectX + _collisionRectW);
+        int y1 = Math.min(y + height, _collisionRectY + _collisionRectH);
+        
+        //Fuera de las mscaras todos los pxeles son transparentes
+        int frameX = getFrameX();
+        int frameY = getFrameY();
+        int[] ownMask = null;
+        int ownWords = 0;
+        
+        if (_collisionMask != null)
+        {
+            int transform = getMaskTransform();
+            ownMask = _collisionMask.getMask(_frameSequence[_actualFrameIndex], transform);
+            ownWords = _collisionMask.getWordsPerRow(transform);
+            
+            x0 = Math.max(x0, frameX);
+            y0 = Math.max(y0, frameY);
+            x1 = Math.min(x1, frameX + _width);
+            y1 = Math.min(y1, frameY + _height);
+        }
+        
+        if (mask != null)
+        {
+            x0 = Math.max(x0, maskX);
+            y0 = Math.max(y0, maskY);
+            x1 = Math.min(x1, maskX + maskWidth);
+            y1 = Math.min(y1, maskY + maskHeight);
+        }
+        
+        if ( (x0 >= x1) || (y0 >= y1) )
+            return false;
+        
+        return CollisionMask.intersects(ownMask, ownWords, frameX, frameY, 
+                mask, words, maskX, maskY, x0, y0, x1 - x0, y1 - y0);
+    }
+    
+    /**
+     * El frame se dibuja desplazado segn el pxel de referencia
+     */
+    int getBoundsX()
+    {
+        return getFrameX();
+    }
+    
+    int getBoundsY()
+    {
+        return getFrameY();
+    }
+    
+    /**
+     * Posicin horizontal en la que se dibuja el frame actual
+     */
+    private int getFrameX()
+    {
+        return _posx - _refPixelX;
+    }
+    
+    /**
+     * Posicin vertical en la que se dibuja el frame actual
+     */
+    private int getFrameY()
+    {
+        return _posy - _refPixelY;
+    }
+    
+    /**
+     * Ancho de los frames sin transformar
+     */
+    private int getRawFrameWidth()
+    {
+//#if NOKIA_UI
+//#         return _frames.getFrameWidth();
+//#else
+        return _frames.getWidth() / _numColFrames;
+//#endif
+    }
+    
+    /**
+     * Alto de los frames sin transformar
+     */
+    private int getRawFrameHeight()
+    {
+//#if NOKIA_UI
+//#         return _frames.getFrameHeight();
+//#else
+        return _frames.getHeight() / _numRowFrames;
+//#endif
+    }
+    
+    /**
+     * Transformacin de CollisionMask equivalente a la del sprite
+     */
+    private int getMaskTransform()
+    {
+//#if NOKIA_UI
+//#         //DirectGraphics gira en sentido antihorario y CollisionMask en 
+//#         //sentido horario
+//#         int transform = ( (4 - (_transform & 0x1FF) / 90) & 3 ) << 2;
+//#         
+//#         if ( (_transform & DirectGraphics.FLIP_HORIZONTAL) != 0 )
+//#             transform |= CollisionMask.MIRROR_X;
+//#         if ( (_transform & DirectGraphics.FLIP_VERTICAL) != 0 )
+//#             transform |= CollisionMask.MIRROR_Y;
+//#         
+//#         return transform;
+//#else
+        return MASK_TRANSFORMS[_transform];
+//#endif
+    }
+    
+    /**
+     * Calcula el tamao, el pxel de referencia y el rectngulo de colisin
+     * aplicando la transformacin actual a los valores sin transformar
+     */
+    private void applyTransform()
+    {
+        int rawWidth = getRawFrameWidth();
+        int rawHeight = getRawFrameHeight();
+        int transform = getMaskTransform();
+        
+        //Los giros de 90 y 270 grados intercambian el alto y el ancho
+        if ( (transform & CollisionMask.ROTATE_90) != 0 )
+        {
+            _width = rawHeight;
+            _height = rawWidth;
+        }
+        else
+        {
+            _width = rawWidth;
+            _height = rawHeight;
+        }
+        
+        _refPixelX = transformX(_refPixelNoTransformX, _refPixelNoTransformY, rawWidth, rawHeight, transform);
+        _refPixelY = transformY(_refPixelNoTransformX, _refPixelNoTransformY, rawWidth, rawHeight, transform);
+        
+        //El rectngulo de colisin se transforma por dos esquinas opuestas
+        int x0 = transformX(_collisionNoTransformX, _collisionNoTransformY, rawWidth, rawHeight, transform);
+        int y0 = transformY(_collisionNoTransformX, _collisionNoTransformY, rawWidth, rawHeight, transform);
+        int x1 = transformX(_collisionNoTransformX + _collisionNoTransformW, 
+                            _collisionNoTransformY + _collisionNoTransformH, rawWidth, rawHeight, transform);
+        int y1 = transformY(_collisionNoTransformX + _collisionNoTransformW, 
+                            _collisionNoTransformY + _collisionNoTransformH, rawWidth, rawHeight, transform);
+        
+        _collisionRectX = getFrameX() + Math.min(x0, x1);
+        _collisionRectY = getFrameY() + Math.min(y0, y1);
+        _collisionRectW = Math.abs(x1 - x0);
+        _collisionRectH = Math.abs(y1 - y0);
+    }
+    
+    /**
+     * Coordenada horizontal del punto (x, y) de un frame de width x height
+     * tras aplicarle una transformacin de CollisionMask: primero los
+     * reflejos y despus el giro en sentido horario, como en TransformCache
+     */
+    private static int transformX(int x, int y, int width, int height, int transform)
+    {
+        if ( (transform & CollisionMask.MIRROR_X) != 0 )
+            x = width - x;
+        if ( (transform & CollisionMask.MIRROR_Y) != 0 )
+            y = height - y;
+        
+        switch (transform & CollisionMask.ROTATE_270)
+        {
+            case CollisionMask.ROTATE_90:
+                return height - y;
+            case CollisionMask.ROTATE_180:
+                return width - x;
+            case CollisionMask.ROTATE_270:
+                return y;
+        }
+        
+        return x;
+    }
+    
+    /**
+     * Coordenada vertical del punto (x, y) de un frame de width x height
+     * tras aplicarle una transformacin de CollisionMask
+     */
+    private static int transformY(int x, int y, int width, int height, int transform)
+    {
+        if ( (transform & CollisionMask.MIRROR_X) != 0 )
+            x = width - x;
+        if ( (transform & CollisionMask.MIRROR_Y) != 0 )
+            y = height - y;
+        
+        switch (transform & CollisionMask.ROTATE_270)
+        {
+            case CollisionMask.ROTATE_90:
+                return x;
+            case CollisionMask.ROTATE_180:
+                return height - y;
+            case CollisionMask.ROTATE_270:
+                return width - x;
+        }
+        
+        return y;
+    }
     
     private final boolean checkAxisCollision(int posObjA, int posObjB, int collideDist)
     {
@@ -642,8 +1127,8 @@ public class Sprite extends Layer {
     public void setPosition(int x, int y) 
     {
         //Actualizamos la posicin del rectngulo de colision
-        _collisionRectX = x + (_collisionRectX - _posx) - _refPixelX;
-        _collisionRectY = y + (_collisionRectY - _posy) - _refPixelY;
+        _collisionRectX += x - _posx;
+        _collisionRectY += y - _posy;
         
         //Actualizamos la posicion
         super.setPosition(x,y);
@@ -667,7 +1152,7 @@ public class Sprite extends Layer {
 //#if NOKIA_UI
 //#         DirectGraphics dg = DirectUtils.getDirectGraphics(g);
 //#         
-//#         dg.drawImage(_frames.getFrameAt(_actualFrameIndex),
+//#         dg.drawImage(_frames.getFrameAt(_frameSequence[_actualFrameIndex]),
 //#               _posx -_refPixelX, 
 //#               _posy -_refPixelY, 
 //#               Graphics.TOP|Graphics.LEFT ,  
@@ -680,14 +1165,64 @@ public class Sprite extends Layer {
         clipW = g.getClipWidth();
         clipH = g.getClipHeight();
         
-        //Fijamos el nuevo rectangulo de clipping
-        g.clipRect(_posx, _posy, _width, _height);
+        int x = _posx - _refPixelX;
+        int y = _posy - _refPixelY;
+        int frameWidth = getRawFrameWidth();
+        int frameHeight = getRawFrameHeight();
         int xOffset, yOffset;
-        xOffset = (_frameSequence[_actualFrameIndex] % _numColFrames ) * _width;
-        yOffset = (_frameSequence[_actualFrameIndex] % _numRowFrames ) * _height;
+        xOffset = (_frameSequence[_actualFrameIndex] % _numColFrames ) * frameWidth;
+        yOffset = (_frameSequence[_actualFrameIndex] / _numColFrames ) * frameHeight;
         
-        //Dibujamos el sprite con el frame determinado
-        g.drawImage(_frames,_posx - xOffset, _posy - yOffset, Graphics.TOP | Graphics.LEFT);
+        if (_transform == TRANS_NONE)
+        {
+            //Fijamos el nuevo rectangulo de clipping
+            g.clipRect(x, y, _width, _height);
+            
+            //Dibujamos el sprite con el frame determinado
+            g.drawImage(_frames, x - xOffset, y - yOffset, Graphics.TOP | Graphics.LEFT);
+        }
+        else
+        {
+            int maskTransform = MASK_TRANSFORMS[_transform];
+            Image frame = TransformCache.getFrame(_frames, xOffset, yOffset, frameWidth, frameHeight, maskTransform);
+            
+            if (_collisionMask == null)
+            {
+                //Sin mscara no sabemos qu pxeles son transparentes
+                g.clipRect(x, y, _width, _height);
+                g.drawImage(frame, x, y, Graphics.TOP | Graphics.LEFT);
+            }
+            else
+            {
+                //La imagen transformada es opaca: dibujamos slo las rachas
+                //de pxeles opacos de cada fila de la mscara
+                int[] mask = _collisionMask.getMask(_frameSequence[_actualFrameIndex], maskTransform);
+                int words = _collisionMask.getWordsPerRow(maskTransform);
+                int start;
+                
+                for (int row = 0; row < _height; ++row)
+                {
+                    start = -1;
+                    
+                    for (int col = 0; col <= _width; ++col)
+                    {
+                        if ( (col < _width) && 
+                             ( (mask[row * words + (col >> 5)] & (0x80000000 >>> (col & 31))) != 0 ) )
+                        {
+                            if (start < 0)
+                                start = col;
+                        }
+                        else if (start >= 0)
+                        {
+                            g.setClip(clipX, clipY, clipW, clipH);
+                            g.clipRect(x + start, y + row, col - start, 1);
+                            g.drawImage(frame, x, y, Graphics.TOP | Graphics.LEFT);
+                            start = -1;
+                        }
+                    }
+                }
+            }
+        }
         
         //Dejamos el rectngulo de clipping como estaba
         g.setClip(clipX, clipY, clipW, clipH);
@@ -708,13 +1243,6 @@ public class Sprite extends Layer {
 //#if NOKIA_UI
 //#     //Frames del Sprite
 //#     ImageSet _frames;
-//#     
-//#     //Transformacin aplicada al sprite
-//#     protected int _transform;  
-//#    
-//#    //Necesario para guardar el pixel de referencia sin modificar ya que 
-//#    //las tranformaciones lo cambian    
-//#     protected int _refPixelNoTransformX, _refPixelNoTransformY;    
 //#else
     //Frames del sprite
     protected Image _frames;
@@ -726,10 +1254,24 @@ public class Sprite extends Layer {
     protected int _numTotalFrames;
 //#endif
     
+    //Transformacin aplicada al sprite
+    protected int _transform;  
+   
+   //Necesario para guardar el pixel de referencia sin modificar ya que 
+   //las tranformaciones lo cambian    
+    protected int _refPixelNoTransformX, _refPixelNoTransformY;    
+    
     //Control de secuencia de frames
     protected int [] _frameSequence;    
     protected int _frameSequenceLength;
     protected int _actualFrameIndex;
+    
+    //Clip de animacin, tiempo transcurrido en el frame actual, sentido en
+    //ping-pong y fin de un clip que se reproduce una vez
+    protected AnimationClip _animationClip;
+    protected int _animationTime;
+    protected int _animationDirection;
+    protected boolean _animationFinished;
 
     //Posicin del pixel de referencia del sprite, inicialmente 0,0
     protected int _refPixelX, _refPixelY;
@@ -739,9 +1281,28 @@ public class Sprite extends Layer {
     //y TENIENDO en cuenta el pxel de referencia
     protected int _collisionRectX, _collisionRectY, _collisionRectW, _collisionRectH;
     
-    //Variables para agilizar el clculo de colisiones
-    //Cada una contiene la posicin del rectngulo de colisin teniendo en cuenta
-    //el pxel de referencia.
-    private int tileInicialX, tileFinalX, tileInicialY, tileFinalY;
+    //Rectngulo de colisin relativo al frame sin transformar, tal como se
+    //define con defineCollisionRectangle()
+    protected int _collisionNoTransformX, _collisionNoTransformY, _collisionNoTransformW, _collisionNoTransformH;
+    
+    //Mscara de colisin a nivel de pxel, null si el sprite es opaco
+    protected CollisionMask _collisionMask;
+    
+    //Desplazamiento realizado en el ltimo moveAndCollide()
+    protected int _lastMoveX, _lastMoveY;
+    
+    //Pool al que pertenece el sprite y su posicin en l
+    SpritePool _pool;
+    int _poolSlot;
+    
+    //CollisionWorld en el que est registrado el sprite y su identificador
+    CollisionWorld _world;
+    int _worldId;
+    
+//#if NOKIA_UI
+//#     //ltima imagen comprobada con collidesWith(Image, ...) y su mscara
+//#     private static Image _lastMaskImage;
+//#     private static CollisionMask _lastImageMask;
+//#endif
 }
 
@@ -0,0 +1,580 @@
+/*
+ * SpriteBatch.java
+ *
+ * @author Ricardo Amores Hernndez
+ */
+
+package MIDP1GameAPI;
+
+import javax.microedition.lcdui.*;
+
+//#if NOKIA_UI
+//# import com.nokia.mid.ui.*;
+//# import MIDP1GameAPI_Utils.ImageSet;
+//#endif
+
+/**
+ * Capa con muchos elementos iguales (partculas, disparos...) que comparten
+ * los frames de una imagen.
+ *
+ * En lugar de un objeto Sprite por elemento, la posicin, velocidad, frame,
+ * visibilidad y rectngulo de colisin de cada elemento se guardan en arrays
+ * paralelos de enteros, creados al crear la capa. Aadir y quitar elementos no
+ * reserva memoria, y un nico paint() dibuja todos los elementos visibles que
+ * caen dentro del rectngulo de clipping (la ventana de visualizacin cuando
+ * se dibuja desde un LayerManager).
+ * <p>
+ * Los elementos ocupan siempre las posiciones 0 a getCount() - 1: al quitar uno
+ * su lugar lo ocupa el ltimo, as que al quitar elementos durante un recorrido
+ * hay que recorrerlos desde el final. Las posiciones de los elementos son
+ * relativas a la posicin de la capa.
+ */
+public class SpriteBatch extends Layer
+{
+    /**
+     * Crea una capa para capacity elementos con los frames de una imagen
+     */
+    public SpriteBatch(Image image, int frameWidth, int frameHeight, int capacity)
+    {
+//#if DEBUG
+//#         if (image == null)
+//#             throw new NullPointerException("SpriteBatch::SpriteBatch - arg image is null");
+//#         if ( (frameWidth < 1) || ( (image.getWidth() % frameWidth) != 0 ) )
+//#             throw new IllegalArgumentException("SpriteBatch::SpriteBatch - arg frameWidth = " + frameWidth);
+//#         if ( (frameHeight < 1) || ( (image.getHeight() % frameHeight) != 0 ) )
+//#             throw new IllegalArgumentException("SpriteBatch::SpriteBatch - arg frameHeight = " + frameHeight);
+//#else
+        if (image == null)
+            throw new NullPointerException();
+        if ( (frameWidth < 1) || ( (image.getWidth() % frameWidth) != 0 ) ||
+             (frameHeight < 1) || ( (image.getHeight() % frameHeight) != 0 ) )
+            throw new IllegalArgumentException();
+//#endif
+
+//#if NOKIA_UI
+//#         _frames = new ImageSet(image, frameWidth, frameHeight);
+//#         _numFrames = _frames.getNumFrames();
+//#else
+        _frames = image;
+        _numColFrames = image.getWidth() / frameWidth;
+        _numFrames = _numColFrames * (image.getHeight() / frameHeight);
+//#endif
+
+        init(frameWidth, frameHeight, capacity);
+    }
+
+//#if NOKIA_UI
+//#     /**
+//#      * Crea una capa para capacity elementos con los frames de un ImageSet
+//#      */
+//#     public SpriteBatch(ImageSet imageSet, int capacity)
+//#     {
+//#if DEBUG
+//#         if (imageSet == null)
+//#             throw new NullPointerException("SpriteBatch::SpriteBatch - arg imageSet is null");
+//#else
+//#         if (imageSet == null)
+//#             throw new NullPointerException();
+//#endif
+//#
+//#         _frames = imageSet;
+//#         _numFrames = imageSet.getNumFrames();
+//#
+//#         init(imageSet.getFrameWidth(), imageSet.getFrameHeight(), capacity);
+//#     }
+//#endif
+
+    /**
+     * Define el rectngulo de colisin, relativo a la esquina superior
+     * izquierda del frame, que reciben los elementos que se aadan a partir
+     * de ahora. Por defecto es el frame completo.
+     */
+    public void defineCollisionRectangle(int x, int y, int width, int height)
+    {
+//#if DEBUG
+//#         if ( (width < 0) || (height < 0) )
+//#             throw new IllegalArgumentException("SpriteBatch::defineCollisionRectangle - width = " + width + " height = " + height);
+//#else
+        if ( (width < 0) || (height < 0) )
+            throw new IllegalArgumentException();
+//#endif
+
+        _defaultRectX = x;
+        _defaultRectY = y;
+        _defaultRectW = width;
+        _defaultRectH = height;
+    }
+
+    /**
+     * Aade un elemento visible, sin velocidad y con el rectngulo de
+     * colisin por defecto.
+     *
+     * @return posicin del elemento, o -1 si la capa est llena
+     */
+    public int add(int x, int y, int frame)
+    {
+//#if DEBUG
+//#         if ( (frame < 0) || (frame >= _numFrames) )
+//#             throw new IndexOutOfBoundsException("SpriteBatch::add - arg frame = " + frame);
+//#else
+        if ( (frame < 0) || (frame >= _numFrames) )
+            throw new IndexOutOfBoundsException();
+//#endif
+
+        if (_count == _x.length)
+            return -1;
+
+        int i = _count++;
+
+        _x[i] = x;
+        _y[i] = y;
+        _vx[i] = _vy[i] = 0;
+        _frame[i] = frame;
+        _entryVisible[i] = true;
+        _rectX[i] = _defaultRectX;
+        _rectY[i] = _defaultRectY;
+        _rectW[i] = _defaultRectW;
+        _rectH[i] = _defaultRectH;
+
+        return i;
+    }
+
+    /**
+     * Quita un elemento. Su posicin pasa a ocuparla el ltimo elemento.
+     */
+    public void remove(int index)
+    {
+        checkIndex(index);
+
+        int last = --_count;
+
+        if (index != last)
+        {
+            _x[index] = _x[last];
+            _y[index] = _y[last];
+            _vx[index] = _vx[last];
+            _vy[index] = _vy[last];
+            _frame[index] = _frame[last];
+            _entryVisible[index] = _entryVisible[last];
+            _rectX[index] = _rectX[last];
+            _rectY[index] = _rectY[last];
+            _rectW[index] = _rectW[last];
+            _rectH[index] = _rectH[last];
+        }
+    }
+
+    /**
+     * Quita todos los elementos
+     */
+    public void clear()
+    {
+        _count = 0;
+    }
+
+    /**
+     * Nmero de elementos
+     */
+    public final int getCount()
+    {
+        return _count;
+    }
+
+    /**
+     * Nmero mximo de elementos
+     */
+    public final int getCapacity()
+    {
+        return _x.length;
+    }
+
+    /**
+     * Nmero de frames de la imagen
+     */
+    public final int getRawFrameCount()
+    {
+        return _numFrames;
+    }
+
+    public final int getEntryX(int index)
+    {
+        checkIndex(index);
+        return _x[index];
+    }
+
+    public final int getEntryY(int index)
+    {
+        checkIndex(index);
+        return _y[index];
+    }
+
+    public void setEntryPosition(int index, int x, int y)
+    {
+        checkIndex(index);
+        _x[index] = x;
+        _y[index] = y;
+    }
+
+    /**
+     * Velocidad de un elemento, en pxeles por llamada a update()
+     */
+    public void setEntryVelocity(int index, int vx, int vy)
+    {
+        checkIndex(index);
+        _vx[index] = vx;
+        _vy[index] = vy;
+    }
+
+    public final int getEntryFrame(int index)
+    {
+        checkIndex(index);
+        return _frame[index];
+    }
+
+    public void setEntryFrame(int index, int frame)
+    {
+        checkIndex(index);
+
+//#if DEBUG
+//#         if ( (frame < 0) || (frame >= _numFrames) )
+//#             throw new IndexOutOfBoundsException("SpriteBatch::setEntryFrame - arg frame = " + frame);
+//#else
+        if ( (frame < 0) || (frame >= _numFrames) )
+            throw new IndexOutOfBoundsException();
+//#endif
+
+        _frame[index] = frame;
+    }
+
+    public final boolean isEntryVisible(int index)
+    {
+        checkIndex(index);
+        return _entryVisible[index];
+    }
+
+    /**
+     * Los elementos invisibles no se dibujan ni colisionan
+     */
+    public void setEntryVisible(int index, boolean visible)
+    {
+        checkIndex(index);
+        _entryVisible[index] = visible;
+    }
+
+    /**
+     * Cambia el rectngulo de colisin de un elemento, relativo a la esquina
+     * superior izquierda de su frame
+     */
+    public void setEntryCollisionRectangle(int index, int x, int y, int width, int height)
+    {
+        checkIndex(index);
+
+//#if DEBUG
+//#         if ( (width < 0) || (height < 0) )
+//#             throw new IllegalArgumentException("SpriteBatch::setEntryCollisionRectangle - width = " + width + " height = " + height);
+//#else
+        if ( (width < 0) || (height < 0) )
+            throw new IllegalArgumentException();
+//#endif
+
+        _rectX[index] = x;
+        _rectY[index] = y;
+        _rectW[index] = width;
+        _rectH[index] = height;
+    }
+
+    /**
+     * Desplaza todos los elementos
+     */
+    public void moveAll(int dx, int dy)
+    {
+        for (int i = _count - 1; i >= 0; --i)
+        {
+            _x[i] += dx;
+            _y[i] += dy;
+        }
+    }
+
+    /**
+     * Mueve cada elemento segn su velocidad
+     */
+    public void update()
+    {
+        for (int i = _count - 1; i >= 0; --i)
+        {
+            _x[i] += _vx[i];
+            _y[i] += _vy[i];
+        }
+    }
+
+    /**
+     * Pasa todos los elementos al siguiente frame de la imagen, volviendo al
+     * primero tras el ltimo
+     */
+    public void nextFrameAll()
+    {
+        for (int i = _count - 1; i >= 0; --i)
+            if (++_frame[i] == _numFrames)
+                _frame[i] = 0;
+    }
+
+    /**
+     * Quita los elementos que estn completamente fuera del rectngulo
+     * (x, y, width, height), en coordenadas relativas a la capa
+     *
+     * @return nmero de elementos quitados
+     */
+    public int removeOutside(int x, int y, int width, int height)
+    {
+        int removed = 0;
+
+        for (int i = _count - 1; i >= 0; --i)
+            if ( (_x[i] + _frameWidth <= x) || (_x[i] >= x + width) ||
+                 (_y[i] + _frameHeight <= y) || (_y[i] >= y + height) )
+            {
+                remove(i);
+                removed++;
+            }
+
+        return removed;
+    }
+
+    /**
+     * Busca los elementos visibles cuyo rectngulo de colisin se solapa con
+     * el de un sprite y guarda sus posiciones en hits (como mximo
+     * hits.length).
+     *
+     * @return nmero de elementos que colisionan
+     */
+    public int collidesWith(Sprite s, int[] hits)
+    {
+//#if DEBUG
+//#         if ( (s == null) || (hits == null) )
+//#             throw new NullPointerException("SpriteBatch::collidesWith - sprite or hits is null");
+//#else
+        if ( (s == null) || (hits == null) )
+            throw new NullPointerException();
+//#endif
+
+        if (!_visible || !s._visible)
+            return 0;
+
+        //Rectngulo del sprite relativo a la capa
+        int x0 = s._collisionRectX - _posx;
+        int y0 = s._collisionRectY - _posy;
+        int x1 = x0 + s._collisionRectW;
+        int y1 = y0 + s._collisionRectH;
+        int numHits = 0;
+        int rx, ry;
+
+        for (int i = 0; i < _count; ++i)
+        {
+            if (!_entryVisible[i])
+                continue;
+
+            rx = _x[i] + _rectX[i];
+            ry = _y[i] + _rectY[i];
+
+            if ( (rx < x1) && (x0 < rx + _rectW[i]) && (ry < y1) && (y0 < ry + _rectH[i]) )
+            {
+                if (numHits < hits.length)
+                    hits[numHits] = i;
+                numHits++;
+            }
+        }
+
+        return numHits;
+    }
+
+    /**
+     * Busca los elementos visibles cuyo rectngulo de colisin toca alguna
+     * celda del TiledLayer con los atributos de flagMask (con 0, cualquier
+     * celda con atributos) y guarda sus posiciones en hits (como mximo
+     * hits.length).
+     *
+     * @return nmero de elementos que colisionan
+     */
+    public int collidesWith(TiledLayer t, int flagMask, int[] hits)
+    {
+//#if DEBUG
+//#         if ( (t == null) || (hits == null) )
+//#             throw new NullPointerException("SpriteBatch::collidesWith - TiledLayer or hits is null");
+//#else
+        if ( (t == null) || (hits == null) )
+            throw new NullPointerException();
+//#endif
+
+        if (!_visible || !t._visible)
+            return 0;
+
+        if (flagMask == 0)
+            flagMask = -1;
+
+        int numHits = 0;
+
+        for (int i = 0; i < _count; ++i)
+        {
+            if (!_entryVisible[i])
+                continue;
+
+            if ( (t.getCollisionFlags(_posx + _x[i] + _rectX[i], _posy + _y[i] + _rectY[i],
+                    _rectW[i], _rectH[i]) & flagMask) != 0 )
+            {
+                if (numHits < hits.length)
+                    hits[numHits] = i;
+                numHits++;
+            }
+        }
+
+        return numHits;
+    }
+
+    /**
+     * Dibuja los elementos visibles que caen dentro del rectngulo de
+     * clipping
+     */
+    public void paint(Graphics g)
+    {
+        if (!_visible || (_count == 0) )
+            return;
+
+        int clipX = g.getClipX();
+        int clipY = g.getClipY();
+        int clipW = g.getClipWidth();
+        int clipH = g.getClipHeight();
+
+        //Rectngulo de clipping relativo a la capa, ampliado con el tamao
+        //de un frame para comparar directamente con la esquina de cada elemento
+        int minX = clipX - _posx - _frameWidth;
+        int minY = clipY - _posy - _frameHeight;
+        int maxX = clipX - _posx + clipW;
+        int maxY = clipY - _posy + clipH;
+        int x, y;
+
+//#if NOKIA_UI
+//#         DirectGraphics dg = DirectUtils.getDirectGraphics(g);
+//#endif
+
+        for (int i = 0; i < _count; ++i)
+        {
+            x = _x[i];
+            y = _y[i];
+
+            if ( !_entryVisible[i] || (x <= minX) || (y <= minY) || (x >= maxX) || (y >= maxY) )
+                continue;
+
+            x += _posx;
+            y += _posy;
+
+//#if NOKIA_UI
+//#             dg.drawImage(_frames.getFrameAt(_frame[i]), x, y, Graphics.TOP | Graphics.LEFT, 0);
+//#else
+            g.setClip(clipX, clipY, clipW, clipH);
+            g.clipRect(x, y, _frameWidth, _frameHeight);
+            g.drawImage(_frames,
+                    x - (_frame[i] % _numColFrames) * _frameWidth,
+                    y - (_frame[i] / _numColFrames) * _frameHeight,
+                    Graphics.TOP | Graphics.LEFT);
+//#endif
+        }
+
+//#ifndef NOKIA_UI
+        g.setClip(clipX, clipY, clipW, clipH);
+//#endif
+    }
+
+    /**
+     * Los elementos pueden estar en cualquier posicin: paint() descarta los
+     * que quedan fuera del clipping
+     */
+    protected boolean intersects(int x, int y, int width, int height)
+    {
+        return _count > 0;
+    }
+
+    /**
+     * Los elementos se mueven sin avisar al LayerManager: la capa no puede
+     * guardarse en su ndice espacial
+     */
+    boolean hasBounds()
+    {
+        return false;
+    }
+
+    ///////////////////////////////////////////////////////////////////
+    //Mtodos privados
+
+    /**
+     * Crea los arrays de la capa
+     */
+    private void init(int frameWidth, int frameHeight, int capacity)
+    {
+//#if DEBUG
+//#         if (capacity < 1)
+//#             throw new IllegalArgumentException("SpriteBatch::SpriteBatch - arg capacity = " + capacity);
+//#else
+        if (capacity < 1)
+            throw new IllegalArgumentException();
+//#endif
+
+        _frameWidth = frameWidth;
+        _frameHeight = frameHeight;
+
+        _x = new int[capacity];
+        _y = new int[capacity];
+        _vx = new int[capacity];
+        _vy = new int[capacity];
+        _frame = new int[capacity];
+        _entryVisible = new boolean[capacity];
+        _rectX = new int[capacity];
+        _rectY = new int[capacity];
+        _rectW = new int[capacity];
+        _rectH = new int[capacity];
+
+        _defaultRectW = frameWidth;
+        _defaultRectH = frameHeight;
+
+        //de Layer
+        _posx = _posy = 0;
+        _width = frameWidth;
+        _height = frameHeight;
+        _visible = true;
+    }
+
+    /**
+     * Comprueba que index es la posicin de un elemento
+     */
+    private void checkIndex(int index)
+    {
+//#if DEBUG
+//#         if ( (index < 0) || (index >= _count) )
+//#             throw new IndexOutOfBoundsException("SpriteBatch - index = " + index);
+//#else
+        if ( (index < 0) || (index >= _count) )
+            throw new IndexOutOfBoundsException();
+//#endif
+    }
+
+    ///////////////////////////////////////////////////////////////////
+    //Elementos privados
+
+    //Frames de los elementos
+//#if NOKIA_UI
+//#     private ImageSet _frames;
+//#else
+    private Image _frames;
+    private int _numColFrames;
+//#endif
+    private int _numFrames;
+    private int _frameWidth, _frameHeight;
+
+    //Datos de los elementos: los _count primeros estn en uso
+    private int[] _x, _y;
+    private int[] _vx, _vy;
+    private int[] _frame;
+    private boolean[] _entryVisible;
+    private int[] _rectX, _rectY, _rectW, _rectH;
+    private int _count;
+
+    //Rectngulo de colisin de los elementos nuevos
+    private int _defaultRectX, _defaultRectY, _defaultRectW, _defaultRectH;
+}
@@ -0,0 +1,201 @@
+/*
+ * SpritePool.java
+ *
+ * @author Ricardo Amores Hernndez
+ */
+
+package MIDP1GameAPI;
+
+/**
+ * Conjunto de sprites reutilizables para elementos que aparecen y desaparecen
+ * continuamente (disparos, objetos, explosiones...).
+ *
+ * Todos los sprites se crean al crear el pool como copias de un sprite
+ * prototipo, compartiendo su imagen y su secuencia de frames. acquire() y
+ * release() no reservan memoria y tardan un tiempo constante: el array de
+ * sprites se mantiene dividido en sprites activos (al principio) y libres (al
+ * final), y al liberar un sprite se intercambia con el ltimo activo.
+ * <p>
+ * Los sprites libres son invisibles, de forma que todos pueden aadirse una
+ * sola vez a un LayerManager con appendTo(): al activarlos o liberarlos slo
+ * cambia su visibilidad y no hay que insertarlos ni borrarlos de la lista de
+ * capas. Un sprite invisible tampoco colisiona con nada.
+ */
+public class SpritePool
+{
+    /**
+     * Crea un pool con capacity sprites copiados del prototipo. Al activar un
+     * sprite se reinicia con el estado que tenga el prototipo en ese momento.
+     */
+    public SpritePool(Sprite prototype, int capacity)
+    {
+//#if DEBUG
+//#         if (prototype == null)
+//#             throw new NullPointerException("SpritePool::SpritePool - prototype arg is null");
+//#         if (capacity < 1)
+//#             throw new IllegalArgumentException("SpritePool::SpritePool - arg capacity = " + capacity);
+//#else
+        if (prototype == null)
+            throw new NullPointerException();
+        if (capacity < 1)
+            throw new IllegalArgumentException();
+//#endif
+
+        _prototype = prototype;
+        _sprites = new Sprite[capacity];
+
+        Sprite s;
+        for (int i = 0; i < capacity; ++i)
+        {
+            s = new Sprite();
+            s.copyState(prototype);
+            s.setVisible(false);
+            s._pool = this;
+            s._poolSlot = i;
+
+            _sprites[i] = s;
+        }
+    }
+
+    /**
+     * Activa un sprite libre reinicindolo con el estado del prototipo
+     * (frame, animacin, visibilidad y rectngulo de colisin) y lo coloca
+     * en (x, y).
+     *
+     * @return el sprite, o null si todos estn activos
+     */
+    public Sprite acquire(int x, int y)
+    {
+        if (_activeCount == _sprites.length)
+            return null;
+
+        Sprite s = _sprites[_activeCount++];
+
+        s.copyState(_prototype);
+        s.move(x - s._posx, y - s._posy);
+        s.setVisible(true);
+
+        return s;
+    }
+
+    /**
+     * Libera un sprite activo del pool, que pasa a ser invisible
+     */
+    public void release(Sprite s)
+    {
+//#if DEBUG
+//#         if (s == null)
+//#             throw new NullPointerException("SpritePool::release - sprite arg is null");
+//#         if ( (s._pool != this) || (s._poolSlot >= _activeCount) )
+//#             throw new IllegalArgumentException("SpritePool::release - sprite is not active in this pool");
+//#else
+        if (s == null)
+            throw new NullPointerException();
+        if ( (s._pool != this) || (s._poolSlot >= _activeCount) )
+            throw new IllegalArgumentException();
+//#endif
+
+        //Intercambiamos el sprite con el ltimo activo
+        int slot = s._poolSlot;
+        Sprite last = _sprites[--_activeCount];
+
+        _sprites[slot] = last;
+        last._poolSlot = slot;
+
+        _sprites[_activeCount] = s;
+        s._poolSlot = _activeCount;
+
+        s.setVisible(false);
+    }
+
+    /**
+     * Libera todos los sprites activos
+     */
+    public void releaseAll()
+    {
+        for (int i = 0; i < _activeCount; ++i)
+            _sprites[i].setVisible(false);
+
+        _activeCount = 0;
+    }
+
+    /**
+     * Indica si un sprite del pool est activo
+     */
+    public final boolean isActive(Sprite s)
+    {
+        return (s._pool == this) && (s._poolSlot < _activeCount);
+    }
+
+    /**
+     * Nmero de sprites activos
+     */
+    public final int getActiveCount()
+    {
+        return _activeCount;
+    }
+
+    /**
+     * Sprite activo en una posicin, entre 0 y getActiveCount() - 1. Liberar
+     * un sprite cambia el orden de los activos: al liberar durante un
+     * recorrido hay que recorrerlos desde el final.
+     */
+    public final Sprite getActive(int index)
+    {
+//#if DEBUG
+//#         if ( (index < 0) || (index >= _activeCount) )
+//#             throw new IndexOutOfBoundsException("SpritePool::getActive - index = " + index);
+//#else
+        if ( (index < 0) || (index >= _activeCount) )
+            throw new IndexOutOfBoundsException();
+//#endif
+
+        return _sprites[index];
+    }
+
+    /**
+     * Nmero total de sprites del pool
+     */
+    public final int getCapacity()
+    {
+        return _sprites.length;
+    }
+
+    /**
+     * Devuelve el sprite prototipo
+     */
+    public final Sprite getPrototype()
+    {
+        return _prototype;
+    }
+
+    /**
+     * Aade todos los sprites del pool, activos o no, al final de un
+     * LayerManager. Basta con hacerlo una vez: los sprites libres son
+     * invisibles y no se dibujan.
+     */
+    public void appendTo(LayerManager lm)
+    {
+        for (int i = 0; i < _sprites.length; ++i)
+            lm.append(_sprites[i]);
+    }
+
+    /**
+     * Quita todos los sprites del pool de un LayerManager
+     */
+    public void removeFrom(LayerManager lm)
+    {
+        for (int i = 0; i < _sprites.length; ++i)
+            lm.remove(_sprites[i]);
+    }
+
+    ///////////////////////////////////////////////////////////////////
+    //Elementos privados
+
+    //Sprite del que se copia el estado inicial
+    private Sprite _prototype;
+
+    //Sprites del pool: los _activeCount primeros estn activos
+    private Sprite[] _sprites;
+    private int _activeCount;
+}
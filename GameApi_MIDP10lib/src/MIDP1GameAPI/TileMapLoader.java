@@ -0,0 +1,682 @@
+/*
+ * TileMapLoader.java
+ *
+ * @author Ricardo Amores Hernndez
+ */
+
+package MIDP1GameAPI;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.IOException;
+
+import javax.microedition.lcdui.Image;
+
+//#if NOKIA_UI
+//# import MIDP1GameAPI_Utils.ImageSet;
+//#endif
+
+/**
+ * Carga y guarda mapas de tiles en un formato binario comprimido por chunks.
+ *
+ * El mapa se divide en chunks de chunkSize x chunkSize celdas. Los chunks cuyas
+ * celdas tienen todas el mismo valor se guardan como un nico valor, el resto
+ * se comprimen con RLE. Un ndice al inicio del fichero indica dnde empieza
+ * cada chunk, de forma que pueden leerse slo los chunks necesarios.
+ * <p>
+ * Formato (enteros big-endian, como los escribe DataOutputStream):
+ * <pre>
+ * int    0x544D4150 ('TMAP')
+ * byte   versin (1)
+ * int    columnas
+ * int    filas
+ * byte   log2(chunkSize)
+ * byte   bytes por valor de celda (1, 2 o 4)
+ * short  nmero de tiles animados
+ * int    tile esttico de cada tile animado
+ *
+ * ndice, un registro por chunk, por filas de chunks:
+ *   byte 0 (uniforme) + valor
+ *   byte 1 (RLE) + int desplazamiento en la seccin de datos + int longitud
+ *
+ * seccin de datos: para cada chunk RLE, sus chunkSize x chunkSize celdas por
+ * filas (las celdas fuera del mapa valen 0) como secuencia de pares
+ *   byte sin signo (longitud de la racha - 1) + valor
+ * </pre>
+ * Los valores ocupan el nmero de bytes indicado en la cabecera.
+ * <p>
+ * Los mtodos estticos load() cargan un mapa completo leyendo el stream de
+ * forma secuencial. Creando un TileMapLoader se obtiene el modo paginado: el
+ * TiledLayer slo mantiene en memoria los chunks cercanos a la ventana de
+ * visualizacin y update() carga y descarga chunks segn se mueve la cmara.
+ */
+public class TileMapLoader
+{
+    /** Identificador del formato ('TMAP') */
+    public static final int MAGIC = 0x544D4150;
+
+    /** Versin del formato */
+    public static final int VERSION = 1;
+
+    //Tipos de registro del ndice de chunks
+    private static final int CHUNK_UNIFORM = 0;
+    private static final int CHUNK_RLE = 1;
+
+    //Longitud mxima de una racha RLE
+    private static final int MAX_RUN = 256;
+
+    /**
+     * Carga un mapa completo desde un stream. El stream no se cierra.
+     *
+     * @throws IOException si el stream no contiene un mapa vlido
+     */
+    public static TiledLayer load(InputStream in, Image image, int tileWidth, int tileHeight) throws IOException
+    {
+        TileMapLoader loader = new TileMapLoader();
+        loader.readHeader(new DataInputStream(in), image, tileWidth, tileHeight);
+        loader.readAllChunks();
+
+        return loader._layer;
+    }
+
+//#if NOKIA_UI
+//#     /**
+//#      * Carga un mapa completo desde un stream usando un ImageSet como tileset.
+//#      * El stream no se cierra.
+//#      *
+//#      * @throws IOException si el stream no contiene un mapa vlido
+//#      */
+//#     public static TiledLayer load(InputStream in, ImageSet imageSet) throws IOException
+//#     {
+//#         TileMapLoader loader = new TileMapLoader();
+//#         loader._imageSet = imageSet;
+//#         loader.readHeader(new DataInputStream(in), null, 0, 0);
+//#         loader.readAllChunks();
+//#
+//#         return loader._layer;
+//#     }
+//#endif
+
+    /**
+     * Guarda el mapa de un TiledLayer en un stream, dividido en chunks de
+     * chunkSize x chunkSize celdas. chunkSize ha de ser una potencia de 2
+     * entre 1 y 128. El stream no se cierra.
+     * <p>
+     * Cada chunk se recorre dos veces, una para calcular el ndice y otra para
+     * escribir los datos, as no hace falta memoria adicional.
+     */
+    public static void save(TiledLayer layer, OutputStream out, int chunkSize) throws IOException
+    {
+//#if DEBUG
+//#         if (layer == null)
+//#             throw new NullPointerException("TileMapLoader::save - layer arg is null");
+//#         if ( (chunkSize < 1) || (chunkSize > 128) || ( (chunkSize & (chunkSize - 1)) != 0 ) )
+//#             throw new IllegalArgumentException("TileMapLoader::save - arg chunkSize = " + chunkSize);
+//#else
+        if (layer == null)
+            throw new NullPointerException();
+        if ( (chunkSize < 1) || (chunkSize > 128) || ( (chunkSize & (chunkSize - 1)) != 0 ) )
+            throw new IllegalArgumentException();
+//#endif
+
+        int shift = 0;
+        while ( (1 << shift) < chunkSize )
+            shift++;
+
+        int columns = layer.getColumns();
+        int rows = layer.getRows();
+        int chunkColumns = (columns + chunkSize - 1) >> shift;
+        int chunkRows = (rows + chunkSize - 1) >> shift;
+        int numAnimated = layer._indexAnimatedTiles;
+
+        //Tamao de los valores: el menor tipo donde caben todos los ndices
+        int valueBytes = 1;
+        if ( (layer._totalTiles > Short.MAX_VALUE) || (-numAnimated < Short.MIN_VALUE) )
+            valueBytes = 4;
+        else if ( (layer._totalTiles > Byte.MAX_VALUE) || (-numAnimated < Byte.MIN_VALUE) )
+            valueBytes = 2;
+
+        DataOutputStream dout = new DataOutputStream(out);
+
+        //Cabecera
+        dout.writeInt(MAGIC);
+        dout.writeByte(VERSION);
+        dout.writeInt(columns);
+        dout.writeInt(rows);
+        dout.writeByte(shift);
+        dout.writeByte(valueBytes);
+        dout.writeShort(numAnimated);
+        for (int i = 1; i <= numAnimated; ++i)
+            dout.writeInt(layer.getAnimatedTile(-i));
+
+        //ndice
+        int offset = 0;
+        int length;
+        for (int cy = 0; cy < chunkRows; ++cy)
+            for (int cx = 0; cx < chunkColumns; ++cx)
+            {
+                length = writeChunk(layer, cx << shift, cy << shift, chunkSize, valueBytes, null);
+                if (length < 0)
+                {
+                    dout.writeByte(CHUNK_UNIFORM);
+                    writeValue(dout, layer.getCellValue(cx << shift, cy << shift), valueBytes);
+                }
+                else
+                {
+                    dout.writeByte(CHUNK_RLE);
+                    dout.writeInt(offset);
+                    dout.writeInt(length);
+                    offset += length;
+                }
+            }
+
+        //Datos de los chunks RLE
+        for (int cy = 0; cy < chunkRows; ++cy)
+            for (int cx = 0; cx < chunkColumns; ++cx)
+                writeChunk(layer, cx << shift, cy << shift, chunkSize, valueBytes, dout);
+
+        dout.flush();
+    }
+
+    /**
+     * Crea un cargador en modo paginado para un recurso del jar. Lee la
+     * cabecera y el ndice del mapa y crea el TiledLayer, con todos los chunks
+     * uniformes ya cargados. Los chunks RLE no se cargan hasta llamar a update().
+     * <p>
+     * Mientras un chunk no est cargado sus celdas valen 0 (vacas). Los
+     * cambios hechos con setCell() o fillCells() en un chunk RLE se pierden
+     * al descargarlo.
+     *
+     * @throws IOException si el recurso no existe o no contiene un mapa vlido
+     */
+    public TileMapLoader(String resourceName, Image image, int tileWidth, int tileHeight) throws IOException
+    {
+        _resourceName = resourceName;
+        openHeader(image, tileWidth, tileHeight);
+    }
+
+//#if NOKIA_UI
+//#     /**
+//#      * Crea un cargador en modo paginado usando un ImageSet como tileset
+//#      *
+//#      * @throws IOException si el recurso no existe o no contiene un mapa vlido
+//#      */
+//#     public TileMapLoader(String resourceName, ImageSet imageSet) throws IOException
+//#     {
+//#         _resourceName = resourceName;
+//#         _imageSet = imageSet;
+//#         openHeader(null, 0, 0);
+//#     }
+//#endif
+
+    /**
+     * Constructor usado por load()
+     */
+    private TileMapLoader()
+    {
+    }
+
+    /**
+     * Abre el stream del mapa en modo paginado. Por defecto busca el recurso
+     * en el jar; puede sobreescribirse para leer de otro origen (RMS, red...).
+     * Se llama una vez desde el constructor y otra en cada update() que
+     * necesite cargar chunks.
+     */
+    protected InputStream openStream() throws IOException
+    {
+        InputStream in = getClass().getResourceAsStream(_resourceName);
+
+        if (in == null)
+//#if DEBUG
+//#             throw new IOException("TileMapLoader::openStream - resource not found: " + _resourceName);
+//#else
+            throw new IOException();
+//#endif
+
+        return in;
+    }
+
+    /**
+     * Devuelve el TiledLayer cargado
+     */
+    public final TiledLayer getLayer()
+    {
+        return _layer;
+    }
+
+    /**
+     * Nmero de chunks alrededor de la ventana de visualizacin que se
+     * mantienen cargados. Por defecto 1.
+     */
+    public void setPagingMargin(int chunks)
+    {
+//#if DEBUG
+//#         if (chunks < 0)
+//#             throw new IllegalArgumentException("TileMapLoader::setPagingMargin - arg chunks = " + chunks);
+//#else
+        if (chunks < 0)
+            throw new IllegalArgumentException();
+//#endif
+
+        _pagingMargin = chunks;
+    }
+
+    /**
+     * Nmero de chunks RLE cargados actualmente
+     */
+    public final int getResidentChunks()
+    {
+        return _numResident;
+    }
+
+    /**
+     * Actualiza los chunks cargados para la ventana de visualizacin indicada,
+     * en las mismas coordenadas que la posicin del TiledLayer (las mismas que
+     * se pasan a LayerManager.setViewWindow()).
+     * <p>
+     * Los chunks que quedan fuera de la ventana ms el margen se descargan.
+     * Los que faltan se cargan en una nica pasada por el stream, saltando los
+     * datos del resto de chunks.
+     *
+     * @throws IOException si falla la lectura del stream
+     */
+    public void update(int x, int y, int width, int height) throws IOException
+    {
+        int chunkWidth = _layer.getCellWidth() << _shift;
+        int chunkHeight = _layer.getCellHeight() << _shift;
+
+        x -= _layer.getX();
+        y -= _layer.getY();
+
+        //Rango de chunks a mantener cargados
+        int firstCx = TiledLayer.floorDiv(x, chunkWidth) - _pagingMargin;
+        int firstCy = TiledLayer.floorDiv(y, chunkHeight) - _pagingMargin;
+        int lastCx = TiledLayer.floorDiv(x + width - 1, chunkWidth) + _pagingMargin;
+        int lastCy = TiledLayer.floorDiv(y + height - 1, chunkHeight) + _pagingMargin;
+
+        //Descargamos los chunks fuera del rango y contamos los que faltan
+        int missing = 0;
+        int chunk = 0;
+        boolean inside;
+
+        for (int cy = 0; cy < _chunkRows; ++cy)
+            for (int cx = 0; cx < _chunkColumns; ++cx, ++chunk)
+            {
+                if (_chunkLengths[chunk] < 0)
+                    continue;
+
+                inside = (cx >= firstCx) && (cx <= lastCx) && (cy >= firstCy) && (cy <= lastCy);
+
+                if (_resident[chunk] && !inside)
+                {
+                    _layer.setSparseChunkUniform(chunk, 0);
+                    _resident[chunk] = false;
+                    _numResident--;
+                }
+                else if (!_resident[chunk] && inside)
+                    missing++;
+            }
+
+        if (missing == 0)
+            return;
+
+        //Cargamos los que faltan. Los desplazamientos son crecientes en el
+        //orden del ndice, as que basta con avanzar por el stream
+        InputStream in = openStream();
+        try
+        {
+            DataInputStream din = new DataInputStream(in);
+            int position = 0;
+
+            skipFully(din, _dataStart);
+
+            for (int cy = Math.max(firstCy, 0); cy <= lastCy && cy < _chunkRows; ++cy)
+                for (int cx = Math.max(firstCx, 0); cx <= lastCx && cx < _chunkColumns; ++cx)
+                {
+                    chunk = cy * _chunkColumns + cx;
+                    if ( (_chunkLengths[chunk] < 0) || _resident[chunk] )
+                        continue;
+
+                    skipFully(din, _chunkOffsets[chunk] - position);
+                    readChunk(din, chunk);
+                    position = _chunkOffsets[chunk] + _chunkLengths[chunk];
+
+                    _resident[chunk] = true;
+                    _numResident++;
+                }
+        }
+        finally
+        {
+            in.close();
+        }
+    }
+
+    // Mtodos privados ////////////////////////////////////////////////////////
+
+    /**
+     * Lee la cabecera y el ndice del recurso en modo paginado
+     */
+    private void openHeader(Image image, int tileWidth, int tileHeight) throws IOException
+    {
+        InputStream in = openStream();
+        try
+        {
+            readHeader(new DataInputStream(in), image, tileWidth, tileHeight);
+        }
+        finally
+        {
+            in.close();
+        }
+
+        _resident = new boolean[_chunkLengths.length];
+        _din = null;
+    }
+
+    /**
+     * Lee la cabecera y el ndice de chunks, crea el TiledLayer y aplica los
+     * chunks uniformes
+     */
+    private void readHeader(DataInputStream din, Image image, int tileWidth, int tileHeight) throws IOException
+    {
+        if ( (din.readInt() != MAGIC) || (din.readUnsignedByte() != VERSION) )
+            throw corrupt("bad header");
+
+        int columns = din.readInt();
+        int rows = din.readInt();
+        _shift = din.readUnsignedByte();
+        _valueBytes = din.readUnsignedByte();
+        int numAnimated = din.readUnsignedShort();
+
+        if ( (columns < 1) || (rows < 1) || (_shift > 7)
+                || ( (_valueBytes != 1) && (_valueBytes != 2) && (_valueBytes != 4) ) )
+            throw corrupt("bad header");
+
+        //Creamos el layer y sus tiles animados
+//#if NOKIA_UI
+//#         if (_imageSet != null)
+//#             _layer = new TiledLayer(columns, rows, _imageSet, 1 << _shift);
+//#         else
+//#endif
+        _layer = new TiledLayer(columns, rows, image, tileWidth, tileHeight, 1 << _shift);
+
+        int value;
+        for (int i = 0; i < numAnimated; ++i)
+        {
+            value = din.readInt();
+            if ( (value < 0) || (value > _layer._totalTiles) )
+                throw corrupt("bad animated tile");
+            _layer.createAnimatedTile(value);
+        }
+
+        //Leemos el ndice
+        _chunkColumns = (columns + (1 << _shift) - 1) >> _shift;
+        _chunkRows = (rows + (1 << _shift) - 1) >> _shift;
+
+        int numChunks = _chunkColumns * _chunkRows;
+        _chunkOffsets = new int[numChunks];
+        _chunkLengths = new int[numChunks];
+        _dataStart = 4 + 1 + 4 + 4 + 1 + 1 + 2 + 4 * numAnimated;
+
+        int offset = 0;
+
+        for (int chunk = 0; chunk < numChunks; ++chunk)
+        {
+            switch (din.readUnsignedByte())
+            {
+                case CHUNK_UNIFORM:
+                    value = checkValue(readValue(din));
+                    if (value != 0)
+                        _layer.setSparseChunkUniform(chunk, value);
+                    _chunkLengths[chunk] = -1;
+                    _dataStart += 1 + _valueBytes;
+                    break;
+
+                case CHUNK_RLE:
+                    _chunkOffsets[chunk] = din.readInt();
+                    _chunkLengths[chunk] = din.readInt();
+                    if ( (_chunkOffsets[chunk] < offset) || (_chunkLengths[chunk] <= 0) )
+                        throw corrupt("bad chunk index");
+                    offset = _chunkOffsets[chunk] + _chunkLengths[chunk];
+                    _dataStart += 9;
+                    break;
+
+                default:
+                    throw corrupt("bad chunk type");
+            }
+        }
+
+        _din = din;
+        _cells = new int[1 << (_shift << 1)];
+    }
+
+    /**
+     * Lee de forma secuencial todos los chunks RLE, a continuacin del ndice
+     */
+    private void readAllChunks() throws IOException
+    {
+        int position = 0;
+
+        for (int chunk = 0; chunk < _chunkLengths.length; ++chunk)
+        {
+            if (_chunkLengths[chunk] < 0)
+                continue;
+
+            skipFully(_din, _chunkOffsets[chunk] - position);
+            readChunk(_din, chunk);
+            position = _chunkOffsets[chunk] + _chunkLengths[chunk];
+        }
+
+        _din = null;
+    }
+
+    /**
+     * Descomprime un chunk RLE y lo copia al TiledLayer
+     */
+    private void readChunk(DataInputStream din, int chunk) throws IOException
+    {
+        int length = _chunkLengths[chunk];
+        int filled = 0;
+        int run, value;
+
+        while (length > 0)
+        {
+            run = din.readUnsignedByte() + 1;
+            value = checkValue(readValue(din));
+            length -= 1 + _valueBytes;
+
+            if (filled + run > _cells.length)
+                throw corrupt("chunk overflow");
+
+            while (run-- > 0)
+                _cells[filled++] = value;
+        }
+
+        if ( (length != 0) || (filled != _cells.length) )
+            throw corrupt("bad chunk length");
+
+        _layer.setSparseChunk(chunk, _cells);
+    }
+
+    /**
+     * Lee un valor de celda con el tamao indicado en la cabecera
+     */
+    private int readValue(DataInputStream din) throws IOException
+    {
+        switch (_valueBytes)
+        {
+            case 1:
+                return din.readByte();
+
+            case 2:
+                return din.readShort();
+
+            default:
+                return din.readInt();
+        }
+    }
+
+    /**
+     * Comprueba que el valor sea un tile vlido para el layer cargado
+     */
+    private int checkValue(int value) throws IOException
+    {
+        if ( (value > _layer._totalTiles) || (value < -_layer._indexAnimatedTiles) )
+            throw corrupt("bad tile index");
+
+        return value;
+    }
+
+    /**
+     * Escribe los datos RLE de un chunk, o slo calcula su longitud si out es
+     * null. Devuelve -1 si todas las celdas del chunk dentro del mapa tienen
+     * el mismo valor.
+     */
+    private static int writeChunk(TiledLayer layer, int col, int row, int chunkSize, int valueBytes, DataOutputStream out) throws IOException
+    {
+        int lastCol = Math.min(col + chunkSize, layer.getColumns());
+        int lastRow = Math.min(row + chunkSize, layer.getRows());
+        int first = layer.getCellValue(col, row);
+        boolean uniform = true;
+
+        for (int r = row; r < lastRow && uniform; ++r)
+            for (int c = col; c < lastCol; ++c)
+                if (layer.getCellValue(c, r) != first)
+                {
+                    uniform = false;
+                    break;
+                }
+
+        if (uniform)
+            return -1;
+
+        int length = 0;
+        int runValue = first;
+        int run = 0;
+        int value;
+
+        for (int r = row; r < row + chunkSize; ++r)
+            for (int c = col; c < col + chunkSize; ++c)
+            {
+                value = ( (c < lastCol) && (r < lastRow) ) ? layer.getCellValue(c, r) : 0;
+
+                if ( (value != runValue) || (run == MAX_RUN) )
+                {
+                    if (out != null)
+                    {
+                        out.writeByte(run - 1);
+                        writeValue(out, runValue, valueBytes);
+                    }
+                    length += 1 + valueBytes;
+
+                    runValue = value;
+                    run = 0;
+                }
+                run++;
+            }
+
+        if (out != null)
+        {
+            out.writeByte(run - 1);
+            writeValue(out, runValue, valueBytes);
+        }
+
+        return length + 1 + valueBytes;
+    }
+
+    /**
+     * Escribe un valor de celda con el tamao indicado
+     */
+    private static void writeValue(DataOutputStream out, int value, int valueBytes) throws IOException
+    {
+        switch (valueBytes)
+        {
+            case 1:
+                out.writeByte(value);
+                break;
+
+            case 2:
+                out.writeShort(value);
+                break;
+
+            default:
+                out.writeInt(value);
+                break;
+        }
+    }
+
+    /**
+     * Salta n bytes del stream. InputStream.skip() puede saltar menos bytes
+     * de los pedidos.
+     */
+    private static void skipFully(InputStream in, int n) throws IOException
+    {
+        long skipped;
+
+        while (n > 0)
+        {
+            skipped = in.skip(n);
+            if (skipped <= 0)
+            {
+                //skip() no avanza: leemos un byte para detectar el final
+                if (in.read() < 0)
+                    throw corrupt("unexpected end of stream");
+                skipped = 1;
+            }
+            n -= (int) skipped;
+        }
+    }
+
+    /**
+     * Excepcin para un stream con datos incorrectos
+     */
+    private static IOException corrupt(String reason)
+    {
+//#if DEBUG
+//#         return new IOException("TileMapLoader - corrupt map: " + reason);
+//#else
+        return new IOException();
+//#endif
+    }
+
+    // Datos privados //////////////////////////////////////////////////////////
+
+    //Layer cargado
+    private TiledLayer _layer;
+
+//#if NOKIA_UI
+//#     //Tileset si se usa un ImageSet
+//#     private ImageSet _imageSet;
+//#endif
+
+    //Recurso del que se lee el mapa en modo paginado
+    private String _resourceName;
+
+    //Stream durante la carga completa
+    private DataInputStream _din;
+
+    //log2 del tamao de chunk y bytes por valor de celda
+    private int _shift, _valueBytes;
+
+    //Chunks por fila y por columna
+    private int _chunkColumns, _chunkRows;
+
+    //ndice de chunks: desplazamiento y longitud en la seccin de datos.
+    //Longitud -1 para los chunks uniformes
+    private int[] _chunkOffsets;
+    private int[] _chunkLengths;
+
+    //Desplazamiento de la seccin de datos desde el inicio del stream
+    private int _dataStart;
+
+    //Chunks RLE cargados en modo paginado
+    private boolean[] _resident;
+    private int _numResident;
+
+    //Margen de chunks cargados alrededor de la ventana
+    private int _pagingMargin = 1;
+
+    //Buffer para descomprimir un chunk
+    private int[] _cells;
+}
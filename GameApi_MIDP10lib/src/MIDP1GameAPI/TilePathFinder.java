@@ -0,0 +1,491 @@
+/*
+ * TilePathFinder.java
+ *
+ * @author Ricardo Amores Hernndez
+ */
+
+package MIDP1GameAPI;
+
+/**
+ * Bsqueda de caminos A* sobre las celdas de un TiledLayer.
+ *
+ * Todas las estructuras de la bsqueda (montculo de nodos abiertos, costes y
+ * enlaces al nodo padre) son arrays de enteros creados en la primera bsqueda 
+ * y reutilizados en las siguientes, as que buscar un camino no crea objetos. 
+ * Un mismo TilePathFinder puede servir a todas las unidades que se mueven por 
+ * un mapa, una bsqueda tras otra. Ocupa unos 5 enteros por celda del mapa ms 
+ * el montculo, que crece segn se necesita.
+ * <p>
+ * Por defecto una celda es transitable si est vaca o, si se han fijado 
+ * atributos con setBlockingFlags(), si sus atributos de colisin no coinciden 
+ * con ellos. Para otros criterios puede sobreescribirse isPassable().
+ * <p>
+ * Con setNodeBudget() se limita el nmero de nodos que se expanden en cada 
+ * llamada, de forma que una bsqueda larga se reparte en varios frames
+ * llamando a resume() mientras devuelva SEARCHING.
+ */
+public class TilePathFinder
+{
+    /** La bsqueda no ha terminado: se agot el presupuesto de nodos */
+    public static final int SEARCHING = 0;
+    
+    /** Se ha encontrado un camino */
+    public static final int FOUND = 1;
+    
+    /** No hay camino entre el origen y el destino */
+    public static final int NOT_FOUND = 2;
+    
+    //Coste de un paso recto y de un paso en diagonal (10 * raz de 2)
+    private static final int STRAIGHT_COST = 10;
+    private static final int DIAGONAL_COST = 14;
+    
+    //Posicin en el montculo de un nodo ya cerrado
+    private static final int CLOSED = -1;
+    
+    //Desplazamiento a las celdas vecinas: primero las 4 rectas y despus
+    //las 4 diagonales
+    private static final int[] NEIGHBOUR_X = { 1, -1, 0, 0, 1, -1, 1, -1 };
+    private static final int[] NEIGHBOUR_Y = { 0, 0, 1, -1, 1, 1, -1, -1 };
+    
+    /**
+     * Crea un buscador de caminos para un TiledLayer. Los arrays de la 
+     * bsqueda no se crean hasta la primera llamada a findPath().
+     */
+    public TilePathFinder(TiledLayer layer)
+    {
+//#if DEBUG
+//#         if (layer == null)
+//#             throw new NullPointerException("TilePathFinder::TilePathFinder - layer arg is null");
+//#else
+        if (layer == null)
+            throw new NullPointerException();
+//#endif
+        
+        _layer = layer;
+        _columns = layer.getColumns();
+        _rows = layer.getRows();
+        _status = NOT_FOUND;
+    }
+    
+    /**
+     * Devuelve el TiledLayer sobre el que se buscan caminos
+     */
+    public final TiledLayer getLayer()
+    {
+        return _layer;
+    }
+    
+    /**
+     * Atributos de colisin (TiledLayer.TILE_SOLID...) que hacen intransitable
+     * una celda. Con 0 (valor por defecto) es intransitable cualquier celda 
+     * que no est vaca.
+     */
+    public void setBlockingFlags(int flags)
+    {
+        _blockingFlags = flags;
+    }
+    
+    /**
+     * Permite o no el movimiento en diagonal. Un paso en diagonal slo es 
+     * posible si las dos celdas rectas que rodea tambin son transitables.
+     */
+    public void setDiagonalMovement(boolean diagonal)
+    {
+        _diagonal = diagonal;
+    }
+    
+    /**
+     * Nmero mximo de nodos que se expanden en cada llamada a findPath() o 
+     * resume(). Con 0 (valor por defecto) no hay lmite y la bsqueda termina 
+     * siempre en la misma llamada.
+     */
+    public void setNodeBudget(int nodes)
+    {
+//#if DEBUG
+//#         if (nodes < 0)
+//#             throw new IllegalArgumentException("TilePathFinder::setNodeBudget - arg nodes = " + nodes);
+//#else
+        if (nodes < 0)
+            throw new IllegalArgumentException();
+//#endif
+        
+        _nodeBudget = nodes;
+    }
+    
+    /**
+     * Empieza a buscar un camino entre dos celdas, cancelando la bsqueda 
+     * anterior si no haba terminado. La celda de origen no necesita ser 
+     * transitable.
+     * 
+     * @return SEARCHING si se agot el presupuesto de nodos, FOUND o NOT_FOUND
+     */
+    public int findPath(int startCol, int startRow, int goalCol, int goalRow)
+    {
+//#if DEBUG
+//#         if ( (startCol < 0) || (startCol >= _columns) )
+//#             throw new IndexOutOfBoundsException("TilePathFinder::findPath - arg startCol = " + startCol);
+//#         if ( (startRow < 0) || (startRow >= _rows) )
+//#             throw new IndexOutOfBoundsException("TilePathFinder::findPath - arg startRow = " + startRow);
+//#         if ( (goalCol < 0) || (goalCol >= _columns) )
+//#             throw new IndexOutOfBoundsException("TilePathFinder::findPath - arg goalCol = " + goalCol);
+//#         if ( (goalRow < 0) || (goalRow >= _rows) )
+//#             throw new IndexOutOfBoundsException("TilePathFinder::findPath - arg goalRow = " + goalRow);
+//#else
+        if ( (startCol < 0) || (startCol >= _columns) || (startRow < 0) || (startRow >= _rows) )
+            throw new IndexOutOfBoundsException();
+        if ( (goalCol < 0) || (goalCol >= _columns) || (goalRow < 0) || (goalRow >= _rows) )
+            throw new IndexOutOfBoundsException();
+//#endif
+        
+        if (_g == null)
+        {
+            int cells = _columns * _rows;
+            
+            _g = new int[cells];
+            _f = new int[cells];
+            _parent = new int[cells];
+            _heapPos = new int[cells];
+            _searchIds = new int[cells];
+            _heap = new int[Math.min(cells, 64)];
+        }
+        
+        //Cada bsqueda tiene un identificador: los nodos marcados con otro 
+        //identificador no se han visitado an, as no hay que limpiar los
+        //arrays. Slo al dar la vuelta el contador se borran las marcas.
+        if (++_searchId == 0)
+        {
+            for (int i = _searchIds.length - 1; i >= 0; --i)
+                _searchIds[i] = 0;
+            _searchId = 1;
+        }
+        
+        _heapSize = 0;
+        _pathLength = 0;
+        _goalCol = goalCol;
+        _goalRow = goalRow;
+        _goal = goalRow * _columns + goalCol;
+        
+        if (!isPassable(goalCol, goalRow))
+        {
+            _status = NOT_FOUND;
+            return _status;
+        }
+        
+        int start = startRow * _columns + startCol;
+        openNode(start, -1, 0, startCol, startRow);
+        
+        _status = SEARCHING;
+        return resume();
+    }
+    
+    /**
+     * Contina la bsqueda en curso, expandiendo como mximo el nmero de 
+     * nodos fijado con setNodeBudget().
+     * 
+     * @return SEARCHING si se agot el presupuesto de nodos, FOUND o NOT_FOUND
+     */
+    public int resume()
+    {
+        if (_status != SEARCHING)
+            return _status;
+        
+        int budget = _nodeBudget;
+        int node;
+        
+        while (_heapSize > 0)
+        {
+            if ( (_nodeBudget > 0) && (budget-- == 0) )
+                return _status;
+            
+            node = popNode();
+            
+            if (node == _goal)
+            {
+                //Longitud del camino siguiendo los enlaces al padre
+                for (; node != -1; node = _parent[node])
+                    _pathLength++;
+                
+                _status = FOUND;
+                return _status;
+            }
+            
+            expandNode(node);
+        }
+        
+        _status = NOT_FOUND;
+        return _status;
+    }
+    
+    /**
+     * Estado de la ltima bsqueda: SEARCHING, FOUND o NOT_FOUND
+     */
+    public final int getStatus()
+    {
+        return _status;
+    }
+    
+    /**
+     * Nmero de celdas del ltimo camino encontrado, incluidas las de origen
+     * y destino. 0 si no se encontr camino.
+     */
+    public final int getPathLength()
+    {
+        return _pathLength;
+    }
+    
+    /**
+     * Coste del ltimo camino encontrado: 10 por paso recto y 14 por paso
+     * en diagonal.
+     */
+    public final int getPathCost()
+    {
+        return (_pathLength == 0) ? 0 : _g[_goal];
+    }
+    
+    /**
+     * Copia el ltimo camino encontrado en cells, desde el origen hasta el 
+     * destino, con cada celda como fila * columnas + columna.
+     * 
+     * @return longitud del camino
+     */
+    public int getPath(int[] cells)
+    {
+//#if DEBUG
+//#         if (cells == null)
+//#             throw new NullPointerException("TilePathFinder::getPath - cells arg is null");
+//#         if (cells.length < _pathLength)
+//#             throw new IllegalArgumentException("TilePathFinder::getPath - cells.length = " + cells.length);
+//#else
+        if (cells == null)
+            throw new NullPointerException();
+        if (cells.length < _pathLength)
+            throw new IllegalArgumentException();
+//#endif
+        
+        int node = _goal;
+        
+        for (int i = _pathLength - 1; i >= 0; --i)
+        {
+            cells[i] = node;
+            node = _parent[node];
+        }
+        
+        return _pathLength;
+    }
+    
+    /**
+     * Indica si se puede pasar por una celda. Puede sobreescribirse para 
+     * usar otro criterio (unidades que atraviesan agua, puertas...).
+     */
+    protected boolean isPassable(int col, int row)
+    {
+        int tileIndex = _layer.getCellValue(col, row);
+        
+        if (_blockingFlags == 0)
+        {
+            if (tileIndex < 0)
+                tileIndex = _layer.getAnimatedTile(tileIndex);
+            
+            return tileIndex == 0;
+        }
+        
+        return (_layer.getFlags(tileIndex) & _blockingFlags) == 0;
+    }
+    
+    ///////////////////////////////////////////////////////////////////
+    //Mtodos privados
+    
+    /**
+     * Aade al conjunto abierto las celdas vecinas de un nodo
+     */
+    private void expandNode(int node)
+    {
+        int col = node % _columns;
+        int row = node / _columns;
+        int numNeighbours = _diagonal ? 8 : 4;
+        int nc, nr, neighbour, cost;
+        
+        for (int i = 0; i < numNeighbours; ++i)
+        {
+            nc = col + NEIGHBOUR_X[i];
+            nr = row + NEIGHBOUR_Y[i];
+            
+            if ( (nc < 0) || (nc >= _columns) || (nr < 0) || (nr >= _rows) )
+                continue;
+            
+            neighbour = nr * _columns + nc;
+            
+            //Nodo ya cerrado: con esta heurstica no puede mejorar
+            if ( (_searchIds[neighbour] == _searchId) && (_heapPos[neighbour] == CLOSED) )
+                continue;
+            
+            if (!isPassable(nc, nr))
+                continue;
+            
+            if (i < 4)
+                cost = STRAIGHT_COST;
+            else
+            {
+                //No se cortan esquinas
+                if ( !isPassable(nc, row) || !isPassable(col, nr) )
+                    continue;
+                
+                cost = DIAGONAL_COST;
+            }
+            
+            cost += _g[node];
+            
+            if (_searchIds[neighbour] != _searchId)
+                openNode(neighbour, node, cost, nc, nr);
+            
+            //Ya estaba abierto, pero hemos encontrado un camino ms corto
+            else if (cost < _g[neighbour])
+            {
+                _f[neighbour] -= _g[neighbour] - cost;
+                _g[neighbour] = cost;
+                _parent[neighbour] = node;
+                siftUp(_heapPos[neighbour]);
+            }
+        }
+    }
+    
+    /**
+     * Visita un nodo por primera vez y lo aade al montculo
+     */
+    private void openNode(int node, int parent, int g, int col, int row)
+    {
+        _searchIds[node] = _searchId;
+        _g[node] = g;
+        _f[node] = g + estimate(col, row);
+        _parent[node] = parent;
+        
+        if (_heapSize == _heap.length)
+        {
+            int[] tmp = new int[Math.min(_heap.length * 2, _g.length)];
+            System.arraycopy(_heap, 0, tmp, 0, _heapSize);
+            _heap = tmp;
+        }
+        
+        _heap[_heapSize] = node;
+        _heapPos[node] = _heapSize;
+        siftUp(_heapSize++);
+    }
+    
+    /**
+     * Saca del montculo el nodo de menor coste estimado y lo marca como 
+     * cerrado
+     */
+    private int popNode()
+    {
+        int node = _heap[0];
+        _heapPos[node] = CLOSED;
+        
+        if (--_heapSize > 0)
+        {
+            _heap[0] = _heap[_heapSize];
+            _heapPos[_heap[0]] = 0;
+            siftDown(0);
+        }
+        
+        return node;
+    }
+    
+    /**
+     * Sube un nodo del montculo hasta su posicin
+     */
+    private void siftUp(int pos)
+    {
+        int node = _heap[pos];
+        int parentPos;
+        
+        while (pos > 0)
+        {
+            parentPos = (pos - 1) >> 1;
+            if (!isBefore(node, _heap[parentPos]))
+                break;
+            
+            _heap[pos] = _heap[parentPos];
+            _heapPos[_heap[pos]] = pos;
+            pos = parentPos;
+        }
+        
+        _heap[pos] = node;
+        _heapPos[node] = pos;
+    }
+    
+    /**
+     * Baja un nodo del montculo hasta su posicin
+     */
+    private void siftDown(int pos)
+    {
+        int node = _heap[pos];
+        int child;
+        
+        while ( (child = (pos << 1) + 1) < _heapSize )
+        {
+            if ( (child + 1 < _heapSize) && isBefore(_heap[child + 1], _heap[child]) )
+                child++;
+            
+            if (!isBefore(_heap[child], node))
+                break;
+            
+            _heap[pos] = _heap[child];
+            _heapPos[_heap[pos]] = pos;
+            pos = child;
+        }
+        
+        _heap[pos] = node;
+        _heapPos[node] = pos;
+    }
+    
+    /**
+     * Orden del montculo: menor coste estimado y, a igualdad, el nodo ms
+     * alejado del origen (que suele estar ms cerca del destino)
+     */
+    private boolean isBefore(int a, int b)
+    {
+        return (_f[a] < _f[b]) || ( (_f[a] == _f[b]) && (_g[a] > _g[b]) );
+    }
+    
+    /**
+     * Estimacin del coste hasta el destino. Nunca supera el coste real, as
+     * que el camino encontrado es el ms corto.
+     */
+    private int estimate(int col, int row)
+    {
+        int dx = Math.abs(_goalCol - col);
+        int dy = Math.abs(_goalRow - row);
+        
+        if (_diagonal)
+            return STRAIGHT_COST * (dx + dy) + (DIAGONAL_COST - 2 * STRAIGHT_COST) * Math.min(dx, dy);
+        
+        return STRAIGHT_COST * (dx + dy);
+    }
+    
+    ///////////////////////////////////////////////////////////////////
+    //Elementos privados
+    
+    //Layer sobre el que se buscan caminos y su tamao en celdas
+    private TiledLayer _layer;
+    private int _columns, _rows;
+    
+    //Opciones de bsqueda
+    private int _blockingFlags;
+    private boolean _diagonal;
+    private int _nodeBudget;
+    
+    //Por celda: coste desde el origen, coste estimado total, celda padre,
+    //posicin en el montculo (CLOSED si est cerrada) y bsqueda en la
+    //que se visit por ltima vez
+    private int[] _g, _f, _parent, _heapPos, _searchIds;
+    
+    //Montculo binario de celdas abiertas, ordenado por coste estimado
+    private int[] _heap;
+    private int _heapSize;
+    
+    //Bsqueda actual
+    private int _searchId;
+    private int _goal, _goalCol, _goalRow;
+    private int _status;
+    private int _pathLength;
+}
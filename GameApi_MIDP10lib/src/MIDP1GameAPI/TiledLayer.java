@@ -36,6 +36,26 @@ import javax.microedition.lcdui.Image;
  */
 public class TiledLayer extends Layer {
 
+    /** Modo de dibujado: se dibujan las celdas visibles una a una */
+    public static final int PAINT_DIRECT = 0;
+    
+    /** Modo de dibujado: cach de chunks de celdas pre-renderizados */
+    public static final int PAINT_CHUNK_CACHE = 1;
+    
+    /** Modo de dibujado: buffer retenido en el que slo se redibujan las celdas modificadas */
+    public static final int PAINT_RETAINED_BUFFER = 2;
+    
+    /** Atributo de colisin: el tile es slido */
+    public static final int TILE_SOLID = 1;
+    
+    /** Atributo de colisin: plataforma que slo es slida desde arriba */
+    public static final int TILE_ONE_WAY = 2;
+    
+    /** Atributo de colisin: el tile hace dao */
+    public static final int TILE_HAZARD = 4;
+    
+    /** Atributo de colisin: el tile dispara un evento del juego */
+    public static final int TILE_TRIGGER = 8;
     
     /** 
      * Crea una nueva instancia de un TiledLayer usando una imagen con los tiles. 
@@ -44,6 +64,15 @@ public class TiledLayer extends Layer {
 //#if NOKIA_UI
 //#     public TiledLayer (int columns, int rows, ImageSet imageSet)
 //#     {
+//#         this(columns, rows, imageSet, 0);
+//#     }
+//#     
+//#     /**
+//#      * Crea un TiledLayer con el mapa guardado por chunks (ver el constructor 
+//#      * equivalente con Image)
+//#      */
+//#     public TiledLayer (int columns, int rows, ImageSet imageSet, int chunkSize)
+//#     {
 //#         //Establecemos el tileset a usar
 //#         _tileSet = imageSet;
 //#         
@@ -63,30 +92,58 @@ public class TiledLayer extends Layer {
 //#         _numRows = rows;                
 //# 
 //#         //Creamos el mapa de tiles. El valor de cada celda se inicializa a cero por defecto
-//#         _tileMap = new int[rows*columns];
+//#         if (chunkSize > 0)
+//#             createSparseMap(chunkSize);
+//#         updateCellStorage();
 //#         
 //#         // Array para referencia tiles animados.
-//#         // Inicialmente con capacidad 2
-//#         // 2enteros * 2bytes = 4bytes sin usar
+//#         // Inicialmente con capacidad 2 (la posicin 0 no se usa)
 //#         _numAnimatedTiles = 2;
 //#         _animatedTileReferences = new int [_numAnimatedTiles];
 //#         _indexAnimatedTiles = 0;
 //#         
+//#         //Animaciones de los tiles animados
+//#         _animatedFrames = new int [_numAnimatedTiles][];
+//#         _animatedDurations = new int [_numAnimatedTiles][];
+//#         _animatedCycle = new int [_numAnimatedTiles];
+//#         _animatedFrame = new int [_numAnimatedTiles];
+//#         _animatedTime = new int [_numAnimatedTiles];
+//#         
 //#         //Inicialmente el layer es visible
 //#         _visible = true;        
 //#     }
 //#endif
     
     public TiledLayer (int columns, int rows, Image image, int tileWidth, int tileHeight) 
+    {
+        this(columns, rows, image, tileWidth, tileHeight, 0);
+    }
+    
+    /**
+     * Crea un TiledLayer cuyo mapa se guarda dividido en chunks de 
+     * chunkSize x chunkSize celdas, pensado para mundos muy grandes y en su 
+     * mayor parte vacos. chunkSize ha de ser una potencia de 2, o 0 para 
+     * guardar el mapa en un nico array.
+     * <p>
+     * Los chunks cuyas celdas tienen todas el mismo valor (por ejemplo los 
+     * vacos) no reservan memoria, se guardan como un nico valor. Los chunks 
+     * que dejan de ser uniformes tras setCell() pueden volver a compactarse con
+     * compactChunks(). El acceso a una celda sigue siendo O(1).
+     */
+    public TiledLayer (int columns, int rows, Image image, int tileWidth, int tileHeight, int chunkSize) 
     {
         
         //Comprobacin de errores en los argumentos
 //#if DEBUG
 //#         if (columns < 1) throw new IllegalArgumentException("TiledLayer::TiledLayer - arg columns = " + columns);
 //#         if (rows < 1) throw new IllegalArgumentException("TiledLayer::TiledLayer - arg rows = " + rows);
+//#         if ( (chunkSize < 0) || ( (chunkSize & (chunkSize - 1)) != 0 ) )
+//#             throw new IllegalArgumentException("TiledLayer::TiledLayer - arg chunkSize = " + chunkSize);
 //#else
         if (columns < 1) throw new IllegalArgumentException();
         if (rows < 1) throw new IllegalArgumentException();
+        if ( (chunkSize < 0) || ( (chunkSize & (chunkSize - 1)) != 0 ) ) 
+            throw new IllegalArgumentException();
 //#endif
        
         //Establecemos la imagen para el tileset
@@ -101,15 +158,23 @@ public class TiledLayer extends Layer {
         _numRows = rows;                
 
         //Creamos el mapa de tiles. El valor de cada celda se inicializa a cero por defecto
-        _tileMap = new int[rows*columns];
+        if (chunkSize > 0)
+            createSparseMap(chunkSize);
+        updateCellStorage();
         
         // Array para referencia tiles animados.
-        // Inicialmente con capacidad 2
-        // 2enteros * 2bytes = 4bytes sin usar
+        // Inicialmente con capacidad 2 (la posicin 0 no se usa)
         _numAnimatedTiles = 2;
         _animatedTileReferences = new int [_numAnimatedTiles];
         _indexAnimatedTiles = 0;
         
+        //Animaciones de los tiles animados
+        _animatedFrames = new int [_numAnimatedTiles][];
+        _animatedDurations = new int [_numAnimatedTiles][];
+        _animatedCycle = new int [_numAnimatedTiles];
+        _animatedFrame = new int [_numAnimatedTiles];
+        _animatedTime = new int [_numAnimatedTiles];
+        
         //Inicialmente el layer es visible
         _visible = true;
  }
@@ -125,24 +190,15 @@ public class TiledLayer extends Layer {
         throw new IllegalArgumentException();    
 //#endif
         
-        //Guardamos referencia
-        _animatedTileReferences[_indexAnimatedTiles++] = staticTileIndex;
+        //Redimensionamos los arrays de 3 en 3 posiciones si es necesario
+        if (_indexAnimatedTiles + 1 == _numAnimatedTiles)
+            growAnimatedTiles(_numAnimatedTiles + 3);
         
-        //Redimensionamos el array de 3 en 3 posiciones si es necesario
-        if (_indexAnimatedTiles == _numAnimatedTiles)
-        {
-            int[] animTilesRefTemp = new int[_numAnimatedTiles + 3];
-   
-            System.arraycopy(_animatedTileReferences,  0, animTilesRefTemp, 0, _numAnimatedTiles);
-            
-            _numAnimatedTiles += 3;
-            
-           _animatedTileReferences = animTilesRefTemp;
-           
-           animTilesRefTemp = null;
-           
-           System.gc();
-        }
+        //Guardamos referencia. El tile animado -n se guarda en la posicin n
+        _animatedTileReferences[++_indexAnimatedTiles] = staticTileIndex;
+        
+        //El nuevo ndice puede no caber en el tipo de array del mapa
+        updateCellStorage();
             
         return -_indexAnimatedTiles;
     }
@@ -176,7 +232,137 @@ public class TiledLayer extends Layer {
         throw new IndexOutOfBoundsException();
 //#endif
     
+        int oldStaticTileIndex = _animatedTileReferences[- animatedTileIndex];
+        if (oldStaticTileIndex == staticTileIndex)
+            return;
+        
         _animatedTileReferences[- animatedTileIndex] = staticTileIndex;
+        
+        //Las celdas que referencian este tile animado deben redibujarse
+        invalidateAnimatedTile(animatedTileIndex);
+        updateAnimatedTileFlags(animatedTileIndex, oldStaticTileIndex);
+    }
+    
+    /**
+     * Asigna una animacin a un tile animado: la lista de tiles estticos que
+     * mostrar y cunto dura cada uno, en milisegundos. La animacin se repite
+     * en bucle y avanza con advance(). Los arrays se copian.
+     * <p>
+     * Con staticTileIndices a null se elimina la animacin y el tile animado 
+     * conserva el tile esttico actual. setAnimatedTile() sigue funcionando,
+     * pero en un tile con animacin el cambio dura hasta el siguiente frame.
+     */
+    public void setAnimatedTileFrames(int animatedTileIndex, int[] staticTileIndices, int[] durations)
+    {
+//#if DEBUG
+//#         if ( ( animatedTileIndex >= 0) || ( (- animatedTileIndex) > _indexAnimatedTiles) )
+//#             throw new IndexOutOfBoundsException("TiledLayer::setAnimatedTileFrames - arg animatedTileIndex = " + animatedTileIndex);
+//#else 
+        if ( ( animatedTileIndex >= 0) || ( (-animatedTileIndex) > _indexAnimatedTiles) )
+            throw new IndexOutOfBoundsException();
+//#endif
+        
+        int index = -animatedTileIndex;
+        
+        if (staticTileIndices == null)
+        {
+            _animatedFrames[index] = null;
+            _animatedDurations[index] = null;
+            return;
+        }
+        
+//#if DEBUG
+//#         if (durations == null)
+//#             throw new NullPointerException("TiledLayer::setAnimatedTileFrames - arg durations is null");
+//#         if ( (staticTileIndices.length == 0) || (staticTileIndices.length != durations.length) )
+//#             throw new IllegalArgumentException("TiledLayer::setAnimatedTileFrames - frames and durations lengths differ or are 0");
+//#         for (int i = 0; i < staticTileIndices.length; ++i)
+//#         {
+//#             if ( (staticTileIndices[i] < 0) || (staticTileIndices[i] > _totalTiles) )
+//#                 throw new IndexOutOfBoundsException("TiledLayer::setAnimatedTileFrames - frame " + i + " = " + staticTileIndices[i]);
+//#             if (durations[i] < 1)
+//#                 throw new IllegalArgumentException("TiledLayer::setAnimatedTileFrames - duration " + i + " = " + durations[i]);
+//#         }
+//#else
+        if (durations == null)
+            throw new NullPointerException();
+        if ( (staticTileIndices.length == 0) || (staticTileIndices.length != durations.length) )
+            throw new IllegalArgumentException();
+        for (int i = 0; i < staticTileIndices.length; ++i)
+        {
+            if ( (staticTileIndices[i] < 0) || (staticTileIndices[i] > _totalTiles) )
+                throw new IndexOutOfBoundsException();
+            if (durations[i] < 1)
+                throw new IllegalArgumentException();
+        }
+//#endif
+        
+        int cycle = 0;
+        for (int i = 0; i < durations.length; ++i)
+            cycle += durations[i];
+        
+        _animatedFrames[index] = new int[staticTileIndices.length];
+        _animatedDurations[index] = new int[durations.length];
+        System.arraycopy(staticTileIndices, 0, _animatedFrames[index], 0, staticTileIndices.length);
+        System.arraycopy(durations, 0, _animatedDurations[index], 0, durations.length);
+        _animatedCycle[index] = cycle;
+        _animatedFrame[index] = 0;
+        _animatedTime[index] = 0;
+        
+        setAnimatedTile(animatedTileIndex, staticTileIndices[0]);
+    }
+    
+    /**
+     * Avanza elapsedMillis milisegundos las animaciones de todos los tiles 
+     * animados que tengan una asignada con setAnimatedTileFrames(). 
+     * Slo se redibujan las celdas de los tiles animados que cambian de frame.
+     */
+    public void advance(int elapsedMillis)
+    {
+//#if DEBUG
+//#         if (elapsedMillis < 0)
+//#             throw new IllegalArgumentException("TiledLayer::advance - arg elapsedMillis = " + elapsedMillis);
+//#else
+        if (elapsedMillis < 0)
+            throw new IllegalArgumentException();
+//#endif
+        
+        int[] durations;
+        int frame, time;
+        
+        for (int i = 1; i <= _indexAnimatedTiles; ++i)
+        {
+            durations = _animatedDurations[i];
+            if (durations == null)
+                continue;
+            
+            //Las vueltas completas no cambian el frame. As el bucle da como
+            //mucho una vuelta aunque el tiempo transcurrido sea muy grande
+            time = _animatedTime[i] + (elapsedMillis % _animatedCycle[i]);
+            frame = _animatedFrame[i];
+            
+            while (time >= durations[frame])
+            {
+                time -= durations[frame];
+                if (++frame == durations.length)
+                    frame = 0;
+            }
+            
+            _animatedTime[i] = time;
+            
+            if (frame != _animatedFrame[i])
+            {
+                _animatedFrame[i] = frame;
+                
+                if (_animatedTileReferences[i] != _animatedFrames[i][frame])
+                {
+                    int oldStaticTileIndex = _animatedTileReferences[i];
+                    _animatedTileReferences[i] = _animatedFrames[i][frame];
+                    invalidateAnimatedTile(-i);
+                    updateAnimatedTileFlags(-i, oldStaticTileIndex);
+                }
+            }
+        }
     }
     
     public void fillCells(int col, int row, int numCols, int numRows, int tileIndex)
@@ -195,7 +381,7 @@ public class TiledLayer extends Layer {
 //#             throw new IllegalArgumentException("TiledLayer::fillCells - arg numRows  = " + numRows);
 //#         if ( numCols + col > getColumns() ) 
 //#             throw new IndexOutOfBoundsException("TiledLayer::fillCells - Region columns overflow");
-//#         if ( (tileIndex >= 0) && ( tileIndex > ( getRows() * getColumns() ) ) )
+//#         if ( (tileIndex >= 0) && ( tileIndex > _totalTiles ) )
 //#             throw new IndexOutOfBoundsException("TiledLayer::fillCells - Arg tileIndex incorrect");
 //#         if ( (tileIndex < 0) && ((-tileIndex) > _indexAnimatedTiles))
 //#             throw new IndexOutOfBoundsException("TiledLayer::fillCells - Arg tileIndex incorrect");
@@ -207,23 +393,46 @@ public class TiledLayer extends Layer {
         throw new IndexOutOfBoundsException();
     if ( (numCols < 0) || (numRows < 0) ) 
         throw new IllegalArgumentException();
-   if ( (tileIndex >= 0) && ( tileIndex > ( getRows() * getColumns() ) ) )
+   if ( (tileIndex >= 0) && ( tileIndex > _totalTiles ) )
         throw new IndexOutOfBoundsException();    
    if ( (tileIndex < 0) && ((-tileIndex) > _indexAnimatedTiles))         
         throw new IndexOutOfBoundsException();
 //#endif  
  
+        //Una regin vaca no modifica nada
+        if ( (numCols == 0) || (numRows == 0) )
+            return;
+        
+        //Invalidamos la regin modificada
+        invalidateCells(col, row, numCols, numRows);
+        
+        //Actualizamos el ndice de celdas con tiles animados
+        if (_animatedCells != null)
+        {
+            removeAnimatedCells(col, row, numCols, numRows);
+            if (tileIndex < 0)
+                for (int r = row; r < row + numRows; ++r)
+                    for (int c = col; c < col + numCols; ++c)
+                        addAnimatedCell(tileIndex, r * _numColumns + c);
+        }
+        
+        //En el mapa por chunks los chunks cubiertos por completo pasan a ser uniformes
+        if (_sparseMap)
+        {
+            fillSparseCells(col, row, numCols, numRows, tileIndex);
+            return;
+        }
+ 
         int tempCol = col;
         
         for (int x = 0; x < numRows; ++x, ++row)
         {
             col=tempCol;
             for (int y = 0; y < numCols; ++y, ++col)
-                _tileMap[row * _numColumns + col] = tileIndex;        
+                setCellValue(col, row, tileIndex);        
         }
-
-        
         
+        updateFlagRows(tempCol, row - numRows, numCols, numRows);
     }
        
     public final int getCell(int col, int row)
@@ -249,7 +458,7 @@ public class TiledLayer extends Layer {
             throw new IndexOutOfBoundsException();
 //#endif
 
-        return _tileMap[row * _numRows + col];
+        return getCellValue(col, row);
 
     }
     
@@ -264,6 +473,9 @@ public class TiledLayer extends Layer {
 //#         
 //#         if ( (tileIndex >= 0) && ( tileIndex > _totalTiles ) )
 //#             throw new IndexOutOfBoundsException("TiledLayer::setCell - Arg tileIndex incorrect");
+//#         
+//#         if ( (tileIndex < 0) && ((-tileIndex) > _indexAnimatedTiles) )
+//#             throw new IndexOutOfBoundsException("TiledLayer::setCell - Arg tileIndex incorrect");
 //#else
         if ( ( col < 0 ) || ( col >= getColumns() ) ) 
             throw new IndexOutOfBoundsException();
@@ -273,9 +485,213 @@ public class TiledLayer extends Layer {
         
         if ( (tileIndex >= 0) && ( tileIndex > _totalTiles ) )
             throw new IndexOutOfBoundsException();
+        
+        if ( (tileIndex < 0) && ((-tileIndex) > _indexAnimatedTiles) )
+            throw new IndexOutOfBoundsException();
 //#endif
 
-        _tileMap[row * _numRows + col] = tileIndex;
+        //Actualizamos el ndice de celdas con tiles animados
+        if (_animatedCells != null)
+        {
+            int oldTileIndex = getCellValue(col, row);
+            if (oldTileIndex != tileIndex)
+            {
+                if (oldTileIndex < 0)
+                    removeAnimatedCell(oldTileIndex, row * _numColumns + col);
+                if (tileIndex < 0)
+                    addAnimatedCell(tileIndex, row * _numColumns + col);
+            }
+        }
+        
+        setCellValue(col, row, tileIndex);
+        updateFlagRows(col, row, 1, 1);
+        
+        //Invalidamos la celda modificada
+        invalidateCells(col, row, 1, 1);
+    }
+    
+    /**
+     * Copia un bloque de ndices de tile en la regin de numCols x numRows 
+     * celdas que empieza en (col, row). La celda (col + c, row + r) toma el 
+     * valor tiles[offset + r * scanlength + c].
+     * <p>
+     * Los argumentos y todos los ndices se comprueban una sola vez antes de 
+     * modificar el mapa, que se copia por filas. La regin completa se 
+     * invalida de una vez para los modos de dibujado con imgenes fuera de 
+     * pantalla.
+     */
+    public void setCells(int col, int row, int numCols, int numRows, int[] tiles, int offset, int scanlength)
+    {
+        checkCellBlock(col, row, numCols, numRows, tiles, offset, scanlength);
+        
+        int value;
+        for (int r = 0; r < numRows; ++r)
+            for (int c = 0; c < numCols; ++c)
+            {
+                value = tiles[offset + r * scanlength + c];
+                if ( (value > _totalTiles) || (value < -_indexAnimatedTiles) )
+//#if DEBUG
+//#                     throw new IndexOutOfBoundsException("TiledLayer::setCells - tile index " + value + " at " + (offset + r * scanlength + c));
+//#else
+                    throw new IndexOutOfBoundsException();
+//#endif
+            }
+        
+        if ( (numCols == 0) || (numRows == 0) )
+            return;
+        
+        //Actualizamos el ndice de celdas con tiles animados
+        if (_animatedCells != null)
+        {
+            removeAnimatedCells(col, row, numCols, numRows);
+            for (int r = 0; r < numRows; ++r)
+                for (int c = 0; c < numCols; ++c)
+                {
+                    value = tiles[offset + r * scanlength + c];
+                    if (value < 0)
+                        addAnimatedCell(value, (row + r) * _numColumns + col + c);
+                }
+        }
+        
+        for (int r = 0; r < numRows; ++r)
+            setCellValues(col, row + r, tiles, offset + r * scanlength, numCols);
+        
+        updateFlagRows(col, row, numCols, numRows);
+        invalidateCells(col, row, numCols, numRows);
+    }
+    
+    /**
+     * Copia los ndices de tile de la regin de numCols x numRows celdas que 
+     * empieza en (col, row) en tiles, con la misma disposicin que setCells()
+     */
+    public void getCells(int col, int row, int numCols, int numRows, int[] tiles, int offset, int scanlength)
+    {
+        checkCellBlock(col, row, numCols, numRows, tiles, offset, scanlength);
+        
+        for (int r = 0; r < numRows; ++r)
+            getCellValues(col, row + r, tiles, offset + r * scanlength, numCols);
+    }
+    
+    /**
+     * Aplica un lote de cambios sueltos: para i < count, la celda cells[i] 
+     * (fila * columnas + columna) pasa a tener el tile tiles[i]. Pensado para 
+     * generacin procedural o terreno destructible, con muchos cambios por frame.
+     * <p>
+     * Todo el lote se comprueba antes de modificar el mapa, as que si hay un 
+     * error no se aplica ningn cambio. Las celdas modificadas se invalidan de
+     * una vez con el rectngulo que las engloba. Si changedArea no es null se 
+     * guarda en l ese rectngulo (columna, fila, columnas, filas), con tamao
+     * 0 si ninguna celda cambia de valor.
+     * 
+     * @return nmero de celdas cuyo valor ha cambiado
+     */
+    public int applyCellEdits(int[] cells, int[] tiles, int count, int[] changedArea)
+    {
+//#if DEBUG
+//#         if ( (cells == null) || (tiles == null) )
+//#             throw new NullPointerException("TiledLayer::applyCellEdits - cells or tiles is null");
+//#         if ( (count < 0) || (count > cells.length) || (count > tiles.length) )
+//#             throw new IllegalArgumentException("TiledLayer::applyCellEdits - arg count = " + count);
+//#         if ( (changedArea != null) && (changedArea.length < 4) )
+//#             throw new IllegalArgumentException("TiledLayer::applyCellEdits - changedArea length < 4");
+//#         for (int i = 0; i < count; ++i)
+//#         {
+//#             if ( (cells[i] < 0) || (cells[i] >= _numColumns * _numRows) )
+//#                 throw new IndexOutOfBoundsException("TiledLayer::applyCellEdits - cell " + cells[i] + " at " + i);
+//#             if ( (tiles[i] > _totalTiles) || (tiles[i] < -_indexAnimatedTiles) )
+//#                 throw new IndexOutOfBoundsException("TiledLayer::applyCellEdits - tile index " + tiles[i] + " at " + i);
+//#         }
+//#else
+        if ( (cells == null) || (tiles == null) )
+            throw new NullPointerException();
+        if ( (count < 0) || (count > cells.length) || (count > tiles.length) ||
+             ( (changedArea != null) && (changedArea.length < 4) ) )
+            throw new IllegalArgumentException();
+        for (int i = 0; i < count; ++i)
+            if ( (cells[i] < 0) || (cells[i] >= _numColumns * _numRows) ||
+                 (tiles[i] > _totalTiles) || (tiles[i] < -_indexAnimatedTiles) )
+                throw new IndexOutOfBoundsException();
+//#endif
+        
+        int firstCol = Integer.MAX_VALUE, firstRow = Integer.MAX_VALUE;
+        int lastCol = -1, lastRow = -1;
+        int changed = 0;
+        int col, row, oldTileIndex;
+        
+        for (int i = 0; i < count; ++i)
+        {
+            col = cells[i] % _numColumns;
+            row = cells[i] / _numColumns;
+            
+            oldTileIndex = getCellValue(col, row);
+            if (oldTileIndex == tiles[i])
+                continue;
+            
+            //Actualizamos el ndice de celdas con tiles animados
+            if (_animatedCells != null)
+            {
+                if (oldTileIndex < 0)
+                    removeAnimatedCell(oldTileIndex, cells[i]);
+                if (tiles[i] < 0)
+                    addAnimatedCell(tiles[i], cells[i]);
+            }
+            
+            setCellValue(col, row, tiles[i]);
+            updateFlagBits(col, row, tiles[i]);
+            
+            //Rectngulo que engloba los cambios
+            if (col < firstCol) firstCol = col;
+            if (col > lastCol) lastCol = col;
+            if (row < firstRow) firstRow = row;
+            if (row > lastRow) lastRow = row;
+            changed++;
+        }
+        
+        //La regin a redibujar se invalida una sola vez para todo el
+        //rectngulo
+        if (changed > 0)
+            invalidateCells(firstCol, firstRow, lastCol - firstCol + 1, lastRow - firstRow + 1);
+        
+        if (changedArea != null)
+        {
+            if (changed > 0)
+            {
+                changedArea[0] = firstCol;
+                changedArea[1] = firstRow;
+                changedArea[2] = lastCol - firstCol + 1;
+                changedArea[3] = lastRow - firstRow + 1;
+            }
+            else
+                changedArea[0] = changedArea[1] = changedArea[2] = changedArea[3] = 0;
+        }
+        
+        return changed;
+    }
+    
+    /**
+     * Comprueba los argumentos de setCells() y getCells()
+     */
+    private void checkCellBlock(int col, int row, int numCols, int numRows, int[] tiles, int offset, int scanlength)
+    {
+//#if DEBUG
+//#         if (tiles == null)
+//#             throw new NullPointerException("TiledLayer::setCells/getCells - arg tiles is null");
+//#         if ( (numCols < 0) || (numRows < 0) || (scanlength < numCols) )
+//#             throw new IllegalArgumentException("TiledLayer::setCells/getCells - numCols = " + numCols + ", numRows = " + numRows + ", scanlength = " + scanlength);
+//#         if ( (col < 0) || (row < 0) || (col + numCols > _numColumns) || (row + numRows > _numRows) )
+//#             throw new IndexOutOfBoundsException("TiledLayer::setCells/getCells - region out of the map");
+//#         if ( (numRows > 0) && ( (offset < 0) || (offset + (numRows - 1) * scanlength + numCols > tiles.length) ) )
+//#             throw new ArrayIndexOutOfBoundsException("TiledLayer::setCells/getCells - region out of the tiles array");
+//#else
+        if (tiles == null)
+            throw new NullPointerException();
+        if ( (numCols < 0) || (numRows < 0) || (scanlength < numCols) )
+            throw new IllegalArgumentException();
+        if ( (col < 0) || (row < 0) || (col + numCols > _numColumns) || (row + numRows > _numRows) )
+            throw new IndexOutOfBoundsException();
+        if ( (numRows > 0) && ( (offset < 0) || (offset + (numRows - 1) * scanlength + numCols > tiles.length) ) )
+            throw new ArrayIndexOutOfBoundsException();
+//#endif
     }
     
     public final int getCellWidth()
@@ -319,6 +735,8 @@ public class TiledLayer extends Layer {
                 throw new IllegalArgumentException();
 //#endif
 
+        int oldTotalTiles = _totalTiles;
+        
 //#ifdef NOKIA_UI        
 //#         //Guardamos la imagen con el grupo de tiles en un tileSet
 //#         _tileSet.setImage(image, tileWidth, tileHeight);
@@ -332,148 +750,2231 @@ public class TiledLayer extends Layer {
         _numRowTiles = image.getHeight() / tileHeight;
         //Guardamos el total de tiles de la imagen        
         _totalTiles =  _numColTiles * _numRowTiles;        
+        
+        //Posicin de cada tile en la imagen
+        createTileTable(createGridTileRects(_numColTiles, _numRowTiles, tileWidth, tileHeight, 0, 0), tileWidth, tileHeight);
 //#endif
-        //Tamao del tile
-        _tileHeight = tileHeight;
-        _tileWidth = tileWidth;
+        
+        tileSetChanged(oldTotalTiles, tileWidth, tileHeight);
     }
-   
-    // Paint Genrico
-    public void paint (Graphics g)
+    
+    /**
+     * Establece un tileset cuyos tiles estn en una rejilla con un margen 
+     * alrededor de la imagen y una separacin entre tiles, en pxeles. 
+     * Se usan todos los tiles que caben completos en la imagen, numerados por filas.
+     */
+    public void setStaticTileSet(Image image, int tileWidth, int tileHeight, int margin, int spacing)
     {
-        if (!_visible)
-            return;
-        
 //#if DEBUG
-//#         //Establecemos el color para dibujar los lmites de cada celda
-//#         //en modo Debug
-//#         g.setColor(255,0,255);
+//#         if (image == null) throw new NullPointerException("TiledLayer::setStaticTileSet- arg Image");
+//#         if (tileWidth < 1) throw new IllegalArgumentException("TiledLayer::setStaticTileSet - arg tileWidth = " + tileWidth);
+//#         if (tileHeight < 1) throw new IllegalArgumentException("TiledLayer::setStaticTileSet- arg tileHeight = " + tileHeight);
+//#         if ( (margin < 0) || (spacing < 0) ) 
+//#             throw new IllegalArgumentException("TiledLayer::setStaticTileSet - margin = " + margin + ", spacing = " + spacing);
+//#else
+        if (image == null)
+            throw new NullPointerException();
+        if ( (tileWidth < 1) || (tileHeight < 1) || (margin < 0) || (spacing < 0) )
+            throw new IllegalArgumentException();
 //#endif
-
-        //Datos originales del rectngulo de clipping
-        _clipX = g.getClipX();
-        _clipY = g.getClipY();
-        _clipH = g.getClipHeight();
-        _clipW = g.getClipWidth();
-       
-        // Calculamos los tiles por los que vamos a iterar y, por tanto, dibujar
-        // "intersecando" el mapa de tiles con el rectangulo de clipping actual
-        // para obtener el primer y ltimo tile del mapa que por los que tendremos
-        // que iterar para dibujar la parte comprendida en el rectngulo de clipping
-        _tileInicioX = (-_posx + _clipX) / _tileWidth;
-        _tileInicioY = (-_posy + _clipY) / _tileHeight;
-        _tileFinX = ( (_clipX + _clipW - _posx ) / _tileWidth ) +1;
-        _tileFinY = ( (_clipY + _clipH - _posy ) /_tileHeight ) +1;        
-        
-         //Comprobamos lmites, por si nos pasamos en los ndices de los tiles
-        if (_tileInicioX < 0) _tileInicioX = 0;
-        if (_tileInicioY < 0) _tileInicioY = 0;
-        if (_tileFinX >= _numColumns) _tileFinX = _numColumns;
-        if (_tileFinY >= _numRows) _tileFinY = _numRows;
         
+        int columns = (image.getWidth() - 2 * margin + spacing) / (tileWidth + spacing);
+        int rows = (image.getHeight() - 2 * margin + spacing) / (tileHeight + spacing);
         
-        _currentCellY = _tileInicioY * _tileHeight;
-        
-        //Iteramos por los tiles visibles en pantalla
-        for (currentCellRow = _tileInicioY ; currentCellRow < _tileFinY; ++currentCellRow)
-        {
-            _currentCellX = _tileInicioX *_tileWidth;
-            for (currentCellColumn = _tileInicioX; currentCellColumn < _tileFinX; ++currentCellColumn)
-            {
-
-                //Posicin del tile a dibujar 
-                tileIndex = _tileMap[currentCellRow * _numColumns + currentCellColumn];
-                
-                //Si el tile es 0 no dibujamos nada
-                if (tileIndex == 0) 
-                {
-
+        if ( (columns < 1) || (rows < 1) )
 //#if DEBUG
-//#ifndef NOKIA_UI                
-//#                 //Marcamos con un rectngulo la posicion del tile actual
-//#                 //Fijamos el clipping del tile  
-//#                 g.setClip(_posx + _currentCellX,
-//#                         _posy + _currentCellY, 
-//#                         _tileWidth, 
-//#                         _tileHeight);
-//#endif                
-//#                 //Intersecamos con el rectngulo de clipping de la pantalla
-//#                 g.clipRect(_clipX, _clipY, _clipW, _clipH);                    
-//#                     g.drawRect(
-//#                            _posx + _currentCellX,
-//#                            _posy + _currentCellY,
-//#                             _tileWidth, _tileHeight);
-//#endif                       
-                    
-                    //Actualizamos posicion celda actual
-                    _currentCellX += _tileWidth;
-                    
-                    continue;  
-                }
-                                  
-                //Tile animado
-                if (tileIndex < 0)
-                    //Cambiamos la referencia
-                    tileIndex = _animatedTileReferences[-(tileIndex)];
-             
-                //Tiles normales (diferencia de cero)
-                tileIndex--;
-                
-//#ifndef NOKIA_UI
-                 //Obtenemos la posicin del tile a dibujar en el tileSet
-                 _currentTileRowOffset = (tileIndex / this._numRowTiles) * _tileHeight;
-                 _currentTileColOffset = (tileIndex % this._numColTiles) * _tileWidth;
-                
-                //Fijamos el clipping del tile  
-                g.setClip(_posx + _currentCellX,
-                        _posy + _currentCellY, 
-                        _tileWidth, 
-                        _tileHeight);
-                
-                //Intersecamos con el rectngulo de clipping de la pantalla
-                g.clipRect(_clipX, _clipY, _clipW, _clipH);
-                
-                //Dibujamos
-                g.drawImage(_tileSet, 
-                        _posx + _currentCellX - _currentTileColOffset,
-                        _posy +_currentCellY - _currentTileRowOffset,
-                        Graphics.TOP | Graphics.LEFT);
+//#             throw new IllegalArgumentException("TiledLayer::setStaticTileSet - no tiles fit in the image");
 //#else
-//# 
-//#                 g.drawImage(_tileSet.getFrameAt(tileIndex), 
-//#                         _posx + _currentCellX , 
-//#                         _posy + _currentCellY , 
-//#                         Graphics.TOP | Graphics.LEFT);
-//# 
+            throw new IllegalArgumentException();
 //#endif
-                
-//#if DEBUG
-//#                 //Marcamos con un rectngulo la posicion del tile actual
-//#                 g.drawRect(
-//#                            _posx + _currentCellX,
-//#                            _posy + _currentCellY,
-//#                             _tileWidth, _tileHeight);
-//#endif                
-               //Actualizamos posicion celda actual
-               _currentCellX += _tileWidth;  
-            }
-             
-            //Actualizamos posicion celda actual 
-            _currentCellY += _tileHeight;
-            
-        }
-        //Restauramos el tamao de clip
+        
+        setStaticTileSet(image, tileWidth, tileHeight, 
+                createGridTileRects(columns, rows, tileWidth, tileHeight, margin, spacing));
+        
 //#ifndef NOKIA_UI
-        g.setClip(_clipX, _clipY, _clipW, _clipH);
+        _numColTiles = columns;
+        _numRowTiles = rows;
 //#endif
     }
     
-     
-    // Datos privados //////////////////////////////////////////////////////////
-        
-    //Tamao del tile
-    protected int _tileWidth;
-    protected int _tileHeight;
+    /**
+     * Establece un tileset empaquetado en un atlas con una posicin arbitraria 
+     * para cada tile. tileRects contiene 4 enteros por tile (x, y, ancho, alto)
+     * con su rectngulo en la imagen; el tile i + 1 usa las posiciones 4*i a 4*i+3.
+     * <p>
+     * Un tile puede ser menor que la celda (por ejemplo si el empaquetador ha 
+     * recortado sus bordes transparentes): se dibuja en la esquina superior
+     * izquierda de la celda y el resto queda vaco.
+     */
+    public void setStaticTileSet(Image image, int tileWidth, int tileHeight, int[] tileRects)
+    {
+//#if DEBUG
+//#         if (image == null) throw new NullPointerException("TiledLayer::setStaticTileSet- arg Image");
+//#         if (tileRects == null) throw new NullPointerException("TiledLayer::setStaticTileSet- arg tileRects");
+//#         if (tileWidth < 1) throw new IllegalArgumentException("TiledLayer::setStaticTileSet - arg tileWidth = " + tileWidth);
+//#         if (tileHeight < 1) throw new IllegalArgumentException("TiledLayer::setStaticTileSet- arg tileHeight = " + tileHeight);
+//#         if ( (tileRects.length == 0) || ( (tileRects.length & 3) != 0 ) )
+//#             throw new IllegalArgumentException("TiledLayer::setStaticTileSet - tileRects length = " + tileRects.length);
+//#         for (int i = 0; i < tileRects.length; i += 4)
+//#             if ( (tileRects[i] < 0) || (tileRects[i + 1] < 0) ||
+//#                  (tileRects[i + 2] < 1) || (tileRects[i + 2] > tileWidth) ||
+//#                  (tileRects[i + 3] < 1) || (tileRects[i + 3] > tileHeight) ||
+//#                  (tileRects[i] + tileRects[i + 2] > image.getWidth()) ||
+//#                  (tileRects[i + 1] + tileRects[i + 3] > image.getHeight()) )
+//#                 throw new IllegalArgumentException("TiledLayer::setStaticTileSet - invalid rect for tile " + (i / 4 + 1));
+//#else
+        if ( (image == null) || (tileRects == null) )
+            throw new NullPointerException();
+        if ( (tileWidth < 1) || (tileHeight < 1) || (tileRects.length == 0) || ( (tileRects.length & 3) != 0 ) )
+            throw new IllegalArgumentException();
+        for (int i = 0; i < tileRects.length; i += 4)
+            if ( (tileRects[i] < 0) || (tileRects[i + 1] < 0) ||
+                 (tileRects[i + 2] < 1) || (tileRects[i + 2] > tileWidth) ||
+                 (tileRects[i + 3] < 1) || (tileRects[i + 3] > tileHeight) ||
+                 (tileRects[i] + tileRects[i + 2] > image.getWidth()) ||
+                 (tileRects[i + 1] + tileRects[i + 3] > image.getHeight()) )
+                throw new IllegalArgumentException();
+//#endif
+        
+        int oldTotalTiles = _totalTiles;
+        
+//#ifdef NOKIA_UI        
+//#         //Cada tile se copia en un frame del tileSet
+//#         _tileSet.setImage(image, tileWidth, tileHeight, tileRects);
+//#else
+        _tileSet = image;
+        
+        //Los tiles no estn en una rejilla
+        _numColTiles = _numRowTiles = 0;
+        
+        createTileTable(tileRects, tileWidth, tileHeight);
+//#endif
+        _totalTiles = tileRects.length / 4;
+        
+        tileSetChanged(oldTotalTiles, tileWidth, tileHeight);
+    }
+    
+    /**
+     * Actualiza el layer tras cambiar de tileset. Como en MIDP 2.0, si el
+     * nuevo tileset tiene menos tiles que el anterior se vacan todas las
+     * celdas y se eliminan los tiles animados, ya que sus ndices pueden no
+     * existir en l.
+     */
+    private void tileSetChanged(int oldTotalTiles, int tileWidth, int tileHeight)
+    {
+        //Vaciamos el mapa antes de liberar las cachs y las mscaras de
+        //colisin, que se consultan al modificar las celdas
+        if ( (_totalTiles < oldTotalTiles) && (_numColumns > 0) )
+        {
+            fillCells(0, 0, _numColumns, _numRows, 0);
+            
+            for (int i = 1; i <= _indexAnimatedTiles; ++i)
+            {
+                _animatedTileReferences[i] = 0;
+                _animatedFrames[i] = null;
+                _animatedDurations[i] = null;
+            }
+            _indexAnimatedTiles = 0;
+            releaseAnimatedCells();
+        }
+        
+        //Tamao del tile
+        _tileHeight = tileHeight;
+        _tileWidth = tileWidth;
+        
+        //El nuevo tileset puede tener ms tiles de los que caben en el mapa
+        updateCellStorage();
+        
+        //Las imgenes fuera de pantalla ya no son vlidas con el nuevo tileset
+        releaseChunkCache();
+        releaseRetainedBuffer();
+        
+        //Los atributos de colisin se definen por tileset
+        _tileFlags = null;
+        _flagRows = null;
+        
+        layerChanged();
+    }
+    
+    /**
+     * Devuelve los rectngulos (x, y, ancho, alto) de los tiles de una rejilla
+     * de columns x rows tiles, numerados por filas
+     */
+    private static int[] createGridTileRects(int columns, int rows, int tileWidth, int tileHeight, int margin, int spacing)
+    {
+        int[] rects = new int[columns * rows * 4];
+        int i = 0;
+        
+        for (int row = 0; row < rows; ++row)
+            for (int col = 0; col < columns; ++col)
+            {
+                rects[i++] = margin + col * (tileWidth + spacing);
+                rects[i++] = margin + row * (tileHeight + spacing);
+                rects[i++] = tileWidth;
+                rects[i++] = tileHeight;
+            }
+        
+        return rects;
+    }
+    
+//#ifndef NOKIA_UI
+    /**
+     * Precalcula la posicin y tamao de cada tile en la imagen, para que al 
+     * dibujar baste con consultar las tablas. Las tablas se indexan con el 
+     * ndice del tile (la posicin 0, celda vaca, no se usa).
+     */
+    private void createTileTable(int[] rects, int tileWidth, int tileHeight)
+    {
+        int numTiles = rects.length / 4;
+        
+        _tileSrcX = new int[numTiles + 1];
+        _tileSrcY = new int[numTiles + 1];
+        _tileSrcW = new int[numTiles + 1];
+        _tileSrcH = new int[numTiles + 1];
+        _tileFullSize = new boolean[numTiles + 1];
+        
+        for (int i = 0; i < numTiles; ++i)
+        {
+            _tileSrcX[i + 1] = rects[4 * i];
+            _tileSrcY[i + 1] = rects[4 * i + 1];
+            _tileSrcW[i + 1] = rects[4 * i + 2];
+            _tileSrcH[i + 1] = rects[4 * i + 3];
+            _tileFullSize[i + 1] = (rects[4 * i + 2] == tileWidth) && (rects[4 * i + 3] == tileHeight);
+        }
+    }
+//#endif
+    
+    /**
+     * Establece el modo de dibujado del TiledLayer.
+     * <p>
+     * PAINT_DIRECT dibuja cada celda visible en cada frame.
+     * PAINT_CHUNK_CACHE divide el mapa en chunks de celdas que se pre-renderizan
+     * en imgenes fuera de pantalla y se dibujan de una sola vez. Las imgenes
+     * mutables de MIDP 1.0 son opacas, por lo que las celdas vacas se rellenan
+     * con el color de fondo (ver setBackgroundColor()): este modo slo es 
+     * adecuado para capas de fondo.
+     * PAINT_RETAINED_BUFFER mantiene una imagen con las celdas visibles y en cada
+     * frame slo redibuja en ella las celdas modificadas desde el frame anterior.
+     * Si ni el mapa ni la vista cambian el dibujado se reduce a una sola copia de
+     * la imagen, y al hacer scroll slo se dibujan las filas o columnas de celdas
+     * que aparecen en la vista. Tiene la misma limitacin con las celdas vacas 
+     * que el modo anterior.
+     */
+    public void setPaintMode(int mode)
+    {
+//#if DEBUG
+//#         if ( (mode < PAINT_DIRECT) || (mode > PAINT_RETAINED_BUFFER) )
+//#             throw new IllegalArgumentException("TiledLayer::setPaintMode - arg mode = " + mode);
+//#else
+        if ( (mode < PAINT_DIRECT) || (mode > PAINT_RETAINED_BUFFER) )
+            throw new IllegalArgumentException();
+//#endif
+        
+        //Al abandonar un modo liberamos sus imgenes
+        if (mode != PAINT_CHUNK_CACHE)
+            releaseChunkCache();
+        if (mode != PAINT_RETAINED_BUFFER)
+            releaseRetainedBuffer();
+        
+        //Sin imgenes fuera de pantalla no hace falta el ndice de tiles animados
+        if (mode == PAINT_DIRECT)
+            releaseAnimatedCells();
+        
+        _paintMode = mode;
+    }
+    
+    /**
+     * Devuelve el modo de dibujado actual
+     */
+    public final int getPaintMode()
+    {
+        return _paintMode;
+    }
+    
+    /**
+     * Fija el tamao de los chunks (en celdas por lado) y el nmero mximo de
+     * chunks que se mantienen en memoria en el modo PAINT_CHUNK_CACHE.
+     * Cuando se alcanza el mximo se reutiliza el chunk usado hace ms tiempo (LRU).
+     * <p>
+     * Cada chunk ocupa una imagen de (chunkSize * anchoTile) x (chunkSize * altoTile)
+     * pxeles, por lo que maxChunks acota la memoria usada por la cach.
+     */
+    public void setChunkCacheSize(int chunkSize, int maxChunks)
+    {
+//#if DEBUG
+//#         if (chunkSize < 1) throw new IllegalArgumentException("TiledLayer::setChunkCacheSize - arg chunkSize = " + chunkSize);
+//#         if (maxChunks < 1) throw new IllegalArgumentException("TiledLayer::setChunkCacheSize - arg maxChunks = " + maxChunks);
+//#else
+        if ( (chunkSize < 1) || (maxChunks < 1) )
+            throw new IllegalArgumentException();
+//#endif
+        releaseChunkCache();
+        
+        _chunkSize = chunkSize;
+        _maxChunks = maxChunks;
+    }
+    
+    /**
+     * Color con el que se rellenan las celdas vacas en los modos de dibujado
+     * que usan imgenes fuera de pantalla.
+     */
+    public void setBackgroundColor(int rgb)
+    {
+        _backgroundColor = rgb;
+        
+        //Las celdas ya renderizadas usan el color anterior
+        invalidateCells(0, 0, _numColumns, _numRows);
+    }
+   
+    // Paint Genrico
+    public void paint (Graphics g)
+    {
+        if (!_visible)
+            return;
+        
+        if (_paintMode == PAINT_CHUNK_CACHE)
+        {
+            paintChunkCache(g);
+            return;
+        }
+        
+        if (_paintMode == PAINT_RETAINED_BUFFER)
+        {
+            paintRetainedBuffer(g);
+            return;
+        }
+
+        //Datos originales del rectngulo de clipping
+        _clipX = g.getClipX();
+        _clipY = g.getClipY();
+        _clipH = g.getClipHeight();
+        _clipW = g.getClipWidth();
+       
+        // Calculamos los tiles por los que vamos a iterar y, por tanto, dibujar
+        // "intersecando" el mapa de tiles con el rectangulo de clipping actual
+        // para obtener el primer y ltimo tile del mapa que por los que tendremos
+        // que iterar para dibujar la parte comprendida en el rectngulo de clipping
+        _tileInicioX = (-_posx + _clipX) / _tileWidth;
+        _tileInicioY = (-_posy + _clipY) / _tileHeight;
+        _tileFinX = ( (_clipX + _clipW - _posx ) / _tileWidth ) +1;
+        _tileFinY = ( (_clipY + _clipH - _posy ) /_tileHeight ) +1;        
+        
+         //Comprobamos lmites, por si nos pasamos en los ndices de los tiles
+        if (_tileInicioX < 0) _tileInicioX = 0;
+        if (_tileInicioY < 0) _tileInicioY = 0;
+        if (_tileFinX >= _numColumns) _tileFinX = _numColumns;
+        if (_tileFinY >= _numRows) _tileFinY = _numRows;
+        
+        paintCells(g, _posx, _posy, _tileInicioX, _tileInicioY, _tileFinX, _tileFinY);
+    }
+    
+    /**
+     * Dibuja las celdas [firstCol, lastCol) x [firstRow, lastRow) del mapa, 
+     * situando la celda (0,0) en la posicin (x,y) del objeto Graphics y 
+     * respetando su rectngulo de clipping actual.
+     */
+    private void paintCells(Graphics g, int x, int y, int firstCol, int firstRow, int lastCol, int lastRow)
+    {
+//#if DEBUG
+//#         //Establecemos el color para dibujar los lmites de cada celda
+//#         //en modo Debug
+//#         g.setColor(255,0,255);
+//#endif
+
+        //Datos originales del rectngulo de clipping
+        _clipX = g.getClipX();
+        _clipY = g.getClipY();
+        _clipH = g.getClipHeight();
+        _clipW = g.getClipWidth();
+        
+        _currentCellY = y + firstRow * _tileHeight;
+
+        //Ninguna celda cae dentro del clipping
+        if ( (firstCol >= lastCol) || (firstRow >= lastRow) )
+            return;
+
+        //Buffer para leer las celdas de cada fila de una vez
+        if ( (_rowCells == null) || (_rowCells.length < lastCol - firstCol) )
+            _rowCells = new int[lastCol - firstCol];
+        
+        //Iteramos por los tiles visibles en pantalla
+        for (currentCellRow = firstRow ; currentCellRow < lastRow; ++currentCellRow)
+        {
+            getCellValues(firstCol, currentCellRow, _rowCells, 0, lastCol - firstCol);
+            
+            _currentCellX = x + firstCol *_tileWidth;
+            for (currentCellColumn = firstCol; currentCellColumn < lastCol; ++currentCellColumn)
+            {
+
+                //Posicin del tile a dibujar 
+                tileIndex = _rowCells[currentCellColumn - firstCol];
+                
+                //Si el tile es 0 no dibujamos nada
+                if (tileIndex == 0) 
+                {
+
+//#if DEBUG
+//#ifndef NOKIA_UI                
+//#                 //Marcamos con un rectngulo la posicion del tile actual
+//#                 //Fijamos el clipping del tile  
+//#                 g.setClip(_currentCellX,
+//#                         _currentCellY, 
+//#                         _tileWidth, 
+//#                         _tileHeight);
+//#endif                
+//#                 //Intersecamos con el rectngulo de clipping de la pantalla
+//#                 g.clipRect(_clipX, _clipY, _clipW, _clipH);                    
+//#                     g.drawRect(
+//#                            _currentCellX,
+//#                            _currentCellY,
+//#                             _tileWidth, _tileHeight);
+//#endif                       
+                    
+                    //Actualizamos posicion celda actual
+                    _currentCellX += _tileWidth;
+                    
+                    continue;  
+                }
+                                  
+                //Tile animado: cambiamos la referencia
+                if (tileIndex < 0)
+                    tileIndex = _animatedTileReferences[-(tileIndex)];
+                
+//#ifndef NOKIA_UI
+                 //Obtenemos la posicin del tile a dibujar en el tileSet
+                 _currentTileRowOffset = _tileSrcY[tileIndex];
+                 _currentTileColOffset = _tileSrcX[tileIndex];
+                 
+                //Buscamos una racha de celdas contiguas cuyos tiles tambin estn
+                //contiguos en la misma fila del tileset, para dibujarlas todas 
+                //con un nico clipping y un nico drawImage. Slo los tiles que
+                //ocupan la celda completa pueden formar parte de una racha
+                _runLength = 1;
+                while ( (currentCellColumn + _runLength < lastCol) && _tileFullSize[tileIndex] )
+                {
+                    _nextTileIndex = _rowCells[currentCellColumn + _runLength - firstCol];
+                    
+                    if (_nextTileIndex == 0)
+                        break;
+                    
+                    if (_nextTileIndex < 0)
+                        _nextTileIndex = _animatedTileReferences[-(_nextTileIndex)];
+                    
+                    //El siguiente tile ha de estar justo a la derecha del ltimo de la racha
+                    if ( (_tileSrcY[_nextTileIndex] != _currentTileRowOffset) ||
+                         (_tileSrcX[_nextTileIndex] != _currentTileColOffset + _runLength * _tileWidth) ||
+                         !_tileFullSize[_nextTileIndex] )
+                        break;
+                    
+                    _runLength++;
+                }
+                
+                //Fijamos el clipping de la racha de tiles
+                g.setClip(_currentCellX,
+                        _currentCellY, 
+                        (_runLength - 1) * _tileWidth + _tileSrcW[tileIndex], 
+                        _tileSrcH[tileIndex]);
+                
+                //Intersecamos con el rectngulo de clipping de la pantalla
+                g.clipRect(_clipX, _clipY, _clipW, _clipH);
+                
+                //Dibujamos
+                g.drawImage(_tileSet, 
+                        _currentCellX - _currentTileColOffset,
+                        _currentCellY - _currentTileRowOffset,
+                        Graphics.TOP | Graphics.LEFT);
+//#else
+//# 
+//#                 //Tiles normales (diferencia de cero)
+//#                 g.drawImage(_tileSet.getFrameAt(tileIndex - 1), 
+//#                         _currentCellX , 
+//#                         _currentCellY , 
+//#                         Graphics.TOP | Graphics.LEFT);
+//#                 
+//#                 //Cada frame del ImageSet es una imagen distinta, no hay rachas
+//#                 _runLength = 1;
+//# 
+//#endif
+                
+//#if DEBUG
+//#                 //Marcamos con un rectngulo la posicion de los tiles dibujados
+//#                 for (int i = 0; i < _runLength; ++i)
+//#                     g.drawRect(
+//#                            _currentCellX + i * _tileWidth,
+//#                            _currentCellY,
+//#                             _tileWidth, _tileHeight);
+//#endif                
+               //Actualizamos posicion celda actual, saltando la racha dibujada
+               currentCellColumn += _runLength - 1;
+               _currentCellX += _runLength * _tileWidth;  
+            }
+             
+            //Actualizamos posicion celda actual 
+            _currentCellY += _tileHeight;
+            
+        }
+        //Restauramos el tamao de clip
+//#ifndef NOKIA_UI
+        g.setClip(_clipX, _clipY, _clipW, _clipH);
+//#endif
+    }
+    
+    /**
+     * Dibuja el mapa usando la cach de chunks pre-renderizados
+     */
+    private void paintChunkCache(Graphics g)
+    {
+        //Guardamos el clipping original, paintCells() usa los campos _clipX.. 
+        //al renderizar cada chunk
+        int clipX = g.getClipX();
+        int clipY = g.getClipY();
+        int clipW = g.getClipWidth();
+        int clipH = g.getClipHeight();
+        
+        //Creamos la cach si es la primera vez que se usa
+        if (_chunkImages == null)
+            createChunkCache();
+        
+        int chunkWidth = _chunkSize * _tileWidth;
+        int chunkHeight = _chunkSize * _tileHeight;
+        
+        //Chunks visibles dentro del rectngulo de clipping
+        int firstChunkX = (clipX - _posx) / chunkWidth;
+        int firstChunkY = (clipY - _posy) / chunkHeight;
+        int lastChunkX = ( (clipX + clipW - _posx) / chunkWidth ) + 1;
+        int lastChunkY = ( (clipY + clipH - _posy) / chunkHeight ) + 1;
+        
+        if (firstChunkX < 0) firstChunkX = 0;
+        if (firstChunkY < 0) firstChunkY = 0;
+        if (lastChunkX > _numChunkColumns) lastChunkX = _numChunkColumns;
+        if (lastChunkY > _numChunkRows) lastChunkY = _numChunkRows;
+        
+        //Los chunks del borde del mapa pueden ser ms grandes que el propio mapa
+        g.clipRect(_posx, _posy, _width, _height);
+        
+        //Nuevo frame para el LRU
+        _chunkClock++;
+        
+        for (int cy = firstChunkY; cy < lastChunkY; ++cy)
+            for (int cx = firstChunkX; cx < lastChunkX; ++cx)
+                g.drawImage(_chunkImages[getChunkSlot(cx, cy)],
+                        _posx + cx * chunkWidth,
+                        _posy + cy * chunkHeight,
+                        Graphics.TOP | Graphics.LEFT);
+        
+        //Restauramos el clipping
+        g.setClip(clipX, clipY, clipW, clipH);
+    }
+    
+    /**
+     * Crea los arrays de la cach de chunks. Las imgenes se crean bajo demanda.
+     */
+    private void createChunkCache()
+    {
+        _numChunkColumns = (_numColumns + _chunkSize - 1) / _chunkSize;
+        _numChunkRows = (_numRows + _chunkSize - 1) / _chunkSize;
+        
+        _chunkImages = new Image[_maxChunks];
+        _chunkGraphics = new Graphics[_maxChunks];
+        _chunkIds = new int[_maxChunks];
+        _chunkLastUse = new int[_maxChunks];
+        _chunkValid = new boolean[_maxChunks];
+        
+        for (int i = 0; i < _maxChunks; ++i)
+            _chunkIds[i] = -1;
+    }
+    
+    /**
+     * Libera las imgenes de la cach de chunks
+     */
+    private void releaseChunkCache()
+    {
+        _chunkImages = null;
+        _chunkGraphics = null;
+        _chunkIds = null;
+        _chunkLastUse = null;
+        _chunkValid = null;
+    }
+    
+    /**
+     * Devuelve la posicin en la cach del chunk (cx, cy), renderizndolo si 
+     * no estaba en la cach o haba sido invalidado.
+     */
+    private int getChunkSlot(int cx, int cy)
+    {
+        int id = cy * _numChunkColumns + cx;
+        int slot = -1;
+        
+        //Buscamos el chunk en la cach, y a la vez el candidato a reemplazar:
+        //una posicin libre o, si no la hay, la usada hace ms tiempo
+        int victim = 0;
+        for (int i = 0; i < _maxChunks; ++i)
+        {
+            if (_chunkIds[i] == id)
+            {
+                slot = i;
+                break;
+            }
+            
+            if ( (_chunkIds[victim] != -1) && 
+                 ( (_chunkIds[i] == -1) || (_chunkLastUse[i] < _chunkLastUse[victim]) ) )
+                victim = i;
+        }
+        
+        //Fallo de cach: reutilizamos la posicin elegida
+        if (slot == -1)
+        {
+            slot = victim;
+            _chunkIds[slot] = id;
+            _chunkValid[slot] = false;
+        }
+        
+        _chunkLastUse[slot] = _chunkClock;
+        
+        if (!_chunkValid[slot])
+            renderChunk(slot, cx, cy);
+        
+        return slot;
+    }
+    
+    /**
+     * Renderiza el chunk (cx, cy) en la imagen de la posicin slot de la cach
+     */
+    private void renderChunk(int slot, int cx, int cy)
+    {
+        int chunkWidth = _chunkSize * _tileWidth;
+        int chunkHeight = _chunkSize * _tileHeight;
+        
+        //Creamos la imagen la primera vez que se usa esta posicin
+        if (_chunkImages[slot] == null)
+        {
+            _chunkImages[slot] = Image.createImage(chunkWidth, chunkHeight);
+            _chunkGraphics[slot] = _chunkImages[slot].getGraphics();
+        }
+        
+        Graphics cg = _chunkGraphics[slot];
+        
+        //Fondo para las celdas vacas
+        cg.setClip(0, 0, chunkWidth, chunkHeight);
+        cg.setColor(_backgroundColor);
+        cg.fillRect(0, 0, chunkWidth, chunkHeight);
+        
+        //Celdas que contiene el chunk
+        int firstCol = cx * _chunkSize;
+        int firstRow = cy * _chunkSize;
+        int lastCol = firstCol + _chunkSize;
+        int lastRow = firstRow + _chunkSize;
+        if (lastCol > _numColumns) lastCol = _numColumns;
+        if (lastRow > _numRows) lastRow = _numRows;
+        
+        paintCells(cg, -firstCol * _tileWidth, -firstRow * _tileHeight, firstCol, firstRow, lastCol, lastRow);
+        
+        _chunkValid[slot] = true;
+    }
+    
+    /**
+     * Dibuja el mapa a travs del buffer retenido, redibujando en l slo las
+     * celdas modificadas y las que aparecen en la vista al hacer scroll.
+     * <p>
+     * El buffer guarda un rango de celdas alineado a la rejilla del mapa, con una
+     * celda de margen respecto a la vista, y se recorre de forma circular: la 
+     * celda (col, row) se guarda siempre en la posicin 
+     * (col % _bufferColumns, row % _bufferRows). Al desplazarse la vista no hay
+     * que mover el contenido del buffer, basta con dibujar las columnas o filas 
+     * de celdas que entran en el rango, que ocupan el hueco de las que salen.
+     * <p>
+     * Los cambios de posicin del layer (setPosition(), move() o el desplazamiento
+     * que aplica el LayerManager) se detectan aqu comparando el rango visible 
+     * con el guardado.
+     */
+    private void paintRetainedBuffer(Graphics g)
+    {
+        int clipX = g.getClipX();
+        int clipY = g.getClipY();
+        int clipW = g.getClipWidth();
+        int clipH = g.getClipHeight();
+        
+        //Rango de celdas visibles
+        int firstCol = (clipX - _posx) / _tileWidth;
+        int firstRow = (clipY - _posy) / _tileHeight;
+        int lastCol = ( (clipX + clipW - _posx - 1) / _tileWidth ) + 1;
+        int lastRow = ( (clipY + clipH - _posy - 1) / _tileHeight ) + 1;
+        
+        if (firstCol < 0) firstCol = 0;
+        if (firstRow < 0) firstRow = 0;
+        if (lastCol > _numColumns) lastCol = _numColumns;
+        if (lastRow > _numRows) lastRow = _numRows;
+        
+        //El layer no es visible a travs del clipping actual
+        if ( (firstCol >= lastCol) || (firstRow >= lastRow) )
+            return;
+        
+        //Tamao del buffer en celdas: la vista ms una celda de margen
+        int bufferColumns = ( (clipW + _tileWidth - 1) / _tileWidth ) + 1;
+        int bufferRows = ( (clipH + _tileHeight - 1) / _tileHeight ) + 1;
+        if (bufferColumns > _numColumns) bufferColumns = _numColumns;
+        if (bufferRows > _numRows) bufferRows = _numRows;
+        
+        //Si la vista ha crecido hay que crear un buffer mayor
+        if ( (_retainedBuffer == null) || 
+             (bufferColumns > _bufferColumns) || (bufferRows > _bufferRows) )
+        {
+            _retainedBuffer = null;
+            _retainedBuffer = Image.createImage(bufferColumns * _tileWidth, bufferRows * _tileHeight);
+            _retainedGraphics = _retainedBuffer.getGraphics();
+            _bufferColumns = bufferColumns;
+            _bufferRows = bufferRows;
+            _bufferFirstCol = -1;
+        }
+        
+        //Si la vista se sale del rango guardado lo desplazamos lo justo para que
+        //vuelva a contenerla
+        int newFirstCol = _bufferFirstCol;
+        int newFirstRow = _bufferFirstRow;
+        
+        if (firstCol < newFirstCol) 
+            newFirstCol = firstCol;
+        else if (lastCol > newFirstCol + _bufferColumns) 
+            newFirstCol = lastCol - _bufferColumns;
+        
+        if (firstRow < newFirstRow) 
+            newFirstRow = firstRow;
+        else if (lastRow > newFirstRow + _bufferRows) 
+            newFirstRow = lastRow - _bufferRows;
+        
+        if ( (_bufferFirstCol < 0) ||
+             (Math.abs(newFirstCol - _bufferFirstCol) >= _bufferColumns) ||
+             (Math.abs(newFirstRow - _bufferFirstRow) >= _bufferRows) )
+        {
+            //Buffer nuevo o salto mayor que el propio buffer: se redibuja entero
+            _bufferFirstCol = firstCol;
+            _bufferFirstRow = firstRow;
+            if (_bufferFirstCol + _bufferColumns > _numColumns) _bufferFirstCol = _numColumns - _bufferColumns;
+            if (_bufferFirstRow + _bufferRows > _numRows) _bufferFirstRow = _numRows - _bufferRows;
+            
+            _dirtyFirstCol = _bufferFirstCol;
+            _dirtyFirstRow = _bufferFirstRow;
+            _dirtyLastCol = _bufferFirstCol + _bufferColumns;
+            _dirtyLastRow = _bufferFirstRow + _bufferRows;
+        }
+        else
+        {
+            int oldFirstCol = _bufferFirstCol;
+            int oldFirstRow = _bufferFirstRow;
+            
+            _bufferFirstCol = newFirstCol;
+            _bufferFirstRow = newFirstRow;
+            
+            //Columnas que entran en el rango, en todas las filas del nuevo rango
+            if (newFirstCol > oldFirstCol)
+                renderBufferCells(oldFirstCol + _bufferColumns, newFirstRow, 
+                        newFirstCol + _bufferColumns, newFirstRow + _bufferRows);
+            else if (newFirstCol < oldFirstCol)
+                renderBufferCells(newFirstCol, newFirstRow, 
+                        oldFirstCol, newFirstRow + _bufferRows);
+            
+            //Filas que entran en el rango. Las esquinas ya dibujadas con las 
+            //columnas se repiten, pero son como mucho unas pocas celdas
+            if (newFirstRow > oldFirstRow)
+                renderBufferCells(newFirstCol, oldFirstRow + _bufferRows, 
+                        newFirstCol + _bufferColumns, newFirstRow + _bufferRows);
+            else if (newFirstRow < oldFirstRow)
+                renderBufferCells(newFirstCol, newFirstRow, 
+                        newFirstCol + _bufferColumns, oldFirstRow);
+        }
+        
+        //Redibujamos las celdas modificadas que estn dentro del buffer
+        if (_dirtyFirstCol < _bufferFirstCol) _dirtyFirstCol = _bufferFirstCol;
+        if (_dirtyFirstRow < _bufferFirstRow) _dirtyFirstRow = _bufferFirstRow;
+        if (_dirtyLastCol > _bufferFirstCol + _bufferColumns) _dirtyLastCol = _bufferFirstCol + _bufferColumns;
+        if (_dirtyLastRow > _bufferFirstRow + _bufferRows) _dirtyLastRow = _bufferFirstRow + _bufferRows;
+        
+        if ( (_dirtyFirstCol < _dirtyLastCol) && (_dirtyFirstRow < _dirtyLastRow) )
+            renderBufferCells(_dirtyFirstCol, _dirtyFirstRow, _dirtyLastCol, _dirtyLastRow);
+        
+        //No queda nada pendiente
+        _dirtyFirstCol = _dirtyFirstRow = Integer.MAX_VALUE;
+        _dirtyLastCol = _dirtyLastRow = Integer.MIN_VALUE;
+        
+        //Copiamos el buffer en pantalla sin salirnos de los lmites del layer.
+        //Como el buffer es circular el rango guardado puede estar partido en 
+        //hasta cuatro trozos: dibujamos la imagen en cada periodo de la rejilla 
+        //que se solapa con el rango y el clipping deja slo la parte vlida, ya
+        //que la zona visible est siempre dentro del rango guardado
+        g.clipRect(_posx, _posy, _width, _height);
+        
+        int periodX = _posx + (_bufferFirstCol / _bufferColumns) * _bufferColumns * _tileWidth;
+        int periodY = _posy + (_bufferFirstRow / _bufferRows) * _bufferRows * _tileHeight;
+        boolean wrapX = (_bufferFirstCol % _bufferColumns) != 0;
+        boolean wrapY = (_bufferFirstRow % _bufferRows) != 0;
+        int bufferWidth = _bufferColumns * _tileWidth;
+        int bufferHeight = _bufferRows * _tileHeight;
+        
+        g.drawImage(_retainedBuffer, periodX, periodY, Graphics.TOP | Graphics.LEFT);
+        if (wrapX)
+            g.drawImage(_retainedBuffer, periodX + bufferWidth, periodY, Graphics.TOP | Graphics.LEFT);
+        if (wrapY)
+            g.drawImage(_retainedBuffer, periodX, periodY + bufferHeight, Graphics.TOP | Graphics.LEFT);
+        if (wrapX && wrapY)
+            g.drawImage(_retainedBuffer, periodX + bufferWidth, periodY + bufferHeight, Graphics.TOP | Graphics.LEFT);
+        
+        g.setClip(clipX, clipY, clipW, clipH);
+    }
+    
+    /**
+     * Redibuja en el buffer retenido las celdas [firstCol, lastCol) x [firstRow, lastRow),
+     * que deben estar dentro del rango de celdas guardado.
+     */
+    private void renderBufferCells(int firstCol, int firstRow, int lastCol, int lastRow)
+    {
+        //Si la regin da la vuelta al buffer la partimos en dos
+        int wrapCol = (firstCol / _bufferColumns + 1) * _bufferColumns;
+        if (lastCol > wrapCol)
+        {
+            renderBufferCells(firstCol, firstRow, wrapCol, lastRow);
+            renderBufferCells(wrapCol, firstRow, lastCol, lastRow);
+            return;
+        }
+        
+        int wrapRow = (firstRow / _bufferRows + 1) * _bufferRows;
+        if (lastRow > wrapRow)
+        {
+            renderBufferCells(firstCol, firstRow, lastCol, wrapRow);
+            renderBufferCells(firstCol, wrapRow, lastCol, lastRow);
+            return;
+        }
+        
+        int x = (firstCol % _bufferColumns) * _tileWidth;
+        int y = (firstRow % _bufferRows) * _tileHeight;
+        int w = (lastCol - firstCol) * _tileWidth;
+        int h = (lastRow - firstRow) * _tileHeight;
+        
+        _retainedGraphics.setClip(x, y, w, h);
+        _retainedGraphics.setColor(_backgroundColor);
+        _retainedGraphics.fillRect(x, y, w, h);
+        
+        //Origen de la rejilla para que la primera celda caiga en (x, y)
+        paintCells(_retainedGraphics, 
+                -(firstCol / _bufferColumns) * _bufferColumns * _tileWidth, 
+                -(firstRow / _bufferRows) * _bufferRows * _tileHeight, 
+                firstCol, firstRow, lastCol, lastRow);
+    }
+    
+    /**
+     * Libera la imagen del buffer retenido
+     */
+    private void releaseRetainedBuffer()
+    {
+        _retainedBuffer = null;
+        _retainedGraphics = null;
+        _bufferColumns = _bufferRows = 0;
+    }
+    
+    /**
+     * Marca como modificadas las celdas de la regin indicada
+     */
+    void invalidateCells(int col, int row, int numCols, int numRows)
+    {
+        regionChanged(_posx + col * _tileWidth, _posy + row * _tileHeight, 
+                numCols * _tileWidth, numRows * _tileHeight);
+        
+        //Ampliamos la regin sucia
+        if (col < _dirtyFirstCol) _dirtyFirstCol = col;
+        if (row < _dirtyFirstRow) _dirtyFirstRow = row;
+        if (col + numCols > _dirtyLastCol) _dirtyLastCol = col + numCols;
+        if (row + numRows > _dirtyLastRow) _dirtyLastRow = row + numRows;
+        
+        if (_chunkIds == null)
+            return;
+        
+        //Rango de chunks afectados
+        int firstChunkX = col / _chunkSize;
+        int firstChunkY = row / _chunkSize;
+        int lastChunkX = (col + numCols - 1) / _chunkSize;
+        int lastChunkY = (row + numRows - 1) / _chunkSize;
+        
+        int cx, cy;
+        for (int i = 0; i < _maxChunks; ++i)
+        {
+            if (_chunkIds[i] == -1)
+                continue;
+            
+            cx = _chunkIds[i] % _numChunkColumns;
+            cy = _chunkIds[i] / _numChunkColumns;
+            
+            if ( (cx >= firstChunkX) && (cx <= lastChunkX) && 
+                 (cy >= firstChunkY) && (cy <= lastChunkY) )
+                _chunkValid[i] = false;
+        }
+    }
+    
+    /**
+     * Redibuja las celdas que referencian un tile animado. Las celdas se 
+     * obtienen del ndice de tiles animados, que se crea la primera vez que 
+     * hace falta. En el buffer retenido las celdas se redibujan en el momento,
+     * para no ampliar la regin sucia con celdas dispersas.
+     */
+    private void invalidateAnimatedTile(int animatedTileIndex)
+    {
+        if (hasDirtyRegions())
+            regionChangedAnimatedTile(animatedTileIndex);
+        
+        //Sin imgenes fuera de pantalla no hay nada que invalidar
+        if ( (_chunkIds == null) && (_retainedBuffer == null) )
+            return;
+        
+        if (_animatedCells == null)
+            indexAnimatedCells();
+        
+        int[] cells = _animatedCells[-animatedTileIndex];
+        int count = _animatedCellCount[-animatedTileIndex];
+        int col, row, chunk;
+        
+        for (int i = 0; i < count; ++i)
+        {
+            col = cells[i] % _numColumns;
+            row = cells[i] / _numColumns;
+            
+            if ( (_retainedBuffer != null) && (_bufferFirstCol >= 0) &&
+                 (col >= _bufferFirstCol) && (col < _bufferFirstCol + _bufferColumns) &&
+                 (row >= _bufferFirstRow) && (row < _bufferFirstRow + _bufferRows) )
+                renderBufferCells(col, row, col + 1, row + 1);
+            
+            if (_chunkIds != null)
+            {
+                chunk = (row / _chunkSize) * _numChunkColumns + (col / _chunkSize);
+                for (int slot = 0; slot < _maxChunks; ++slot)
+                    if (_chunkIds[slot] == chunk)
+                        _chunkValid[slot] = false;
+            }
+        }
+    }
+    
+    /**
+     * Avisa al LayerManager del rectngulo que engloba las celdas que
+     * referencian un tile animado
+     */
+    private void regionChangedAnimatedTile(int animatedTileIndex)
+    {
+        if (_animatedCells == null)
+            indexAnimatedCells();
+        
+        int[] cells = _animatedCells[-animatedTileIndex];
+        int count = _animatedCellCount[-animatedTileIndex];
+        
+        if (count == 0)
+            return;
+        
+        int firstCol = _numColumns, firstRow = _numRows, lastCol = -1, lastRow = -1;
+        int col, row;
+        
+        for (int i = 0; i < count; ++i)
+        {
+            col = cells[i] % _numColumns;
+            row = cells[i] / _numColumns;
+            
+            if (col < firstCol) firstCol = col;
+            if (col > lastCol) lastCol = col;
+            if (row < firstRow) firstRow = row;
+            if (row > lastRow) lastRow = row;
+        }
+        
+        regionChanged(_posx + firstCol * _tileWidth, _posy + firstRow * _tileHeight, 
+                (lastCol - firstCol + 1) * _tileWidth, (lastRow - firstRow + 1) * _tileHeight);
+    }
+    
+    // ndice de tiles animados ////////////////////////////////////////////////
+    
+    /**
+     * Redimensiona los arrays de tiles animados para guardar size - 1 tiles 
+     * (la posicin 0 no se usa)
+     */
+    private void growAnimatedTiles(int size)
+    {
+        _animatedTileReferences = growArray(_animatedTileReferences, size);
+        _animatedCycle = growArray(_animatedCycle, size);
+        _animatedFrame = growArray(_animatedFrame, size);
+        _animatedTime = growArray(_animatedTime, size);
+        
+        int[][] frames = new int[size][];
+        int[][] durations = new int[size][];
+        System.arraycopy(_animatedFrames, 0, frames, 0, _numAnimatedTiles);
+        System.arraycopy(_animatedDurations, 0, durations, 0, _numAnimatedTiles);
+        _animatedFrames = frames;
+        _animatedDurations = durations;
+        
+        if (_animatedCells != null)
+        {
+            int[][] cells = new int[size][];
+            System.arraycopy(_animatedCells, 0, cells, 0, _numAnimatedTiles);
+            _animatedCells = cells;
+            _animatedCellCount = growArray(_animatedCellCount, size);
+        }
+        
+        _numAnimatedTiles = size;
+        
+        System.gc();
+    }
+    
+    /**
+     * Devuelve una copia del array con el nuevo tamao
+     */
+    private static int[] growArray(int[] array, int size)
+    {
+        int[] tmp = new int[size];
+        System.arraycopy(array, 0, tmp, 0, Math.min(array.length, size));
+        return tmp;
+    }
+    
+    /**
+     * Crea el ndice de tiles animados recorriendo el mapa: para cada tile 
+     * animado, la lista de celdas (fila * columnas + columna) que lo 
+     * referencian. A partir de aqu setCell(), fillCells() y TileMapLoader lo 
+     * mantienen actualizado.
+     */
+    private void indexAnimatedCells()
+    {
+        _animatedCells = new int[_numAnimatedTiles][];
+        _animatedCellCount = new int[_numAnimatedTiles];
+        
+        if (_sparseMap)
+        {
+            //En el mapa por chunks los chunks uniformes se tratan de una vez
+            int chunkSize = _sparseMask + 1;
+            int chunk = 0;
+            int col, row, value;
+            
+            for (int cy = 0; cy < _sparseChunkRows; ++cy)
+                for (int cx = 0; cx < _sparseChunkColumns; ++cx, ++chunk)
+                {
+                    if ( !isSparseChunkAllocated(chunk) && (_sparseChunkFill[chunk] >= 0) )
+                        continue;
+                    
+                    for (int r = 0; r < chunkSize; ++r)
+                        for (int c = 0; c < chunkSize; ++c)
+                        {
+                            col = (cx << _sparseShift) + c;
+                            row = (cy << _sparseShift) + r;
+                            if ( (col >= _numColumns) || (row >= _numRows) )
+                                continue;
+                            
+                            value = isSparseChunkAllocated(chunk) ? 
+                                    getSparseChunkValue(chunk, (r << _sparseShift) + c) : 
+                                    _sparseChunkFill[chunk];
+                            if (value < 0)
+                                addAnimatedCell(value, row * _numColumns + col);
+                        }
+                }
+        }
+        else
+        {
+            int[] rowCells = new int[_numColumns];
+            
+            for (int row = 0; row < _numRows; ++row)
+            {
+                getCellValues(0, row, rowCells, 0, _numColumns);
+                for (int col = 0; col < _numColumns; ++col)
+                    if (rowCells[col] < 0)
+                        addAnimatedCell(rowCells[col], row * _numColumns + col);
+            }
+        }
+    }
+    
+    /**
+     * Libera el ndice de tiles animados
+     */
+    private void releaseAnimatedCells()
+    {
+        _animatedCells = null;
+        _animatedCellCount = null;
+    }
+    
+    /**
+     * Aade una celda a la lista de un tile animado
+     */
+    private void addAnimatedCell(int animatedTileIndex, int cell)
+    {
+        int index = -animatedTileIndex;
+        int[] cells = _animatedCells[index];
+        
+        if (cells == null)
+            cells = _animatedCells[index] = new int[4];
+        else if (_animatedCellCount[index] == cells.length)
+            cells = _animatedCells[index] = growArray(cells, cells.length << 1);
+        
+        cells[_animatedCellCount[index]++] = cell;
+    }
+    
+    /**
+     * Quita una celda de la lista de un tile animado
+     */
+    private void removeAnimatedCell(int animatedTileIndex, int cell)
+    {
+        int index = -animatedTileIndex;
+        int[] cells = _animatedCells[index];
+        
+        for (int i = _animatedCellCount[index] - 1; i >= 0; --i)
+            if (cells[i] == cell)
+            {
+                //El orden no importa: movemos la ltima a su hueco
+                cells[i] = cells[--_animatedCellCount[index]];
+                return;
+            }
+    }
+    
+    /**
+     * Quita de las listas de todos los tiles animados las celdas de la regin
+     */
+    private void removeAnimatedCells(int col, int row, int numCols, int numRows)
+    {
+        int[] cells;
+        int c, r;
+        
+        for (int index = 1; index <= _indexAnimatedTiles; ++index)
+        {
+            cells = _animatedCells[index];
+            
+            for (int i = _animatedCellCount[index] - 1; i >= 0; --i)
+            {
+                c = cells[i] % _numColumns;
+                r = cells[i] / _numColumns;
+                
+                if ( (c >= col) && (c < col + numCols) && (r >= row) && (r < row + numRows) )
+                    cells[i] = cells[--_animatedCellCount[index]];
+            }
+        }
+    }
+    
+    /**
+     * Elige el tipo de array ms pequeo capaz de guardar todos los ndices de 
+     * tile posibles (tiles del tileset y tiles animados) y, si el mapa est 
+     * guardado en un tipo ms pequeo, lo copia a uno ms grande. 
+     * Nunca se pasa a un tipo ms pequeo.
+     */
+    private void updateCellStorage()
+    {
+        //Mientras se construye el layer todava no hay mapa
+        if (_numColumns == 0)
+            return;
+        
+        int storage = CELLS_INT;
+        if ( (_totalTiles <= Byte.MAX_VALUE) && (_indexAnimatedTiles <= -Byte.MIN_VALUE) )
+            storage = CELLS_BYTE;
+        else if ( (_totalTiles <= Short.MAX_VALUE) && (_indexAnimatedTiles <= -Short.MIN_VALUE) )
+            storage = CELLS_SHORT;
+        
+        if (storage <= _cellStorage)
+            return;
+        
+        if (_sparseMap)
+        {
+            //Convertimos cada chunk reservado por separado
+            int numChunks = _sparseChunkFill.length;
+            byte[][] chunkBytes = null;
+            short[][] chunkShorts = null;
+            int[][] chunkInts = null;
+            
+            switch (storage)
+            {
+                case CELLS_BYTE:
+                    chunkBytes = new byte[numChunks][];
+                    break;
+                    
+                case CELLS_SHORT:
+                    chunkShorts = new short[numChunks][];
+                    break;
+                    
+                default:
+                    chunkInts = new int[numChunks][];
+                    break;
+            }
+            
+            int chunkCells = 1 << (_sparseShift << 1);
+            for (int chunk = 0; chunk < numChunks; ++chunk)
+            {
+                if ( (_cellStorage == 0) || !isSparseChunkAllocated(chunk) )
+                    continue;
+                
+                if (chunkShorts != null)
+                {
+                    chunkShorts[chunk] = new short[chunkCells];
+                    for (int i = 0; i < chunkCells; ++i)
+                        chunkShorts[chunk][i] = (short) getSparseChunkValue(chunk, i);
+                }
+                else if (chunkInts != null)
+                {
+                    chunkInts[chunk] = new int[chunkCells];
+                    for (int i = 0; i < chunkCells; ++i)
+                        chunkInts[chunk][i] = getSparseChunkValue(chunk, i);
+                }
+            }
+            
+            _sparseChunkBytes = chunkBytes;
+            _sparseChunkShorts = chunkShorts;
+            _sparseChunkInts = chunkInts;
+            _cellStorage = storage;
+            return;
+        }
+        
+        int size = _numRows * _numColumns;
+        byte[] bytes = null;
+        short[] shorts = null;
+        int[] ints = null;
+        
+        //Creamos el nuevo array y copiamos el mapa actual, si lo hay
+        switch (storage)
+        {
+            case CELLS_BYTE:
+                bytes = new byte[size];
+                break;
+                
+            case CELLS_SHORT:
+                shorts = new short[size];
+                if (_cellStorage != 0)
+                    for (int i = 0; i < size; ++i)
+                        shorts[i] = (short) getCellValue(i % _numColumns, i / _numColumns);
+                break;
+                
+            default:
+                ints = new int[size];
+                if (_cellStorage != 0)
+                    for (int i = 0; i < size; ++i)
+                        ints[i] = getCellValue(i % _numColumns, i / _numColumns);
+                break;
+        }
+        
+        _tileMapBytes = bytes;
+        _tileMapShorts = shorts;
+        _tileMap = ints;
+        _cellStorage = storage;
+    }
+    
+    /**
+     * Devuelve el valor de la celda (col, row)
+     */
+    final int getCellValue(int col, int row)
+    {
+        if (_sparseMap)
+            return getSparseChunkValue(
+                    ( (row >> _sparseShift) * _sparseChunkColumns ) + (col >> _sparseShift),
+                    ( (row & _sparseMask) << _sparseShift ) + (col & _sparseMask) );
+        
+        switch (_cellStorage)
+        {
+            case CELLS_BYTE:
+                return _tileMapBytes[row * _numColumns + col];
+                
+            case CELLS_SHORT:
+                return _tileMapShorts[row * _numColumns + col];
+                
+            default:
+                return _tileMap[row * _numColumns + col];
+        }
+    }
+    
+    /**
+     * Copia en dst, a partir de dstOffset, el valor de count celdas 
+     * consecutivas de la fila row, empezando por la columna col
+     */
+    final void getCellValues(int col, int row, int[] dst, int dstOffset, int count)
+    {
+        if (_sparseMap)
+        {
+            getSparseCellValues(col, row, dst, dstOffset, count);
+            return;
+        }
+        
+        int index = row * _numColumns + col;
+        switch (_cellStorage)
+        {
+            case CELLS_BYTE:
+                for (int i = 0; i < count; ++i)
+                    dst[dstOffset + i] = _tileMapBytes[index + i];
+                break;
+                
+            case CELLS_SHORT:
+                for (int i = 0; i < count; ++i)
+                    dst[dstOffset + i] = _tileMapShorts[index + i];
+                break;
+                
+            default:
+                System.arraycopy(_tileMap, index, dst, dstOffset, count);
+                break;
+        }
+    }
+    
+    /**
+     * Cambia el valor de la celda (col, row)
+     */
+    private void setCellValue(int col, int row, int value)
+    {
+        if (_sparseMap)
+        {
+            setSparseCellValue(col, row, value);
+            return;
+        }
+        
+        switch (_cellStorage)
+        {
+            case CELLS_BYTE:
+                _tileMapBytes[row * _numColumns + col] = (byte) value;
+                break;
+                
+            case CELLS_SHORT:
+                _tileMapShorts[row * _numColumns + col] = (short) value;
+                break;
+                
+            default:
+                _tileMap[row * _numColumns + col] = value;
+                break;
+        }
+    }
+    
+    /**
+     * Copia count valores de src, a partir de srcOffset, en las celdas de la 
+     * fila row a partir de la columna col
+     */
+    private void setCellValues(int col, int row, int[] src, int srcOffset, int count)
+    {
+        if (_sparseMap)
+        {
+            for (int i = 0; i < count; ++i)
+                setSparseCellValue(col + i, row, src[srcOffset + i]);
+            return;
+        }
+        
+        int index = row * _numColumns + col;
+        switch (_cellStorage)
+        {
+            case CELLS_BYTE:
+                for (int i = 0; i < count; ++i)
+                    _tileMapBytes[index + i] = (byte) src[srcOffset + i];
+                break;
+                
+            case CELLS_SHORT:
+                for (int i = 0; i < count; ++i)
+                    _tileMapShorts[index + i] = (short) src[srcOffset + i];
+                break;
+                
+            default:
+                System.arraycopy(src, srcOffset, _tileMap, index, count);
+                break;
+        }
+    }
+    
+    // Atributos de colisin ///////////////////////////////////////////////////
+    
+    /**
+     * Fija los atributos de colisin de un tile esttico: una combinacin de 
+     * TILE_SOLID, TILE_ONE_WAY, TILE_HAZARD y TILE_TRIGGER. Las celdas con un
+     * tile animado usan los atributos de su tile esttico actual.
+     * <p>
+     * Mientras no se fija ninguno, todos los tiles son TILE_SOLID (cualquier 
+     * celda no vaca colisiona). Los atributos se pierden al cambiar de tileset.
+     */
+    public void setTileFlags(int staticTileIndex, int flags)
+    {
+//#if DEBUG
+//#         if ( (staticTileIndex < 1) || (staticTileIndex > _totalTiles) )
+//#             throw new IndexOutOfBoundsException("TiledLayer::setTileFlags - arg staticTileIndex = " + staticTileIndex);
+//#         if ( (flags & ~ALL_TILE_FLAGS) != 0 )
+//#             throw new IllegalArgumentException("TiledLayer::setTileFlags - arg flags = " + flags);
+//#else
+        if ( (staticTileIndex < 1) || (staticTileIndex > _totalTiles) )
+            throw new IndexOutOfBoundsException();
+        if ( (flags & ~ALL_TILE_FLAGS) != 0 )
+            throw new IllegalArgumentException();
+//#endif
+        
+        createTileFlags();
+        _tileFlags[staticTileIndex] = (byte) flags;
+        
+        //Las mscaras se recalculan en la siguiente consulta
+        _flagRows = null;
+    }
+    
+    /**
+     * Fija los atributos de colisin de todos los tiles del tileset de una 
+     * vez: flags[i] contiene los del tile i + 1.
+     */
+    public void setTileFlags(int[] flags)
+    {
+//#if DEBUG
+//#         if (flags == null)
+//#             throw new NullPointerException("TiledLayer::setTileFlags - arg flags is null");
+//#         if (flags.length != _totalTiles)
+//#             throw new IllegalArgumentException("TiledLayer::setTileFlags - flags length = " + flags.length);
+//#         for (int i = 0; i < flags.length; ++i)
+//#             if ( (flags[i] & ~ALL_TILE_FLAGS) != 0 )
+//#                 throw new IllegalArgumentException("TiledLayer::setTileFlags - flags for tile " + (i + 1) + " = " + flags[i]);
+//#else
+        if (flags == null)
+            throw new NullPointerException();
+        if (flags.length != _totalTiles)
+            throw new IllegalArgumentException();
+        for (int i = 0; i < flags.length; ++i)
+            if ( (flags[i] & ~ALL_TILE_FLAGS) != 0 )
+                throw new IllegalArgumentException();
+//#endif
+        
+        createTileFlags();
+        for (int i = 0; i < flags.length; ++i)
+            _tileFlags[i + 1] = (byte) flags[i];
+        
+        _flagRows = null;
+    }
+    
+    /**
+     * Devuelve los atributos de colisin de un tile, esttico o animado
+     */
+    public int getTileFlags(int tileIndex)
+    {
+//#if DEBUG
+//#         if ( (tileIndex > _totalTiles) || (tileIndex < -_indexAnimatedTiles) )
+//#             throw new IndexOutOfBoundsException("TiledLayer::getTileFlags - arg tileIndex = " + tileIndex);
+//#else
+        if ( (tileIndex > _totalTiles) || (tileIndex < -_indexAnimatedTiles) )
+            throw new IndexOutOfBoundsException();
+//#endif
+        
+        return getFlags(tileIndex);
+    }
+    
+    /**
+     * Devuelve la unin de los atributos de colisin de las celdas que solapan
+     * el rectngulo indicado, en las mismas coordenadas que la posicin del 
+     * layer. Devuelve 0 si el rectngulo no toca ninguna celda con atributos.
+     * <p>
+     * En un mapa guardado en un nico array se usan mscaras de bits por fila
+     * (un bit por celda y atributo), que se crean en la primera consulta y se
+     * mantienen al modificar el mapa: cada operacin comprueba 32 celdas. En 
+     * un mapa por chunks los chunks uniformes se resuelven de una vez.
+     */
+    public int getCollisionFlags(int x, int y, int width, int height)
+    {
+        if ( (width <= 0) || (height <= 0) )
+            return 0;
+        
+        //Celdas que solapa el rectngulo, recortadas al mapa
+        x -= _posx;
+        y -= _posy;
+        if ( (x >= _width) || (y >= _height) || (x + width <= 0) || (y + height <= 0) )
+            return 0;
+        
+        int firstCol = (x < 0) ? 0 : x / _tileWidth;
+        int firstRow = (y < 0) ? 0 : y / _tileHeight;
+        int lastCol = (x + width - 1) / _tileWidth;
+        int lastRow = (y + height - 1) / _tileHeight;
+        if (lastCol >= _numColumns) lastCol = _numColumns - 1;
+        if (lastRow >= _numRows) lastRow = _numRows - 1;
+        
+        if (_sparseMap)
+            return getSparseCollisionFlags(firstCol, firstRow, lastCol, lastRow);
+        
+        if (_flagRows == null)
+            createFlagRows();
+        
+        //Mscaras de la primera y la ltima palabra de cada fila
+        int firstWord = firstCol >> 5;
+        int lastWord = lastCol >> 5;
+        int firstMask = -1 << (firstCol & 31);
+        int lastMask = -1 >>> (31 - (lastCol & 31));
+        int result = 0;
+        int[] plane;
+        int mask, base;
+        
+        for (int flag = 0; flag < _flagRows.length; ++flag)
+        {
+            plane = _flagRows[flag];
+            if (plane == null)
+                continue;
+            
+            search:
+            for (int row = firstRow; row <= lastRow; ++row)
+            {
+                base = row * _flagRowWords;
+                for (int word = firstWord; word <= lastWord; ++word)
+                {
+                    mask = -1;
+                    if (word == firstWord) mask &= firstMask;
+                    if (word == lastWord) mask &= lastMask;
+                    
+                    if ( (plane[base + word] & mask) != 0 )
+                    {
+                        result |= 1 << flag;
+                        break search;
+                    }
+                }
+            }
+        }
+        
+        return result;
+    }
+    
+    /**
+     * getCollisionFlags() para el mapa por chunks. Celdas [firstCol, lastCol] x
+     * [firstRow, lastRow] (incluidas).
+     */
+    private int getSparseCollisionFlags(int firstCol, int firstRow, int lastCol, int lastRow)
+    {
+        int result = 0;
+        int chunk, x0, x1, y0, y1;
+        
+        for (int cy = firstRow >> _sparseShift; cy <= (lastRow >> _sparseShift); ++cy)
+            for (int cx = firstCol >> _sparseShift; cx <= (lastCol >> _sparseShift); ++cx)
+            {
+                chunk = cy * _sparseChunkColumns + cx;
+                
+                //Chunk uniforme: todas sus celdas tienen los mismos atributos
+                if (!isSparseChunkAllocated(chunk))
+                {
+                    result |= getFlags(_sparseChunkFill[chunk]);
+                    continue;
+                }
+                
+                x0 = Math.max(firstCol, cx << _sparseShift) & _sparseMask;
+                y0 = Math.max(firstRow, cy << _sparseShift) & _sparseMask;
+                x1 = Math.min(lastCol, ((cx + 1) << _sparseShift) - 1) & _sparseMask;
+                y1 = Math.min(lastRow, ((cy + 1) << _sparseShift) - 1) & _sparseMask;
+                
+                for (int r = y0; r <= y1; ++r)
+                    for (int c = x0; c <= x1; ++c)
+                        result |= getFlags(getSparseChunkValue(chunk, (r << _sparseShift) + c));
+            }
+        
+        return result;
+    }
+    
+    /**
+     * Atributos de colisin de un valor de celda
+     */
+    final int getFlags(int tileIndex)
+    {
+        if (tileIndex < 0)
+            tileIndex = _animatedTileReferences[-tileIndex];
+        
+        if (tileIndex == 0)
+            return 0;
+        
+        return (_tileFlags == null) ? TILE_SOLID : _tileFlags[tileIndex];
+    }
+    
+    /**
+     * Crea la tabla de atributos, con todos los tiles slidos
+     */
+    private void createTileFlags()
+    {
+        if (_tileFlags != null)
+            return;
+        
+        _tileFlags = new byte[_totalTiles + 1];
+        for (int i = 1; i <= _totalTiles; ++i)
+            _tileFlags[i] = TILE_SOLID;
+    }
+    
+    /**
+     * Crea las mscaras de bits por fila recorriendo el mapa. Slo se crean 
+     * las mscaras de los atributos que usa algn tile.
+     */
+    private void createFlagRows()
+    {
+        int usedFlags = TILE_SOLID;
+        if (_tileFlags != null)
+        {
+            usedFlags = 0;
+            for (int i = 1; i <= _totalTiles; ++i)
+                usedFlags |= _tileFlags[i];
+        }
+        
+        _flagRowWords = (_numColumns + 31) >> 5;
+        _flagRows = new int[NUM_TILE_FLAGS][];
+        for (int flag = 0; flag < NUM_TILE_FLAGS; ++flag)
+            if ( (usedFlags & (1 << flag)) != 0 )
+                _flagRows[flag] = new int[_numRows * _flagRowWords];
+        
+        updateFlagRows(0, 0, _numColumns, _numRows);
+    }
+    
+    /**
+     * Actualiza las mscaras de bits de una celda que pasa a tener el tile
+     * tileIndex, sin leer el resto de su fila
+     */
+    private void updateFlagBits(int col, int row, int tileIndex)
+    {
+        if (_flagRows == null)
+            return;
+        
+        int flags = getFlags(tileIndex);
+        int index = row * _flagRowWords + (col >> 5);
+        int bit = 1 << (col & 31);
+        
+        for (int flag = 0; flag < NUM_TILE_FLAGS; ++flag)
+            if (_flagRows[flag] != null)
+            {
+                if ( (flags & (1 << flag)) != 0 )
+                    _flagRows[flag][index] |= bit;
+                else
+                    _flagRows[flag][index] &= ~bit;
+            }
+    }
+    
+    /**
+     * Actualiza las mscaras de bits de las celdas de la regin
+     */
+    private void updateFlagRows(int col, int row, int numCols, int numRows)
+    {
+        if (_flagRows == null)
+            return;
+        
+        if ( (_flagRowCells == null) || (_flagRowCells.length < numCols) )
+            _flagRowCells = new int[numCols];
+        
+        int flags, index, bit;
+        
+        for (int r = row; r < row + numRows; ++r)
+        {
+            getCellValues(col, r, _flagRowCells, 0, numCols);
+            
+            for (int c = 0; c < numCols; ++c)
+            {
+                flags = getFlags(_flagRowCells[c]);
+                index = r * _flagRowWords + ((col + c) >> 5);
+                bit = 1 << ((col + c) & 31);
+                
+                for (int flag = 0; flag < NUM_TILE_FLAGS; ++flag)
+                    if (_flagRows[flag] != null)
+                    {
+                        if ( (flags & (1 << flag)) != 0 )
+                            _flagRows[flag][index] |= bit;
+                        else
+                            _flagRows[flag][index] &= ~bit;
+                    }
+            }
+        }
+    }
+    
+    /**
+     * Actualiza las mscaras de bits de las celdas de un tile animado que
+     * ha cambiado de tile esttico, si los atributos de ambos son distintos
+     */
+    private void updateAnimatedTileFlags(int animatedTileIndex, int oldStaticTileIndex)
+    {
+        if ( (_flagRows == null) || 
+             (getFlags(oldStaticTileIndex) == getFlags(animatedTileIndex)) )
+            return;
+        
+        if (_animatedCells == null)
+            indexAnimatedCells();
+        
+        int[] cells = _animatedCells[-animatedTileIndex];
+        for (int i = _animatedCellCount[-animatedTileIndex] - 1; i >= 0; --i)
+            updateFlagRows(cells[i] % _numColumns, cells[i] / _numColumns, 1, 1);
+    }
+    
+    // Raycasting //////////////////////////////////////////////////////////////
+    
+    /**
+     * Lanza un rayo desde (x0, y0) hasta (x1, y1), en las mismas coordenadas 
+     * que la posicin del layer, y busca la primera celda que atraviesa que no
+     * est vaca o, si flagMask no es 0, cuyos atributos de colisin coincidan
+     * con flagMask. Sirve para lneas de visin e impactos de disparos.
+     * <p>
+     * Recorre la rejilla celda a celda con un DDA entero (sin coma flotante ni
+     * reserva de memoria), as que el coste depende del nmero de celdas que
+     * cruza el rayo y no de su longitud en pxeles. Si hay impacto, el punto, 
+     * la celda y la distancia en pxeles desde el origen se consultan con 
+     * getRayHitX(), getRayHitY(), getRayHitColumn(), getRayHitRow() y
+     * getRayHitDistance().
+     * 
+     * @return true si el rayo choca con alguna celda
+     */
+    public boolean castRay(int x0, int y0, int x1, int y1, int flagMask)
+    {
+        //Origen relativo al layer y direccin
+        int x = x0 - _posx;
+        int y = y0 - _posy;
+        int dx = x1 - x0;
+        int dy = y1 - y0;
+        int adx = Math.abs(dx);
+        int ady = Math.abs(dy);
+        int stepX = (dx < 0) ? -1 : 1;
+        int stepY = (dy < 0) ? -1 : 1;
+        
+        //Celda actual y distancia desde el origen, en cada eje, hasta el 
+        //siguiente borde de celda en la direccin del rayo
+        int col = floorDiv(x, _tileWidth);
+        int row = floorDiv(y, _tileHeight);
+        int nextX = (dx < 0) ? x - col * _tileWidth : (col + 1) * _tileWidth - x;
+        int nextY = (dy < 0) ? y - row * _tileHeight : (row + 1) * _tileHeight - y;
+        
+        //Eje por el que se entr en la celda actual (0 ninguno, 1 x, 2 y) 
+        //y distancia recorrida en ese eje
+        int axis = 0;
+        int distance = 0;
+        boolean crossX;
+        
+        while (true)
+        {
+            if ( (col >= 0) && (col < _numColumns) && (row >= 0) && (row < _numRows) )
+            {
+                if (isRayHit(getCellValue(col, row), flagMask))
+                {
+                    setRayHit(x, y, dx, dy, stepX, stepY, axis, distance, col, row);
+                    return true;
+                }
+            }
+            //Fuera del mapa y alejndose de l: no puede haber impacto
+            else if ( ( (col < 0) && (dx <= 0) ) || ( (col >= _numColumns) && (dx >= 0) ) ||
+                      ( (row < 0) && (dy <= 0) ) || ( (row >= _numRows) && (dy >= 0) ) )
+                return false;
+            
+            //El siguiente borde es el que se alcanza antes: comparamos
+            //nextX / adx con nextY / ady sin dividir
+            if (adx == 0)
+                crossX = false;
+            else if (ady == 0)
+                crossX = true;
+            else
+                crossX = (long) nextX * ady < (long) nextY * adx;
+            
+            if (crossX)
+            {
+                //El borde est ms all del final del rayo
+                if ( (nextX > adx) || ( (nextX == adx) && (dx < 0) ) )
+                    return false;
+                
+                axis = 1;
+                distance = nextX;
+                col += stepX;
+                nextX += _tileWidth;
+            }
+            else
+            {
+                if ( (ady == 0) || (nextY > ady) || ( (nextY == ady) && (dy < 0) ) )
+                    return false;
+                
+                axis = 2;
+                distance = nextY;
+                row += stepY;
+                nextY += _tileHeight;
+            }
+        }
+    }
+    
+    /**
+     * Indica si hay lnea de visin entre dos puntos: ninguna celda entre 
+     * ellos bloquea el rayo (ver castRay()).
+     */
+    public boolean hasLineOfSight(int x0, int y0, int x1, int y1, int flagMask)
+    {
+        return !castRay(x0, y0, x1, y1, flagMask);
+    }
+    
+    /**
+     * Lanza numRays rayos en una sola llamada. rays contiene 4 enteros por 
+     * rayo (x0, y0, x1, y1) y results recibe 4 enteros por rayo: distancia 
+     * del impacto en pxeles (-1 si no hay impacto), punto de impacto (x, y) y
+     * celda (fila * columnas + columna, el formato de applyCellEdits()).
+     * 
+     * @return nmero de rayos con impacto
+     */
+    public int castRays(int[] rays, int numRays, int flagMask, int[] results)
+    {
+//#if DEBUG
+//#         if ( (rays == null) || (results == null) )
+//#             throw new NullPointerException("TiledLayer::castRays - rays or results is null");
+//#         if ( (numRays < 0) || (rays.length < numRays * 4) || (results.length < numRays * 4) )
+//#             throw new IllegalArgumentException("TiledLayer::castRays - arg numRays = " + numRays);
+//#else
+        if ( (rays == null) || (results == null) )
+            throw new NullPointerException();
+        if ( (numRays < 0) || (rays.length < numRays * 4) || (results.length < numRays * 4) )
+            throw new IllegalArgumentException();
+//#endif
+        
+        int hits = 0;
+        
+        for (int i = 0; i < numRays * 4; i += 4)
+        {
+            if (castRay(rays[i], rays[i + 1], rays[i + 2], rays[i + 3], flagMask))
+            {
+                results[i] = _rayHitDistance;
+                results[i + 1] = _rayHitX;
+                results[i + 2] = _rayHitY;
+                results[i + 3] = _rayHitRow * _numColumns + _rayHitColumn;
+                hits++;
+            }
+            else
+            {
+                results[i] = -1;
+                results[i + 1] = rays[i + 2];
+                results[i + 2] = rays[i + 3];
+                results[i + 3] = -1;
+            }
+        }
+        
+        return hits;
+    }
+    
+    /** Coordenada x del punto de impacto del ltimo rayo */
+    public final int getRayHitX()
+    {
+        return _rayHitX;
+    }
+    
+    /** Coordenada y del punto de impacto del ltimo rayo */
+    public final int getRayHitY()
+    {
+        return _rayHitY;
+    }
+    
+    /** Columna de la celda con la que choc el ltimo rayo */
+    public final int getRayHitColumn()
+    {
+        return _rayHitColumn;
+    }
+    
+    /** Fila de la celda con la que choc el ltimo rayo */
+    public final int getRayHitRow()
+    {
+        return _rayHitRow;
+    }
+    
+    /** Distancia en pxeles desde el origen del ltimo rayo hasta el impacto */
+    public final int getRayHitDistance()
+    {
+        return _rayHitDistance;
+    }
+    
+    /**
+     * Indica si un valor de celda detiene el rayo
+     */
+    private boolean isRayHit(int tileIndex, int flagMask)
+    {
+        if (flagMask == 0)
+            return tileIndex != 0;
+        
+        return (getFlags(tileIndex) & flagMask) != 0;
+    }
+    
+    /**
+     * Guarda el resultado de castRay(). El impacto est en el borde de la 
+     * celda por el que entr el rayo, a distance pxeles del origen en el eje 
+     * axis, o en el propio origen si axis es 0.
+     */
+    private void setRayHit(int x, int y, int dx, int dy, int stepX, int stepY, int axis, int distance, int col, int row)
+    {
+        int hitX = x;
+        int hitY = y;
+        
+        if (axis == 1)
+        {
+            //Al avanzar hacia la izquierda el borde pertenece a la celda anterior
+            hitX = x + stepX * distance + ( (stepX < 0) ? -1 : 0 );
+            hitY = y + (int) ( (long) dy * distance / Math.abs(dx) );
+        }
+        else if (axis == 2)
+        {
+            hitX = x + (int) ( (long) dx * distance / Math.abs(dy) );
+            hitY = y + stepY * distance + ( (stepY < 0) ? -1 : 0 );
+        }
+        
+        //El redondeo de la divisin puede dejar el punto en la celda vecina
+        //cuando el rayo pasa justo por una esquina
+        hitX = Math.max(col * _tileWidth, Math.min(hitX, (col + 1) * _tileWidth - 1));
+        hitY = Math.max(row * _tileHeight, Math.min(hitY, (row + 1) * _tileHeight - 1));
+        
+        _rayHitX = hitX + _posx;
+        _rayHitY = hitY + _posy;
+        _rayHitColumn = col;
+        _rayHitRow = row;
+        _rayHitDistance = sqrt( (long) (hitX - x) * (hitX - x) + (long) (hitY - y) * (hitY - y) );
+    }
+    
+    /**
+     * Raz cuadrada entera (redondeada hacia abajo), por el mtodo de Newton
+     */
+    private static int sqrt(long n)
+    {
+        if (n <= 0)
+            return 0;
+        
+        long r = n;
+        long next = (r + 1) >> 1;
+        while (next < r)
+        {
+            r = next;
+            next = (r + n / r) >> 1;
+        }
+        
+        return (int) r;
+    }
+    
+    /**
+     * Divisin entera redondeando hacia menos infinito
+     */
+    static int floorDiv(int a, int b)
+    {
+        return (a >= 0) ? a / b : -((-a + b - 1) / b);
+    }
+    
+    // Mapa por chunks /////////////////////////////////////////////////////////
+    
+    /**
+     * Prepara el directorio de chunks de un mapa guardado por chunks. 
+     * Inicialmente todos los chunks son uniformes con valor 0.
+     */
+    private void createSparseMap(int chunkSize)
+    {
+        _sparseMap = true;
+        
+        _sparseShift = 0;
+        while ( (1 << _sparseShift) < chunkSize )
+            _sparseShift++;
+        _sparseMask = chunkSize - 1;
+        
+        _sparseChunkColumns = (_numColumns + chunkSize - 1) >> _sparseShift;
+        _sparseChunkRows = (_numRows + chunkSize - 1) >> _sparseShift;
+        
+        _sparseChunkFill = new int[_sparseChunkColumns * _sparseChunkRows];
+    }
+    
+    /**
+     * Indica si el chunk tiene reservado un array para sus celdas
+     */
+    private boolean isSparseChunkAllocated(int chunk)
+    {
+        switch (_cellStorage)
+        {
+            case CELLS_BYTE:
+                return _sparseChunkBytes[chunk] != null;
+                
+            case CELLS_SHORT:
+                return _sparseChunkShorts[chunk] != null;
+                
+            default:
+                return _sparseChunkInts[chunk] != null;
+        }
+    }
+    
+    /**
+     * Devuelve el valor de la celda offset (fila * chunkSize + columna) del chunk
+     */
+    private int getSparseChunkValue(int chunk, int offset)
+    {
+        switch (_cellStorage)
+        {
+            case CELLS_BYTE:
+                if (_sparseChunkBytes[chunk] != null)
+                    return _sparseChunkBytes[chunk][offset];
+                break;
+                
+            case CELLS_SHORT:
+                if (_sparseChunkShorts[chunk] != null)
+                    return _sparseChunkShorts[chunk][offset];
+                break;
+                
+            default:
+                if (_sparseChunkInts[chunk] != null)
+                    return _sparseChunkInts[chunk][offset];
+                break;
+        }
+        
+        //Chunk uniforme
+        return _sparseChunkFill[chunk];
+    }
+    
+    /**
+     * getCellValues() para el mapa por chunks: copia la fila por tramos, 
+     * uno por chunk
+     */
+    private void getSparseCellValues(int col, int row, int[] dst, int dstOffset, int count)
+    {
+        int chunk = (row >> _sparseShift) * _sparseChunkColumns + (col >> _sparseShift);
+        int rowOffset = (row & _sparseMask) << _sparseShift;
+        int chunkCol = col & _sparseMask;
+        int length;
+        int i = 0;
+        
+        while (i < count)
+        {
+            //Celdas de la fila que quedan dentro de este chunk
+            length = (_sparseMask + 1) - chunkCol;
+            if (length > count - i)
+                length = count - i;
+            
+            if (!isSparseChunkAllocated(chunk))
+            {
+                for (int j = 0; j < length; ++j)
+                    dst[dstOffset + i + j] = _sparseChunkFill[chunk];
+            }
+            else
+            {
+                switch (_cellStorage)
+                {
+                    case CELLS_BYTE:
+                        for (int j = 0; j < length; ++j)
+                            dst[dstOffset + i + j] = _sparseChunkBytes[chunk][rowOffset + chunkCol + j];
+                        break;
+
+                    case CELLS_SHORT:
+                        for (int j = 0; j < length; ++j)
+                            dst[dstOffset + i + j] = _sparseChunkShorts[chunk][rowOffset + chunkCol + j];
+                        break;
+
+                    default:
+                        System.arraycopy(_sparseChunkInts[chunk], rowOffset + chunkCol, dst, dstOffset + i, length);
+                        break;
+                }
+            }
+            
+            i += length;
+            chunk++;
+            chunkCol = 0;
+        }
+    }
+    
+    /**
+     * setCellValue() para el mapa por chunks. Si el chunk es uniforme y el valor
+     * cambia se reserva su array.
+     */
+    private void setSparseCellValue(int col, int row, int value)
+    {
+        int chunk = (row >> _sparseShift) * _sparseChunkColumns + (col >> _sparseShift);
+        int offset = ( (row & _sparseMask) << _sparseShift ) + (col & _sparseMask);
+        
+        if (!isSparseChunkAllocated(chunk))
+        {
+            //Nada que hacer si el chunk ya tiene ese valor
+            if (_sparseChunkFill[chunk] == value)
+                return;
+            
+            allocateSparseChunk(chunk);
+        }
+        
+        switch (_cellStorage)
+        {
+            case CELLS_BYTE:
+                _sparseChunkBytes[chunk][offset] = (byte) value;
+                break;
+                
+            case CELLS_SHORT:
+                _sparseChunkShorts[chunk][offset] = (short) value;
+                break;
+                
+            default:
+                _sparseChunkInts[chunk][offset] = value;
+                break;
+        }
+    }
+    
+    /**
+     * Reserva el array de un chunk uniforme, inicializado con su valor
+     */
+    private void allocateSparseChunk(int chunk)
+    {
+        int chunkCells = 1 << (_sparseShift << 1);
+        int fill = _sparseChunkFill[chunk];
+        
+        switch (_cellStorage)
+        {
+            case CELLS_BYTE:
+                _sparseChunkBytes[chunk] = new byte[chunkCells];
+                if (fill != 0)
+                    for (int i = 0; i < chunkCells; ++i)
+                        _sparseChunkBytes[chunk][i] = (byte) fill;
+                break;
+                
+            case CELLS_SHORT:
+                _sparseChunkShorts[chunk] = new short[chunkCells];
+                if (fill != 0)
+                    for (int i = 0; i < chunkCells; ++i)
+                        _sparseChunkShorts[chunk][i] = (short) fill;
+                break;
+                
+            default:
+                _sparseChunkInts[chunk] = new int[chunkCells];
+                if (fill != 0)
+                    for (int i = 0; i < chunkCells; ++i)
+                        _sparseChunkInts[chunk][i] = fill;
+                break;
+        }
+    }
+    
+    /**
+     * Libera el array de un chunk, que pasa a ser uniforme con el valor indicado
+     */
+    private void releaseSparseChunk(int chunk, int value)
+    {
+        switch (_cellStorage)
+        {
+            case CELLS_BYTE:
+                _sparseChunkBytes[chunk] = null;
+                break;
+                
+            case CELLS_SHORT:
+                _sparseChunkShorts[chunk] = null;
+                break;
+                
+            default:
+                _sparseChunkInts[chunk] = null;
+                break;
+        }
+        
+        _sparseChunkFill[chunk] = value;
+    }
+    
+    /**
+     * fillCells() para el mapa por chunks: los chunks cubiertos por completo por 
+     * la regin se liberan y pasan a ser uniformes, el resto se rellena celda a celda
+     */
+    private void fillSparseCells(int col, int row, int numCols, int numRows, int tileIndex)
+    {
+        int chunkSize = _sparseMask + 1;
+        int firstChunkX = col >> _sparseShift;
+        int firstChunkY = row >> _sparseShift;
+        int lastChunkX = (col + numCols - 1) >> _sparseShift;
+        int lastChunkY = (row + numRows - 1) >> _sparseShift;
+        int x0, y0, x1, y1;
+        
+        for (int cy = firstChunkY; cy <= lastChunkY; ++cy)
+            for (int cx = firstChunkX; cx <= lastChunkX; ++cx)
+            {
+                //Parte de la regin dentro de este chunk
+                x0 = Math.max(col, cx << _sparseShift);
+                y0 = Math.max(row, cy << _sparseShift);
+                x1 = Math.min(col + numCols, (cx + 1) << _sparseShift);
+                y1 = Math.min(row + numRows, (cy + 1) << _sparseShift);
+                
+                if ( (x1 - x0 == chunkSize) && (y1 - y0 == chunkSize) )
+                    releaseSparseChunk(cy * _sparseChunkColumns + cx, tileIndex);
+                else
+                    for (int r = y0; r < y1; ++r)
+                        for (int c = x0; c < x1; ++c)
+                            setSparseCellValue(c, r, tileIndex);
+            }
+    }
+    
+    /**
+     * Sustituye las celdas de un chunk del mapa por chunks. cells contiene las
+     * chunkSize x chunkSize celdas del chunk por filas. Lo usa TileMapLoader.
+     */
+    void setSparseChunk(int chunk, int[] cells)
+    {
+        if (!isSparseChunkAllocated(chunk))
+            allocateSparseChunk(chunk);
+        
+        int chunkCells = 1 << (_sparseShift << 1);
+        switch (_cellStorage)
+        {
+            case CELLS_BYTE:
+                for (int i = 0; i < chunkCells; ++i)
+                    _sparseChunkBytes[chunk][i] = (byte) cells[i];
+                break;
+                
+            case CELLS_SHORT:
+                for (int i = 0; i < chunkCells; ++i)
+                    _sparseChunkShorts[chunk][i] = (short) cells[i];
+                break;
+                
+            default:
+                System.arraycopy(cells, 0, _sparseChunkInts[chunk], 0, chunkCells);
+                break;
+        }
+        
+        invalidateSparseChunk(chunk);
+        
+        //Actualizamos el ndice de celdas con tiles animados
+        if (_animatedCells != null)
+        {
+            int chunkSize = _sparseMask + 1;
+            int firstCol = (chunk % _sparseChunkColumns) << _sparseShift;
+            int firstRow = (chunk / _sparseChunkColumns) << _sparseShift;
+            
+            removeAnimatedCells(firstCol, firstRow, chunkSize, chunkSize);
+            
+            for (int i = 0; i < chunkCells; ++i)
+                if ( (cells[i] < 0) && (firstCol + (i & _sparseMask) < _numColumns) && 
+                     (firstRow + (i >> _sparseShift) < _numRows) )
+                    addAnimatedCell(cells[i], 
+                            (firstRow + (i >> _sparseShift)) * _numColumns + firstCol + (i & _sparseMask));
+        }
+    }
+    
+    /**
+     * Convierte un chunk del mapa por chunks en uniforme con el valor indicado,
+     * liberando su array. Lo usa TileMapLoader.
+     */
+    void setSparseChunkUniform(int chunk, int value)
+    {
+        releaseSparseChunk(chunk, value);
+        invalidateSparseChunk(chunk);
+        
+        //Actualizamos el ndice de celdas con tiles animados
+        if (_animatedCells != null)
+        {
+            int col = (chunk % _sparseChunkColumns) << _sparseShift;
+            int row = (chunk / _sparseChunkColumns) << _sparseShift;
+            int lastCol = Math.min(col + _sparseMask + 1, _numColumns);
+            int lastRow = Math.min(row + _sparseMask + 1, _numRows);
+            
+            removeAnimatedCells(col, row, lastCol - col, lastRow - row);
+            
+            if (value < 0)
+                for (int r = row; r < lastRow; ++r)
+                    for (int c = col; c < lastCol; ++c)
+                        addAnimatedCell(value, r * _numColumns + c);
+        }
+    }
+    
+    /**
+     * Marca como modificadas las celdas de un chunk del mapa por chunks
+     */
+    private void invalidateSparseChunk(int chunk)
+    {
+        int col = (chunk % _sparseChunkColumns) << _sparseShift;
+        int row = (chunk / _sparseChunkColumns) << _sparseShift;
+        
+        invalidateCells(col, row, 
+                Math.min(_sparseMask + 1, _numColumns - col), 
+                Math.min(_sparseMask + 1, _numRows - row));
+    }
+    
+    /**
+     * En un mapa guardado por chunks, libera la memoria de los chunks cuyas 
+     * celdas tienen todas el mismo valor, guardndolos como un nico valor.
+     * til despus de editar el mapa celda a celda. No hace nada si el mapa 
+     * se guarda en un nico array.
+     */
+    public void compactChunks()
+    {
+        if (!_sparseMap)
+            return;
+        
+        int chunkCells = 1 << (_sparseShift << 1);
+        int value;
+        int i;
+        
+        for (int chunk = 0; chunk < _sparseChunkFill.length; ++chunk)
+        {
+            if (!isSparseChunkAllocated(chunk))
+                continue;
+            
+            value = getSparseChunkValue(chunk, 0);
+            for (i = 1; i < chunkCells; ++i)
+                if (getSparseChunkValue(chunk, i) != value)
+                    break;
+            
+            if (i == chunkCells)
+                releaseSparseChunk(chunk, value);
+        }
+    }
+    
+    // Datos privados //////////////////////////////////////////////////////////
+        
+    //Tamao del tile
+    protected int _tileWidth;
+    protected int _tileHeight;
        
     //Tiles que utilizara este tileLayer;
 //#if NOKIA_UI
@@ -483,7 +2984,13 @@ public class TiledLayer extends Layer {
     //Tiles que utilizara este tileLayer;
     protected Image _tileSet;
     //Nmero de tiles horizontales y verticales contenidas en la imagen
+    //(0 si los tiles estn en un atlas sin rejilla)
     protected int _numRowTiles, _numColTiles;
+    
+    //Tabla con la posicin y tamao de cada tile en la imagen, indexada por 
+    //el ndice del tile, y si el tile ocupa la celda completa
+    private int[] _tileSrcX, _tileSrcY, _tileSrcW, _tileSrcH;
+    private boolean[] _tileFullSize;
 //#endif
     //Numero de filas y columnas
     protected int _numRows;
@@ -492,16 +2999,81 @@ public class TiledLayer extends Layer {
     //Nmero de tiles del tileSet
     protected int _totalTiles;
     
-    //Tile map
+    //Tile map. Slo se usa uno de los arrays, el ms pequeo en el que caben 
+    //todos los ndices de tile (ver updateCellStorage())
+    protected byte[] _tileMapBytes;
+    protected short[] _tileMapShorts;
     protected int[] _tileMap;
     
+    //Tipo de array usado para el tile map
+    protected int _cellStorage;
+    
+    //Mapa guardado por chunks en lugar de en un nico array ///////////////
+    
+    //Indica si el mapa se guarda por chunks. En ese caso el tipo de array de
+    //cada chunk tambin lo indica _cellStorage
+    protected boolean _sparseMap;
+    
+    //Arrays de cada chunk, null si el chunk es uniforme
+    protected byte[][] _sparseChunkBytes;
+    protected short[][] _sparseChunkShorts;
+    protected int[][] _sparseChunkInts;
+    
+    //Valor de todas las celdas de cada chunk uniforme
+    protected int[] _sparseChunkFill;
+    
+    //Tamao de chunk: desplazamiento (log2 del tamao) y mscara
+    protected int _sparseShift, _sparseMask;
+    
+    //Nmero de chunks horizontales y verticales
+    protected int _sparseChunkColumns, _sparseChunkRows;
+    
+    //Valores de _cellStorage, ordenados de menor a mayor tamao
+    private static final int CELLS_BYTE = 1;
+    private static final int CELLS_SHORT = 2;
+    private static final int CELLS_INT = 3;
+    
+    //Atributos de colisin de cada tile esttico (null: todos slidos)
+    private byte[] _tileFlags;
+    
+    //Mscaras de bits por fila de cada atributo de colisin (null si ningn 
+    //tile lo usa): un bit por celda, _flagRowWords enteros por fila.
+    //null mientras no se hace ninguna consulta o tras cambiar los atributos
+    private int[][] _flagRows;
+    private int _flagRowWords;
+    
+    //Celdas de la fila que se est actualizando en las mscaras
+    private int[] _flagRowCells;
+    
+    //Resultado del ltimo rayo: punto de impacto, celda y distancia
+    private int _rayHitX, _rayHitY, _rayHitColumn, _rayHitRow, _rayHitDistance;
+    
+    //Nmero de atributos de colisin y mscara con todos ellos
+    private static final int NUM_TILE_FLAGS = 4;
+    private static final int ALL_TILE_FLAGS = 15;
+    
     //Tamao del tile map
 
-    //Referencias a tiles animados
+    //Referencias a tiles animados. El tile animado -n se guarda en la 
+    //posicin n, la posicin 0 no se usa
     protected int[] _animatedTileReferences;
     protected int _numAnimatedTiles;
     protected int _indexAnimatedTiles;
     
+    //Animaciones de los tiles animados: tiles estticos y duracin de cada 
+    //frame (null si el tile no tiene animacin), duracin total, frame actual
+    //y tiempo transcurrido en el frame actual
+    private int[][] _animatedFrames;
+    private int[][] _animatedDurations;
+    private int[] _animatedCycle;
+    private int[] _animatedFrame;
+    private int[] _animatedTime;
+    
+    //ndice de tiles animados: celdas que referencian cada tile animado y 
+    //cuntas son. null mientras no se necesita
+    private int[][] _animatedCells;
+    private int[] _animatedCellCount;
+    
     
     //Necesarias para el dibujado ///////////////////////////////////////////
     
@@ -517,9 +3089,59 @@ public class TiledLayer extends Layer {
 //#ifndef NOKIA_UI
     //offset del tileset para dibujar el tile necesario en cada posicin.
     int _currentTileColOffset, _currentTileRowOffset;
+    
+    //Siguiente tile de la fila al buscar rachas de tiles contiguos
+    private int _nextTileIndex;
 //#endif     
+    //Nmero de celdas dibujadas con el ltimo drawImage
+    private int _runLength;
     //Variables temporales para guardar el rect de clipping original
     private int _clipX, _clipY, _clipH, _clipW;
+    
+    //Celdas de la fila que se est dibujando
+    private int[] _rowCells;
+    
+    //Cach de chunks ////////////////////////////////////////////////////////
+    
+    //Modo de dibujado
+    protected int _paintMode = PAINT_DIRECT;
+    
+    //Color de fondo para las celdas vacas en las imgenes fuera de pantalla
+    protected int _backgroundColor;
+    
+    //Tamao de un chunk en celdas y nmero mximo de chunks en memoria
+    protected int _chunkSize = 8;
+    protected int _maxChunks = 12;
+    
+    //Nmero de chunks horizontales y verticales del mapa
+    private int _numChunkColumns, _numChunkRows;
+    
+    //Imgenes de cada posicin de la cach y su objeto Graphics
+    private Image[] _chunkImages;
+    private Graphics[] _chunkGraphics;
+    
+    //Chunk guardado en cada posicin (-1 si est libre), si es vlido y
+    //el frame en que se us por ltima vez
+    private int[] _chunkIds;
+    private boolean[] _chunkValid;
+    private int[] _chunkLastUse;
+    
+    //Contador de frames para el LRU
+    private int _chunkClock;
+    
+    //Buffer retenido ////////////////////////////////////////////////////////
+    
+    //Imagen con las celdas guardadas y su objeto Graphics
+    private Image _retainedBuffer;
+    private Graphics _retainedGraphics;
+    
+    //Rango de celdas guardado en el buffer (primera celda y tamao)
+    private int _bufferFirstCol = -1, _bufferFirstRow;
+    private int _bufferColumns, _bufferRows;
+    
+    //Regin de celdas modificadas pendiente de redibujar [first, last)
+    private int _dirtyFirstCol = Integer.MAX_VALUE, _dirtyFirstRow = Integer.MAX_VALUE;
+    private int _dirtyLastCol = Integer.MIN_VALUE, _dirtyLastRow = Integer.MIN_VALUE;
 
  
 }
@@ -0,0 +1,312 @@
+/*
+ * TransformCache.java
+ *
+ * @author Ricardo Amores Hernndez
+ */
+
+package MIDP1GameAPI;
+
+import javax.microedition.lcdui.Graphics;
+import javax.microedition.lcdui.Image;
+
+/**
+ * Cach de frames reflejados y girados para dibujar sprites transformados sin
+ * Nokia UI.
+ *
+ * MIDP 1.0 no permite transformar imgenes al dibujarlas ni leer sus pxeles,
+ * as que la primera vez que se pide un frame con una transformacin se crea
+ * una imagen mutable con el frame transformado, copindolo con drawImage() y
+ * rectngulos de clipping: por columnas y filas para los reflejos y el giro de
+ * 180 grados, y pxel a pxel para los giros de 90 y 270 grados. Slo se usan
+ * operaciones de dibujado de MIDP 1.0, por lo que funciona en cualquier
+ * dispositivo.
+ * <p>
+ * Las imgenes mutables de MIDP 1.0 son opacas: los pxeles transparentes del
+ * frame quedan del color de fondo de la imagen. Sprite conserva la
+ * transparencia dibujando slo los pxeles opacos de su mscara de colisin,
+ * si la tiene (ver Sprite.setCollisionMask()).
+ * <p>
+ * La cach es nica para toda la aplicacin y su tamao est limitado por un
+ * presupuesto en pxeles: al superarlo se descartan los frames usados hace ms
+ * tiempo.
+ */
+public class TransformCache
+{
+    /** Presupuesto por defecto, en pxeles */
+    public static final int DEFAULT_BUDGET = 16384;
+
+    /**
+     * No se crean instancias: la cach es nica
+     */
+    private TransformCache()
+    {
+    }
+
+    /**
+     * Fija el nmero mximo de pxeles que pueden ocupar entre todos los
+     * frames de la cach. Si ya se ocupan ms se descartan los frames usados
+     * hace ms tiempo. Un frame mayor que el presupuesto se crea igualmente,
+     * pero se descarta al pedir el siguiente.
+     */
+    public static void setMemoryBudget(int pixels)
+    {
+//#if DEBUG
+//#         if (pixels < 0)
+//#             throw new IllegalArgumentException("TransformCache::setMemoryBudget - arg pixels = " + pixels);
+//#else
+        if (pixels < 0)
+            throw new IllegalArgumentException();
+//#endif
+
+        _budget = pixels;
+        evict(0);
+    }
+
+    /**
+     * Devuelve el presupuesto de la cach en pxeles
+     */
+    public static int getMemoryBudget()
+    {
+        return _budget;
+    }
+
+    /**
+     * Devuelve los pxeles que ocupan los frames de la cach
+     */
+    public static int getMemoryUsed()
+    {
+        return _used;
+    }
+
+    /**
+     * Nmero de frames en la cach
+     */
+    public static int getSize()
+    {
+        return _size;
+    }
+
+    /**
+     * Vaca la cach
+     */
+    public static void clear()
+    {
+        for (int i = 0; i < _size; ++i)
+        {
+            _sources[i] = null;
+            _images[i] = null;
+        }
+
+        _size = 0;
+        _used = 0;
+    }
+
+    /**
+     * Devuelve el frame de source situado en (x, y), de width x height, con
+     * una transformacin de CollisionMask (reflejos y giros). La imagen
+     * devuelta mide height x width si la transformacin incluye un giro de 90
+     * o 270 grados.
+     */
+    static Image getFrame(Image source, int x, int y, int width, int height, int transform)
+    {
+        //Bsqueda lineal: la cach tiene pocas entradas
+        for (int i = 0; i < _size; ++i)
+            if ( (_sources[i] == source) && (_keys[4 * i] == x) && (_keys[4 * i + 1] == y) &&
+                 (_keys[4 * i + 2] == ( (width << 16) | height )) && (_keys[4 * i + 3] == transform) )
+            {
+                _lastUse[i] = ++_clock;
+                return _images[i];
+            }
+
+        //Hacemos sitio antes de crear la nueva imagen
+        evict(width * height);
+
+        Image image = createFrame(source, x, y, width, height, transform);
+
+        if (_size == _images.length)
+        {
+            int capacity = _size * 2;
+
+            Image[] sources = new Image[capacity];
+            Image[] images = new Image[capacity];
+            int[] keys = new int[capacity * 4];
+            int[] lastUse = new int[capacity];
+
+            System.arraycopy(_sources, 0, sources, 0, _size);
+            System.arraycopy(_images, 0, images, 0, _size);
+            System.arraycopy(_keys, 0, keys, 0, _size * 4);
+            System.arraycopy(_lastUse, 0, lastUse, 0, _size);
+
+            _sources = sources;
+            _images = images;
+            _keys = keys;
+            _lastUse = lastUse;
+        }
+
+        _sources[_size] = source;
+        _images[_size] = image;
+        _keys[4 * _size] = x;
+        _keys[4 * _size + 1] = y;
+        _keys[4 * _size + 2] = (width << 16) | height;
+        _keys[4 * _size + 3] = transform;
+        _lastUse[_size] = ++_clock;
+        _size++;
+        _used += width * height;
+
+        return image;
+    }
+
+    ///////////////////////////////////////////////////////////////////
+    //Mtodos privados
+
+    /**
+     * Descarta los frames usados hace ms tiempo hasta que quepan otros
+     * pixels pxeles en el presupuesto
+     */
+    private static void evict(int pixels)
+    {
+        int oldest, size;
+
+        while ( (_size > 0) && (_used + pixels > _budget) )
+        {
+            oldest = 0;
+            for (int i = 1; i < _size; ++i)
+                if (_lastUse[i] < _lastUse[oldest])
+                    oldest = i;
+
+            size = _keys[4 * oldest + 2];
+            _used -= (size >>> 16) * (size & 0xFFFF);
+
+            //El ltimo ocupa el hueco
+            _size--;
+            _sources[oldest] = _sources[_size];
+            _images[oldest] = _images[_size];
+            System.arraycopy(_keys, 4 * _size, _keys, 4 * oldest, 4);
+            _lastUse[oldest] = _lastUse[_size];
+
+            _sources[_size] = null;
+            _images[_size] = null;
+        }
+    }
+
+    /**
+     * Crea la imagen de un frame transformado
+     */
+    private static Image createFrame(Image source, int x, int y, int width, int height, int transform)
+    {
+        int rotation = transform & CollisionMask.ROTATE_270;
+        boolean flipX = (transform & CollisionMask.MIRROR_X) != 0;
+        boolean flipY = (transform & CollisionMask.MIRROR_Y) != 0;
+        Image image;
+        Graphics g;
+
+        if ( (rotation == 0) || (rotation == CollisionMask.ROTATE_180) )
+        {
+            //Sin giros de 90 grados cada columna del frame acaba en una
+            //columna y cada fila en una fila: girar 180 grados es reflejar
+            //en los dos ejes
+            if (rotation == CollisionMask.ROTATE_180)
+            {
+                flipX = !flipX;
+                flipY = !flipY;
+            }
+
+            image = Image.createImage(width, height);
+            g = image.getGraphics();
+
+            if (!flipY)
+            {
+                if (!flipX)
+                    g.drawImage(source, -x, -y, Graphics.TOP | Graphics.LEFT);
+                else
+                    copyColumns(g, source, x, y, width, height);
+            }
+            else if (!flipX)
+                copyRows(g, source, x, y, width, height);
+            else
+            {
+                //Reflejamos las columnas en una imagen temporal y despus
+                //las filas de sta
+                Image tmp = Image.createImage(width, height);
+                copyColumns(tmp.getGraphics(), source, x, y, width, height);
+                copyRows(g, tmp, 0, 0, width, height);
+            }
+
+            return image;
+        }
+
+        //Giros de 90 y 270 grados: pxel a pxel
+        image = Image.createImage(height, width);
+        g = image.getGraphics();
+
+        int mx, my, dx, dy;
+
+        for (int sy = 0; sy < height; ++sy)
+            for (int sx = 0; sx < width; ++sx)
+            {
+                mx = flipX ? width - 1 - sx : sx;
+                my = flipY ? height - 1 - sy : sy;
+
+                if (rotation == CollisionMask.ROTATE_90)
+                {
+                    dx = height - 1 - my;
+                    dy = mx;
+                }
+                else
+                {
+                    dx = my;
+                    dy = width - 1 - mx;
+                }
+
+                g.setClip(dx, dy, 1, 1);
+                g.drawImage(source, dx - x - sx, dy - y - sy, Graphics.TOP | Graphics.LEFT);
+            }
+
+        return image;
+    }
+
+    /**
+     * Copia el frame reflejado horizontalmente, columna a columna
+     */
+    private static void copyColumns(Graphics g, Image source, int x, int y, int width, int height)
+    {
+        for (int i = 0; i < width; ++i)
+        {
+            g.setClip(width - 1 - i, 0, 1, height);
+            g.drawImage(source, width - 1 - i - x - i, -y, Graphics.TOP | Graphics.LEFT);
+        }
+    }
+
+    /**
+     * Copia el frame reflejado verticalmente, fila a fila
+     */
+    private static void copyRows(Graphics g, Image source, int x, int y, int width, int height)
+    {
+        for (int i = 0; i < height; ++i)
+        {
+            g.setClip(0, height - 1 - i, width, 1);
+            g.drawImage(source, -x, height - 1 - i - y - i, Graphics.TOP | Graphics.LEFT);
+        }
+    }
+
+    ///////////////////////////////////////////////////////////////////
+    //Elementos privados
+
+    //Nmero inicial de entradas
+    private static final int INITIAL_CAPACITY = 16;
+
+    //Por entrada: imagen origen, frame transformado, clave (x, y, tamao y
+    //transformacin, 4 enteros) y ltimo uso
+    private static Image[] _sources = new Image[INITIAL_CAPACITY];
+    private static Image[] _images = new Image[INITIAL_CAPACITY];
+    private static int[] _keys = new int[INITIAL_CAPACITY * 4];
+    private static int[] _lastUse = new int[INITIAL_CAPACITY];
+    private static int _size;
+
+    //Contador para ordenar los usos
+    private static int _clock;
+
+    //Presupuesto y pxeles ocupados
+    private static int _budget = DEFAULT_BUDGET;
+    private static int _used;
+}
@@ -11,6 +11,8 @@ import javax.microedition.lcdui.Image;
 import javax.microedition.lcdui.Graphics;
 import java.lang.Exception;
 
+import MIDP1GameAPI.CollisionMask;
+
 //#ifdef NOKIA_UI
 //# import com.nokia.mid.ui.*;
 //#endif
@@ -88,9 +90,69 @@ public class ImageSet {
         //Tamao de cada frame
         _frameWidth = frameWidth;
         _frameHeight = frameHeight;
+        
+        _collisionMask = null;
      
     }
     
+    /**
+     * Crea los frames a partir de un atlas: frameRects contiene 4 enteros por 
+     * frame (x, y, ancho, alto) con su rectngulo en la imagen. Cada 
+     * rectngulo se copia en la esquina superior izquierda de un frame de 
+     * frameWidth x frameHeight, el resto del frame queda transparente.
+     */
+    public void setImage(Image image, int frameWidth, int frameHeight, int[] frameRects)
+    {
+   //#if DEBUG
+//#         if (image == null) throw new NullPointerException("ImageSet::setImage - arg Image");
+//#         if (frameRects == null) throw new NullPointerException("ImageSet::setImage - arg frameRects");
+//#         if (frameWidth < 1) throw new IllegalArgumentException("ImageSet::setImage - arg frameWidth < 1");
+//#         if (frameHeight < 1) throw new IllegalArgumentException("ImageSet::setImage - arg frameHeight <1");
+//#         if ( (frameRects.length & 3) != 0 ) throw new IllegalArgumentException("ImageSet::setImage - invalid frameRects length");
+//#         
+//#else
+            if ( (image == null) || (frameRects == null) )
+                throw new NullPointerException();
+            if ( (frameWidth < 1) || (frameHeight < 1) || ( (frameRects.length & 3) != 0 ) )
+                throw new IllegalArgumentException();
+//#endif
+        
+        //Graficos de nokia
+        DirectGraphics dg; 
+        Graphics g;
+        
+        //Total de frames en el ImageSet
+        _totalFrames = frameRects.length / 4;
+        
+        //Creamos un array de imgenes
+        _frameSet = new Image[ _totalFrames ];
+        
+        //Copiamos las imagenes
+        for (int i = 0; i < _totalFrames; ++i)
+        {
+            //imagen con transparencia
+            try
+            {
+                Image tmp = DirectUtils.createImage(frameWidth, frameHeight, DirectGraphics.TYPE_INT_8888_ARGB);
+                g = tmp.getGraphics();
+                g.setClip(0, 0, frameRects[4 * i + 2], frameRects[4 * i + 3]);
+                dg = DirectUtils.getDirectGraphics(g);
+                dg.drawImage(image, -frameRects[4 * i], -frameRects[4 * i + 1],  Graphics.TOP |Graphics.LEFT, 0);
+                _frameSet[i] = tmp;
+            }
+            catch (Exception e)
+            {
+                System.out.println(e.getMessage());
+            }
+        }
+        
+        //Tamao de cada frame
+        _frameWidth = frameWidth;
+        _frameHeight = frameHeight;
+        
+        _collisionMask = null;
+    }
+    
     public final int getNumFrames()
     {
         return _totalFrames;
@@ -111,6 +173,26 @@ public class ImageSet {
         return _frameSet[index];
     }
     
+    /**
+     * Devuelve la mscara de colisin de los frames, que se calcula a partir
+     * de sus pxeles la primera vez que se pide. Todos los sprites que usan 
+     * este ImageSet comparten la misma mscara.
+     */
+    public final CollisionMask getCollisionMask()
+    {
+        if (_collisionMask == null)
+        {
+            CollisionMask mask = new CollisionMask(_frameWidth, _frameHeight, _totalFrames);
+            
+            for (int i = 0; i < _totalFrames; ++i)
+                mask.setFrame(i, _frameSet[i]);
+            
+            _collisionMask = mask;
+        }
+        
+        return _collisionMask;
+    }
+    
     // Datos privados //////////////////////////////////////////////////////////    
     
     //Array con los frames en los que se divide la imagen
@@ -122,5 +204,8 @@ public class ImageSet {
     //Tamao de cada frame
     private int _frameWidth, _frameHeight;
     
+    //Mscara de colisin de los frames, se crea al pedirla
+    private CollisionMask _collisionMask;
+    
     
 }